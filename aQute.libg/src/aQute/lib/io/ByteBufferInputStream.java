@@ -0,0 +1,49 @@
+package aQute.lib.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream that reads the remaining bytes of a byte buffer. Reading
+ * advances the position of the buffer, so the buffer's position is always the
+ * position of the stream.
+ */
+public class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer bb;
+
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.bb = buffer;
+	}
+
+	@Override
+	public int read() {
+		if (!bb.hasRemaining())
+			return -1;
+		return 0xFF & bb.get();
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		int remaining = bb.remaining();
+		if (remaining <= 0)
+			return len == 0 ? 0 : -1;
+		if (len > remaining)
+			len = remaining;
+		bb.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0)
+			return 0;
+		int skip = (int) Math.min(n, bb.remaining());
+		bb.position(bb.position() + skip);
+		return skip;
+	}
+
+	@Override
+	public int available() {
+		return bb.remaining();
+	}
+}
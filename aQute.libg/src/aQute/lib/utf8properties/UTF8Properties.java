@@ -1,6 +1,7 @@
 package aQute.lib.utf8properties;
 
 import java.io.ByteArrayInputStream;
+import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -14,7 +15,13 @@ import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import aQute.lib.io.IO;
 
@@ -39,6 +46,9 @@ public class UTF8Properties extends Properties {
 	private static final long	serialVersionUID	= 1L;
 	private static Charset		UTF8				= Charset.forName("UTF-8");
 	private static Charset		ISO8859_1			= Charset.forName("ISO8859-1");
+	private static AtomicLong	stamps				= new AtomicLong();
+	private transient volatile long	stamp			= stamps.incrementAndGet();
+	private transient volatile int	size;
 
 	public UTF8Properties(Properties p) {
 		super(p);
@@ -75,17 +85,13 @@ public class UTF8Properties extends Properties {
 	}
 
 	private void convert(byte[] buffer, Charset charset) throws IOException {
-		CharBuffer decode = charset.decode(ByteBuffer.wrap(buffer));
 		CharsetDecoder decoder = charset.newDecoder();
 		ByteBuffer bb = ByteBuffer.wrap(buffer);
-		CharBuffer cb = CharBuffer.allocate(buffer.length * 4);
+		CharBuffer cb = CharBuffer.allocate((int) Math.ceil(buffer.length * (double) decoder.maxCharsPerByte()));
 		CoderResult result = decoder.decode(bb, cb, true);
 		if (!result.isError()) {
-
-			String s = new String(cb.array(), 0, cb.position());
-			s = doBackslashEncoding(s);
-
-			super.load(new StringReader(s));
+			// the chars are loaded in place, no need to copy them to a string
+			super.load(new CharArrayReader(cb.array(), 0, cb.position()));
 			return;
 		}
 		throw new CharacterCodingException();
@@ -140,4 +146,232 @@ public class UTF8Properties extends Properties {
 		store(out, null);
 	}
 
+	/**
+	 * Answer a stamp that changes whenever these properties or their defaults
+	 * are changed. Stamps only increase, also over different instances, so
+	 * replacing properties by new properties also changes the stamp. Answer -1
+	 * when the defaults are not UTF8Properties and changes to them can
+	 * therefore not be seen.
+	 * <p>
+	 * All changes through the methods of Hashtable and its views change the
+	 * stamp, except for the methods that take a function, like compute and
+	 * merge. They cannot be overridden here, their changes are only seen when
+	 * they change the number of properties.
+	 */
+	public long stamp() {
+		if (size() != size)
+			changed();
+		if (defaults == null)
+			return stamp;
+		if (!(defaults instanceof UTF8Properties))
+			return -1;
+		long d = ((UTF8Properties) defaults).stamp();
+		return d < 0 ? -1 : Math.max(stamp, d);
+	}
+
+	void changed() {
+		size = size();
+		stamp = stamps.incrementAndGet();
+	}
+
+	@Override
+	public synchronized Object put(Object key, Object value) {
+		try {
+			return super.put(key, value);
+		}
+		finally {
+			changed();
+		}
+	}
+
+	@Override
+	public synchronized void putAll(Map< ? , ? > t) {
+		super.putAll(t);
+		changed();
+	}
+
+	@Override
+	public synchronized Object remove(Object key) {
+		try {
+			return super.remove(key);
+		}
+		finally {
+			changed();
+		}
+	}
+
+	@Override
+	public synchronized void clear() {
+		super.clear();
+		changed();
+	}
+
+	/*
+	 * The following methods were added to Hashtable later, they do not call
+	 * put or remove
+	 */
+	public synchronized Object putIfAbsent(Object key, Object value) {
+		Object old = get(key);
+		if (old == null)
+			old = put(key, value);
+		return old;
+	}
+
+	public synchronized boolean remove(Object key, Object value) {
+		Object old = get(key);
+		if (old == null || !old.equals(value))
+			return false;
+		remove(key);
+		return true;
+	}
+
+	public synchronized Object replace(Object key, Object value) {
+		if (!containsKey(key))
+			return null;
+		return put(key, value);
+	}
+
+	public synchronized boolean replace(Object key, Object oldValue, Object newValue) {
+		Object old = get(key);
+		if (old == null || !old.equals(oldValue))
+			return false;
+		put(key, newValue);
+		return true;
+	}
+
+	@Override
+	public synchronized Object clone() {
+		UTF8Properties clone = (UTF8Properties) super.clone();
+		clone.changed();
+		return clone;
+	}
+
+	@Override
+	public Set<Object> keySet() {
+		return new ViewSet<Object>(super.keySet());
+	}
+
+	@Override
+	public Collection<Object> values() {
+		return new View<Object>(super.values());
+	}
+
+	@Override
+	public Set<Map.Entry<Object,Object>> entrySet() {
+		return new ViewSet<Map.Entry<Object,Object>>(super.entrySet()) {
+			@Override
+			Map.Entry<Object,Object> wrap(final Map.Entry<Object,Object> entry) {
+				return new Map.Entry<Object,Object>() {
+					public Object getKey() {
+						return entry.getKey();
+					}
+
+					public Object getValue() {
+						return entry.getValue();
+					}
+
+					public Object setValue(Object value) {
+						try {
+							return entry.setValue(value);
+						}
+						finally {
+							changed();
+						}
+					}
+
+					@Override
+					public boolean equals(Object o) {
+						return entry.equals(o);
+					}
+
+					@Override
+					public int hashCode() {
+						return entry.hashCode();
+					}
+
+					@Override
+					public String toString() {
+						return entry.toString();
+					}
+				};
+			}
+		};
+	}
+
+	/*
+	 * A view on the properties that changes the stamp when the properties are
+	 * changed through it
+	 */
+	class View<T> extends AbstractCollection<T> {
+		final Collection<T> view;
+
+		View(Collection<T> view) {
+			this.view = view;
+		}
+
+		T wrap(T element) {
+			return element;
+		}
+
+		@Override
+		public Iterator<T> iterator() {
+			final Iterator<T> it = view.iterator();
+			return new Iterator<T>() {
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				public T next() {
+					return wrap(it.next());
+				}
+
+				public void remove() {
+					it.remove();
+					changed();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return view.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return view.contains(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			try {
+				return view.remove(o);
+			}
+			finally {
+				changed();
+			}
+		}
+
+		@Override
+		public void clear() {
+			view.clear();
+			changed();
+		}
+	}
+
+	class ViewSet<T> extends View<T> implements Set<T> {
+		ViewSet(Set<T> view) {
+			super(view);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return view.equals(o);
+		}
+
+		@Override
+		public int hashCode() {
+			return view.hashCode();
+		}
+	}
 }
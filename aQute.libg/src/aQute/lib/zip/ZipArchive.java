@@ -0,0 +1,738 @@
+package aQute.lib.zip;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Reads a zip file through its central directory. Opening an archive only
+ * locates the central directory and maps it into memory, the entries are
+ * decoded when they are looked up. A lookup by name compares the UTF-8 bytes
+ * of the name with the central directory, the names of the other entries are
+ * never decoded.
+ * <p>
+ * The central directory also tells where the compressed data of an entry is
+ * stored, so the data can be copied to another zip file with
+ * {@link ZipWriter#putRawEntry(ZipEntry, InputStream)} without inflating it
+ * first.
+ * <p>
+ * An archive can be used by multiple threads.
+ * <p>
+ * The file handle can be released with {@link #release()}, it is opened again
+ * when data is read. When archives share a {@link ZipHandles}, only the most
+ * recently used archives and the archives that are {@link #pin() pinned} keep
+ * their handle open. An archive refuses to open its file again when the file
+ * changed since the archive was created.
+ */
+public class ZipArchive implements Closeable {
+	static final int		LOCSIG			= 0x04034b50;
+	static final int		CENSIG			= 0x02014b50;
+	static final int		ENDSIG			= 0x06054b50;
+	static final int		ZIP64_ENDSIG	= 0x06064b50;
+	static final int		ZIP64_LOCSIG	= 0x07064b50;
+	static final int		ENDHDR			= 22;
+	static final int		LOCHDR			= 30;
+	static final int		CENHDR			= 46;
+	static final long		MAX32			= 0xFFFFFFFFL;
+	static final int		BUFFER_SIZE		= 8192;
+
+	/*
+	 * On Windows a mapped file cannot be deleted or replaced until the mapping
+	 * is garbage collected, so there we read the central directory instead.
+	 */
+	static final boolean	MAP				= File.separatorChar != '\\';
+
+	public static class Entry {
+		final String	name;
+		final int		flags;
+		final int		method;
+		final long		time;
+		final long		crc;
+		final long		compressedSize;
+		final long		size;
+		final long		offset;
+		final byte[]	extra;
+
+		Entry(String name, int flags, int method, long time, long crc, long compressedSize, long size, long offset,
+				byte[] extra) {
+			this.name = name;
+			this.flags = flags;
+			this.method = method;
+			this.time = time;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.offset = offset;
+			this.extra = extra;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		/**
+		 * The modification time, like {@link ZipEntry#getTime()}.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public byte[] getExtra() {
+			return extra == null ? null : extra.clone();
+		}
+
+		/**
+		 * Answer true if the data of the entry can be copied as is to a
+		 * {@link ZipWriter}, i.e. it is not encrypted and stored or deflated.
+		 */
+		public boolean isCopyable() {
+			return (flags & 1) == 0 && (method == ZipEntry.STORED || method == ZipEntry.DEFLATED);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	final File					file;
+	final ByteBuffer			cd;
+	final long					base;
+	final int					count;
+	final long					length;
+	final long					lastModified;
+
+	// guarded by lock
+	private final Object		lock			= new Object();
+	private RandomAccessFile	raf;
+	private boolean				closed;
+	private volatile int		pins;
+
+	private volatile ZipHandles	handles;
+	volatile long				lastUsed		= System.nanoTime();
+
+	// lazily created, guarded by this
+	private int[]				table;
+	private List<Entry>			entries;
+
+	public ZipArchive(File file) throws IOException {
+		this.file = file;
+		this.lastModified = file.lastModified();
+		this.raf = new RandomAccessFile(file, "r");
+		try {
+			this.length = raf.length();
+			long length = this.length;
+			int tail = (int) Math.min(length, ENDHDR + 0xFFFF);
+			ByteBuffer bb = read(length - tail, tail);
+
+			int end = -1;
+			for (int i = tail - ENDHDR; i >= 0; i--) {
+				if (bb.getInt(i) == ENDSIG && i + ENDHDR + u16(bb, i + 20) <= tail) {
+					end = i;
+					break;
+				}
+			}
+			if (end < 0)
+				throw new ZipException("No end of central directory in " + file);
+
+			long entries = u16(bb, end + 10);
+			long size = u32(bb, end + 12);
+			long offset = u32(bb, end + 16);
+
+			//
+			// Data may be prepended to a zip file, for example a launch
+			// script. The offsets are then relative to the start of the zip
+			//
+			long base = 0;
+
+			if (end >= 20 && bb.getInt(end - 20) == ZIP64_LOCSIG) {
+				ByteBuffer zip64 = read(bb.getLong(end - 20 + 8), 56);
+				if (zip64.getInt(0) != ZIP64_ENDSIG)
+					throw new ZipException("Invalid zip64 end of central directory in " + file);
+				entries = zip64.getLong(32);
+				size = zip64.getLong(40);
+				offset = zip64.getLong(48);
+			} else {
+				base = length - tail + end - size - offset;
+			}
+
+			if (size > Integer.MAX_VALUE || entries > Integer.MAX_VALUE || base < 0 || base + offset + size > length)
+				throw new ZipException("Invalid central directory in " + file);
+
+			this.base = base;
+			this.count = (int) entries;
+			if (MAP)
+				this.cd = raf.getChannel().map(MapMode.READ_ONLY, base + offset, size).order(ByteOrder.LITTLE_ENDIAN);
+			else
+				this.cd = read(base + offset, (int) size);
+		}
+		catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			raf.close();
+			throw new ZipException("Invalid zip file " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * The number of entries, including directories.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Find an entry by name. The first lookup builds a hash index over the
+	 * names in the central directory.
+	 */
+	public Entry getEntry(String name) throws IOException {
+		int[] table = index();
+		byte[] bytes = name.getBytes("UTF-8");
+		int mask = table.length - 1;
+		for (int i = hash(bytes) & mask;; i = (i + 1) & mask) {
+			int p = table[i] - 1;
+			if (p < 0)
+				return null;
+			if (matches(p, bytes))
+				return entry(p, name);
+		}
+	}
+
+	/**
+	 * Answer all entries in the order of the central directory. This decodes
+	 * the names of all entries. If an entry name occurs more than once, only
+	 * the last entry is included, in the place of the first, like the last
+	 * entry wins when the entries of a ZipFile are added to a map.
+	 */
+	public synchronized List<Entry> getEntries() throws IOException {
+		if (entries == null) {
+			List<Entry> list = new ArrayList<Entry>(count);
+			Map<String,Integer> names = new HashMap<String,Integer>();
+			int p = 0;
+			for (int i = 0; i < count; i++) {
+				check(p);
+				Entry entry = entry(p, null);
+				Integer index = names.get(entry.name);
+				if (index == null) {
+					names.put(entry.name, list.size());
+					list.add(entry);
+				} else
+					list.set(index, entry);
+				p = next(p);
+			}
+			entries = Collections.unmodifiableList(list);
+		}
+		return entries;
+	}
+
+	/**
+	 * Open a stream on the uncompressed data of an entry. When all data is
+	 * read, its size and crc are verified.
+	 */
+	public InputStream openInputStream(Entry entry) throws IOException {
+		InputStream in = openRawInputStream(entry);
+		switch (entry.method) {
+			case ZipEntry.STORED :
+				return new VerifyingInputStream(in, entry);
+
+			case ZipEntry.DEFLATED :
+				return new VerifyingInputStream(new EntryInputStream(in, entry), entry);
+
+			default :
+				in.close();
+				throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+		}
+	}
+
+	/**
+	 * Open a stream on the compressed data of an entry.
+	 */
+	public InputStream openRawInputStream(Entry entry) throws IOException {
+		ByteBuffer local = read(entry.offset, LOCHDR);
+		if (local.getInt(0) != LOCSIG)
+			throw new ZipException("Invalid local header for " + entry.name + " in " + file);
+		long data = entry.offset + LOCHDR + u16(local, 26) + u16(local, 28);
+		return new RangeInputStream(data, entry.compressedSize);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Share the open file handles with other archives. The handle of this
+	 * archive can then be released when other archives are used.
+	 */
+	public void setHandles(ZipHandles handles) {
+		this.handles = handles;
+		if (handles != null && isOpen())
+			handles.opened(this);
+	}
+
+	/**
+	 * Keep the file handle open until the archive is unpinned as often as it
+	 * was pinned, also when the shared handles are exhausted. A file that
+	 * changed since the archive was opened cannot be pinned.
+	 */
+	public void pin() throws IOException {
+		boolean opened;
+		synchronized (lock) {
+			opened = raf == null;
+			handle();
+			pins++;
+		}
+		used(opened);
+	}
+
+	public void unpin() {
+		synchronized (lock) {
+			if (pins > 0)
+				pins--;
+		}
+		ZipHandles handles = this.handles;
+		if (handles != null)
+			handles.trim(null);
+	}
+
+	/**
+	 * Answer true if the archive is pinned.
+	 */
+	public boolean isPinned() {
+		return pins > 0;
+	}
+
+	/**
+	 * Close the file handle if it is open. The file is opened again when data
+	 * is read. Answer true if the handle was open.
+	 */
+	public boolean release() throws IOException {
+		ZipHandles handles = this.handles;
+		if (handles != null)
+			handles.remove(this);
+		return closeHandle();
+	}
+
+	/**
+	 * Close the file handle unless the archive is pinned, like
+	 * {@link #release()} the entries are kept. Answer false if the archive is
+	 * pinned.
+	 */
+	public boolean evict() throws IOException {
+		synchronized (lock) {
+			if (pins > 0)
+				return false;
+			closeHandle();
+		}
+		ZipHandles handles = this.handles;
+		if (handles != null)
+			handles.remove(this);
+		return true;
+	}
+
+	private boolean closeHandle() throws IOException {
+		synchronized (lock) {
+			if (raf == null)
+				return false;
+			try {
+				raf.close();
+			}
+			finally {
+				raf = null;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Answer true if the file handle is open.
+	 */
+	public boolean isOpen() {
+		synchronized (lock) {
+			return raf != null;
+		}
+	}
+
+	public void close() throws IOException {
+		synchronized (lock) {
+			closed = true;
+		}
+		release();
+		handles = null;
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+
+	private synchronized int[] index() throws IOException {
+		if (table == null) {
+			int[] table = new int[Integer.highestOneBit(Math.max(count, 1)) << 2];
+			int mask = table.length - 1;
+			int p = 0;
+			for (int n = 0; n < count; n++) {
+				check(p);
+				int i = hash(p) & mask;
+				//
+				// The last entry with a name wins, like in getEntries
+				//
+				while (table[i] != 0 && !sameName(table[i] - 1, p))
+					i = (i + 1) & mask;
+				table[i] = p + 1;
+				p = next(p);
+			}
+			this.table = table;
+		}
+		return table;
+	}
+
+	private void check(int p) throws ZipException {
+		if (p + CENHDR > cd.limit() || cd.getInt(p) != CENSIG || next(p) > cd.limit())
+			throw new ZipException("Invalid central directory header in " + file);
+	}
+
+	private int next(int p) {
+		return p + CENHDR + u16(cd, p + 28) + u16(cd, p + 30) + u16(cd, p + 32);
+	}
+
+	private int hash(int p) {
+		int h = 0;
+		for (int i = p + CENHDR, end = i + u16(cd, p + 28); i < end; i++)
+			h = 31 * h + cd.get(i);
+		return mix(h);
+	}
+
+	private static int hash(byte[] bytes) {
+		int h = 0;
+		for (byte b : bytes)
+			h = 31 * h + b;
+		return mix(h);
+	}
+
+	private static int mix(int h) {
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	private boolean matches(int p, byte[] bytes) {
+		if (u16(cd, p + 28) != bytes.length)
+			return false;
+		for (int i = 0, q = p + CENHDR; i < bytes.length; i++, q++)
+			if (cd.get(q) != bytes[i])
+				return false;
+		return true;
+	}
+
+	private boolean sameName(int p, int q) {
+		int length = u16(cd, p + 28);
+		if (u16(cd, q + 28) != length)
+			return false;
+		for (int i = 0; i < length; i++)
+			if (cd.get(p + CENHDR + i) != cd.get(q + CENHDR + i))
+				return false;
+		return true;
+	}
+
+	private Entry entry(int p, String name) throws IOException {
+		int flags = u16(cd, p + 8);
+		int method = u16(cd, p + 10);
+		long dostime = u32(cd, p + 12);
+		long crc = u32(cd, p + 16);
+		long csize = u32(cd, p + 20);
+		long usize = u32(cd, p + 24);
+		int nameLength = u16(cd, p + 28);
+		int extraLength = u16(cd, p + 30);
+		long local = u32(cd, p + 42);
+
+		if (name == null) {
+			byte[] bytes = new byte[nameLength];
+			for (int i = 0; i < nameLength; i++)
+				bytes[i] = cd.get(p + CENHDR + i);
+			name = new String(bytes, "UTF-8");
+		}
+
+		byte[] extra = null;
+		long time = -1;
+		if (extraLength > 0) {
+			extra = new byte[extraLength];
+			int x = p + CENHDR + nameLength;
+			for (int i = 0; i < extraLength; i++)
+				extra[i] = cd.get(x + i);
+
+			for (int xend = x + extraLength; x + 4 <= xend;) {
+				int tag = u16(cd, x);
+				int len = u16(cd, x + 2);
+				int v = x + 4;
+				switch (tag) {
+					//
+					// zip64 holds the values that did not fit, in a fixed
+					// order
+					//
+					case 0x0001 :
+						if (usize == MAX32 && v + 8 <= xend) {
+							usize = cd.getLong(v);
+							v += 8;
+						}
+						if (csize == MAX32 && v + 8 <= xend) {
+							csize = cd.getLong(v);
+							v += 8;
+						}
+						if (local == MAX32 && v + 8 <= xend)
+							local = cd.getLong(v);
+						break;
+
+					//
+					// extended timestamp, the modification time in seconds
+					//
+					case 0x5455 :
+						if (len >= 5 && (cd.get(v) & 1) != 0)
+							time = cd.getInt(v + 1) * 1000L;
+						break;
+				}
+				x = v + len;
+			}
+		}
+		if (time == -1)
+			time = fromDosTime(dostime);
+
+		return new Entry(name, flags, method, time, crc, csize, usize, base + local, extra);
+	}
+
+	static long fromDosTime(long dostime) {
+		Calendar c = Calendar.getInstance();
+		c.clear();
+		c.set((int) ((dostime >> 25) & 0x7f) + 1980, (int) ((dostime >> 21) & 0x0f) - 1,
+				(int) ((dostime >> 16) & 0x1f), (int) ((dostime >> 11) & 0x1f), (int) ((dostime >> 5) & 0x3f),
+				(int) ((dostime << 1) & 0x3e));
+		return c.getTimeInMillis();
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		byte[] data = new byte[length];
+		boolean opened;
+		synchronized (lock) {
+			opened = raf == null;
+			RandomAccessFile raf = handle();
+			raf.seek(position);
+			raf.readFully(data);
+		}
+		used(opened);
+		return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/*
+	 * Called with the lock held, open the file again if it was released
+	 */
+	private RandomAccessFile handle() throws IOException {
+		if (closed)
+			throw new IOException("Archive is closed " + file);
+		if (raf == null) {
+			if (file.length() != length || file.lastModified() != lastModified)
+				throw new ZipException("Archive changed since it was opened " + file);
+			raf = new RandomAccessFile(file, "r");
+		}
+		return raf;
+	}
+
+	/*
+	 * Called without the lock held since the handles can release the handle
+	 * of other archives. Only opening the file is reported to the handles,
+	 * a read only records the time.
+	 */
+	private void used(boolean opened) {
+		lastUsed = System.nanoTime();
+		if (opened) {
+			ZipHandles handles = this.handles;
+			if (handles != null)
+				handles.opened(this);
+		}
+	}
+
+	static int u16(ByteBuffer bb, int index) {
+		return bb.getShort(index) & 0xFFFF;
+	}
+
+	static long u32(ByteBuffer bb, int index) {
+		return bb.getInt(index) & MAX32;
+	}
+
+	/*
+	 * Reads a range of the file. Reads of different streams are serialized on
+	 * the file, each stream keeps its own position.
+	 */
+	class RangeInputStream extends InputStream {
+		long	position;
+		long	left;
+
+		RangeInputStream(long position, long length) {
+			this.position = position;
+			this.left = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (left <= 0)
+				return -1;
+			if (len == 0)
+				return 0;
+			int n;
+			boolean opened;
+			synchronized (lock) {
+				opened = raf == null;
+				RandomAccessFile raf = handle();
+				raf.seek(position);
+				n = raf.read(b, off, (int) Math.min(len, left));
+			}
+			used(opened);
+			if (n < 0)
+				throw new EOFException("Unexpected end of " + file);
+			position += n;
+			left -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skip = Math.max(0, Math.min(n, left));
+			position += skip;
+			left -= skip;
+			return skip;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(left, Integer.MAX_VALUE);
+		}
+	}
+
+	/*
+	 * Verifies the size and crc of the data of an entry when the end of the
+	 * data is reached
+	 */
+	static class VerifyingInputStream extends FilterInputStream {
+		final Entry	entry;
+		final CRC32	crc	= new CRC32();
+		long		size;
+
+		VerifyingInputStream(InputStream in, Entry entry) {
+			super(in);
+			this.entry = entry;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				crc.update(b, off, n);
+				size += n;
+			} else if (n < 0) {
+				if (size != entry.size)
+					throw new ZipException("Invalid entry size for " + entry.name + " (expected " + entry.size
+							+ " but got " + size + " bytes)");
+				if (crc.getValue() != entry.crc)
+					throw new ZipException("Invalid entry crc for " + entry.name + " (expected 0x"
+							+ Long.toHexString(entry.crc) + " but got 0x" + Long.toHexString(crc.getValue()) + ")");
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] b = new byte[(int) Math.min(Math.max(n, 0), BUFFER_SIZE)];
+			long skipped = 0;
+			while (skipped < n) {
+				int r = read(b, 0, (int) Math.min(b.length, n - skipped));
+				if (r < 0)
+					break;
+				skipped += r;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/*
+	 * Inflates a deflated entry. The inflater needs an extra dummy byte at the
+	 * end of the data, just like in ZipFile.
+	 */
+	static class EntryInputStream extends InflaterInputStream {
+		final long	size;
+		boolean		eof;
+		boolean		closed;
+
+		EntryInputStream(InputStream in, Entry entry) {
+			super(in, new Inflater(true), (int) Math.max(1, Math.min(entry.compressedSize + 1, BUFFER_SIZE)));
+			this.size = entry.size;
+		}
+
+		@Override
+		protected void fill() throws IOException {
+			if (eof)
+				throw new EOFException("Unexpected end of ZLIB input stream");
+			len = in.read(buf, 0, buf.length);
+			if (len == -1) {
+				buf[0] = 0;
+				len = 1;
+				eof = true;
+			}
+			inf.setInput(buf, 0, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (closed)
+				return 0;
+			long available = size - inf.getBytesWritten();
+			return available > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) available;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				super.close();
+				inf.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package aQute.lib.zip;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Limits the number of open file handles of a set of {@link ZipArchive}s. The
+ * archives report when they open their file, when more than the maximum number
+ * of archives have an open file the handles of the least recently used
+ * archives are released. A released archive opens its file again when it is
+ * used. Archives that are pinned keep their handle, they can make the number
+ * of open handles exceed the maximum.
+ */
+public class ZipHandles {
+	final int				max;
+	final Set<ZipArchive>	open	= new LinkedHashSet<ZipArchive>();
+
+	public ZipHandles(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("At least one handle must be allowed " + max);
+		this.max = max;
+	}
+
+	/**
+	 * Answer the maximum number of open handles.
+	 */
+	public int getMax() {
+		return max;
+	}
+
+	/**
+	 * Answer the number of archives that can have an open handle.
+	 */
+	public synchronized int size() {
+		return open.size();
+	}
+
+	/*
+	 * Called when an archive opened its file. The archives only record when
+	 * they were last used, the least recently used are found here when there
+	 * are too many open handles. The handles are released outside the lock,
+	 * releasing waits for reads of the archive that are in progress.
+	 */
+	void opened(ZipArchive archive) {
+		synchronized (this) {
+			open.add(archive);
+		}
+		trim(archive);
+	}
+
+	/*
+	 * Release the handles of the least recently used archives that are not
+	 * pinned, except for the archive that is being used
+	 */
+	void trim(ZipArchive using) {
+		List<ZipArchive> evicted;
+		synchronized (this) {
+			if (open.size() <= max)
+				return;
+
+			// the times can change while we look, so they are read once
+			ZipArchive[] archives = open.toArray(new ZipArchive[open.size()]);
+			long[] used = new long[archives.length];
+			for (int i = 0; i < archives.length; i++)
+				used[i] = archives[i] == using || archives[i].isPinned() ? Long.MAX_VALUE : archives[i].lastUsed;
+
+			evicted = new ArrayList<ZipArchive>();
+			for (int n = open.size() - max; evicted.size() < n;) {
+				int eldest = -1;
+				for (int i = 0; i < archives.length; i++)
+					if (used[i] != Long.MAX_VALUE && (eldest < 0 || used[i] < used[eldest]))
+						eldest = i;
+				if (eldest < 0)
+					break;
+				evicted.add(archives[eldest]);
+				used[eldest] = Long.MAX_VALUE;
+			}
+			open.removeAll(evicted);
+		}
+		for (ZipArchive eldest : evicted) {
+			try {
+				if (!eldest.evict())
+					synchronized (this) {
+						// pinned in the mean time
+						open.add(eldest);
+					}
+			}
+			catch (IOException e) {
+				// ignore, it is opened again when needed
+			}
+		}
+	}
+
+	synchronized void remove(ZipArchive archive) {
+		open.remove(archive);
+	}
+}
@@ -13,7 +13,10 @@ public class ZipUtil {
 	static TimeZone tz = TimeZone.getDefault();
 
 	public static long getModifiedTime(ZipEntry entry) throws IOException {
-		long time = entry.getTime();
+		return getModifiedTime(entry.getTime());
+	}
+
+	public static long getModifiedTime(long time) {
 		time += tz.getOffset(time);
 		return Math.min(time, System.currentTimeMillis() - 1);
 	}
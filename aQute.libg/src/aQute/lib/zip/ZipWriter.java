@@ -0,0 +1,648 @@
+package aQute.lib.zip;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import aQute.lib.io.*;
+
+/**
+ * Writes a zip file. It is used like a {@link ZipOutputStream} but it can also
+ * copy an entry that is already compressed, for example an entry of another
+ * zip file, without inflating and deflating it again.
+ * <p>
+ * The zip file is byte for byte the same as the zip file a ZipOutputStream, or
+ * a {@link java.util.jar.JarOutputStream} when the writer is created for a
+ * jar, writes for the same entries. Deflated entries are streamed and followed
+ * by a data descriptor, also when they are copied. Stored entries must have
+ * their size and crc set before they are written. A modification time that
+ * cannot be represented as a DOS time is stored in an extended timestamp.
+ * Only a time stamp in the extra field of an entry is written as is, a
+ * ZipOutputStream moves it in front of the extra field.
+ * <p>
+ * Entries whose data is available up front can be added with
+ * {@link #putEntry(ZipEntry, byte[])}. When the writer has an executor these
+ * entries are deflated in parallel and written in order. The data is always
+ * fed to the deflater in blocks of the same size, so the output does not
+ * depend on the parallelism nor on how the data was written.
+ */
+public class ZipWriter extends OutputStream {
+	static final int	BUFFER_SIZE		= IOConstants.PAGE_SIZE * 16;
+	static final int	BLOCK_SIZE		= IOConstants.PAGE_SIZE * 16;
+
+	static final int	LOCSIG			= 0x04034b50;
+	static final int	EXTSIG			= 0x08074b50;
+	static final int	CENSIG			= 0x02014b50;
+	static final int	ENDSIG			= 0x06054b50;
+	static final int	ZIP64_ENDSIG	= 0x06064b50;
+	static final int	ZIP64_LOCSIG	= 0x07064b50;
+	static final int	ZIP64_EXTRA		= 0x0001;
+	static final int	NTFS_EXTRA		= 0x000a;
+	static final int	EXTT_EXTRA		= 0x5455;
+	static final int	JAR_MAGIC		= 0xCAFE;
+
+	static final int	EFS				= 0x0800;		// names are UTF-8
+	static final int	DESCRIPTOR		= 0x0008;		// sizes follow the data
+	static final long	MAX32			= 0xFFFFFFFFL;
+	static final int	MAX16			= 0xFFFF;
+	static final byte[]	EMPTY			= new byte[0];
+
+	//
+	// Like in a ZipEntry, times before 1980 and after the upper bound are
+	// also stored in an extended timestamp, or as NTFS time when they do not
+	// fit in a unix time
+	//
+	static final long	DOSTIME_BEFORE_1980				= (1 << 21) | (1 << 16);
+	static final long	UPPER_DOSTIME_BOUND				= 128L * 365 * 24 * 60 * 60 * 1000;
+	static final long	UPPER_UNIXTIME_BOUND			= 0x7fffffff;
+	static final long	WINDOWS_EPOCH_IN_MICROSECONDS	= -11644473600000000L;
+	static final long	WINDOWS_TIME_NOT_AVAILABLE		= Long.MIN_VALUE;
+
+	static class Header {
+		byte[]	name;
+		byte[]	extra;
+		int		flags;
+		int		method;
+		long	time;
+		long	mtime	= -1;	// ms, only when time cannot hold it
+		long	crc;
+		long	csize;
+		long	size;
+		long	offset;
+	}
+
+	/*
+	 * Deflates the data of an entry. The data is fed to the deflater in blocks
+	 * of a fixed size so the compressed data only depends on the data.
+	 */
+	static class Compressor {
+		final Deflater	deflater	= new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final CRC32		crc			= new CRC32();
+		final byte[]	block		= new byte[BLOCK_SIZE];
+		final byte[]	buffer		= new byte[BUFFER_SIZE];
+		int				fill;
+		long			size;
+
+		void write(byte[] b, int off, int len, OutputStream out) throws IOException {
+			crc.update(b, off, len);
+			size += len;
+			while (len > 0) {
+				int n = Math.min(len, block.length - fill);
+				System.arraycopy(b, off, block, fill, n);
+				fill += n;
+				off += n;
+				len -= n;
+				if (fill == block.length)
+					deflate(out);
+			}
+		}
+
+		void finish(OutputStream out) throws IOException {
+			if (fill > 0)
+				deflate(out);
+			deflater.finish();
+			while (!deflater.finished())
+				drain(out);
+		}
+
+		void reset() {
+			deflater.reset();
+			crc.reset();
+			fill = 0;
+			size = 0;
+		}
+
+		private void deflate(OutputStream out) throws IOException {
+			deflater.setInput(block, 0, fill);
+			while (!deflater.needsInput())
+				drain(out);
+			fill = 0;
+		}
+
+		private void drain(OutputStream out) throws IOException {
+			int n = deflater.deflate(buffer, 0, buffer.length);
+			if (n > 0)
+				out.write(buffer, 0, n);
+		}
+	}
+
+	/*
+	 * An entry that is waiting to be written
+	 */
+	static class Pending {
+		final Header			header;
+		final Future<byte[]>	data;
+
+		Pending(Header header, Future<byte[]> data) {
+			this.header = header;
+			this.data = data;
+		}
+	}
+
+	/*
+	 * Writes the deflated data of the current entry to the zip file
+	 */
+	class Sink extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			write0(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			write0(b, off, len);
+		}
+	}
+
+	final OutputStream			out;
+	final boolean				jar;
+	final List<Header>			headers		= new ArrayList<Header>();
+	final Set<String>			names		= new HashSet<String>();
+	final Compressor			compressor	= new Compressor();
+	final Queue<Compressor>		compressors	= new ConcurrentLinkedQueue<Compressor>();
+	final Deque<Pending>		pending		= new ArrayDeque<Pending>();
+	final CRC32					crc			= new CRC32();
+	final byte[]				buffer		= new byte[BUFFER_SIZE];
+	final byte[]				single		= new byte[1];
+	final OutputStream			sink		= new Sink();
+	Executor					executor;
+	int							parallelism	= 1;
+	long						written;
+	Header						current;
+	long						size;
+	boolean						finished;
+
+	public ZipWriter(OutputStream out) {
+		this(out, false);
+	}
+
+	/**
+	 * Create a writer, for a jar the first entry gets the extra field that
+	 * marks the file as a jar, like with a
+	 * {@link java.util.jar.JarOutputStream}.
+	 */
+	public ZipWriter(OutputStream out, boolean jar) {
+		this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+		this.jar = jar;
+	}
+
+	/**
+	 * Deflate the entries added with {@link #putEntry(ZipEntry, byte[])} on the
+	 * executor, with at most the given number of entries in parallel.
+	 */
+	public void setParallelism(Executor executor, int parallelism) {
+		this.executor = parallelism > 1 ? executor : null;
+		this.parallelism = Math.max(parallelism, 1);
+	}
+
+	/**
+	 * Start a new entry. The data of the entry is written to this stream. If
+	 * the method of the entry is not set the entry is deflated.
+	 */
+	public void putNextEntry(ZipEntry entry) throws IOException {
+		closeEntry();
+		flushPending(0);
+		Header h = header(entry);
+		if (h.method == ZipEntry.STORED) {
+			if (entry.getSize() < 0 || entry.getCrc() < 0)
+				throw new ZipException("STORED entry missing size or crc: " + entry.getName());
+			h.size = h.csize = entry.getSize();
+			h.crc = entry.getCrc();
+		} else {
+			h.flags |= DESCRIPTOR;
+		}
+		writeLocal(h);
+		current = h;
+		crc.reset();
+		size = 0;
+	}
+
+	/**
+	 * Add an entry with all its data. The entry is written exactly as if its
+	 * data was written after {@link #putNextEntry(ZipEntry)}, but with an
+	 * executor a deflated entry is compressed in the background.
+	 */
+	public void putEntry(ZipEntry entry, final byte[] data) throws IOException {
+		if (executor == null || entry.getMethod() == ZipEntry.STORED) {
+			putNextEntry(entry);
+			write(data, 0, data.length);
+			closeEntry();
+			return;
+		}
+
+		closeEntry();
+		final Header h = header(entry);
+		h.flags |= DESCRIPTOR;
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				Compressor c = compressors.poll();
+				if (c == null)
+					c = new Compressor();
+				try {
+					ByteArrayOutputStream bout = new ByteArrayOutputStream(data.length / 2 + 64);
+					c.write(data, 0, data.length, bout);
+					c.finish(bout);
+					h.crc = c.crc.getValue();
+					h.size = c.size;
+					h.csize = c.deflater.getBytesWritten();
+					return bout.toByteArray();
+				}
+				finally {
+					c.reset();
+					compressors.add(c);
+				}
+			}
+		});
+		flushPending(parallelism * 2 - 1);
+		pending.add(new Pending(h, task));
+		executor.execute(task);
+	}
+
+	/**
+	 * Write an entry whose data is already compressed with the method of the
+	 * entry. The entry must have its crc, size and compressed size set, the
+	 * compressed data is copied as is from the input stream.
+	 */
+	public void putRawEntry(ZipEntry entry, InputStream compressed) throws IOException {
+		closeEntry();
+		flushPending(0);
+		Header h = header(entry);
+		if (entry.getCrc() < 0 || entry.getSize() < 0 || entry.getCompressedSize() < 0)
+			throw new ZipException("Raw entry missing size or crc: " + entry.getName());
+		h.crc = entry.getCrc();
+		h.size = entry.getSize();
+		h.csize = entry.getCompressedSize();
+		if (h.method == ZipEntry.DEFLATED)
+			h.flags |= DESCRIPTOR;
+		writeLocal(h);
+
+		long left = h.csize;
+		while (left > 0) {
+			int n = compressed.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (n < 0)
+				throw new EOFException("Raw entry " + entry.getName() + " is missing " + left + " bytes");
+			write0(buffer, 0, n);
+			left -= n;
+		}
+		if (h.method == ZipEntry.DEFLATED)
+			writeDescriptor(h);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		single[0] = (byte) b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (current == null)
+			throw new ZipException("no current ZIP entry");
+		if (len == 0)
+			return;
+
+		if (current.method == ZipEntry.STORED) {
+			crc.update(b, off, len);
+			size += len;
+			write0(b, off, len);
+			return;
+		}
+
+		compressor.write(b, off, len, sink);
+	}
+
+	/**
+	 * Finish the current entry, if any.
+	 */
+	public void closeEntry() throws IOException {
+		Header h = current;
+		if (h == null)
+			return;
+		current = null;
+
+		if (h.method == ZipEntry.STORED) {
+			if (h.size != size || h.crc != crc.getValue())
+				throw new ZipException("invalid size or crc for STORED entry " + new String(h.name, "UTF-8"));
+			return;
+		}
+
+		compressor.finish(sink);
+		h.crc = compressor.crc.getValue();
+		h.size = compressor.size;
+		h.csize = compressor.deflater.getBytesWritten();
+		compressor.reset();
+		writeDescriptor(h);
+	}
+
+	/**
+	 * Append the entries written so far to another zip writer. The input
+	 * stream must provide the bytes the other writer has written, for example
+	 * by reading back its file. The entries do not depend on their position so
+	 * they are copied as is, only the central directory of this writer is
+	 * adjusted. This makes it possible to write an entry that depends on the
+	 * other entries, like a manifest with their digests, before them. The
+	 * other writer is finished without a central directory.
+	 */
+	public void append(ZipWriter entries, InputStream in) throws IOException {
+		closeEntry();
+		flushPending(0);
+		if (finished)
+			throw new ZipException("zip file already finished");
+
+		entries.closeEntry();
+		entries.flushPending(0);
+		entries.end();
+		entries.flush();
+		for (String name : entries.names) {
+			if (!names.add(name))
+				throw new ZipException("duplicate entry: " + name);
+		}
+
+		long base = written;
+		long left = entries.written;
+		while (left > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (n < 0)
+				throw new EOFException("Appended entries are missing " + left + " bytes");
+			write0(buffer, 0, n);
+			left -= n;
+		}
+		for (Header h : entries.headers) {
+			h.offset += base;
+			headers.add(h);
+		}
+	}
+
+	/**
+	 * Write the central directory. The underlying stream is flushed but not
+	 * closed.
+	 */
+	public void finish() throws IOException {
+		if (finished)
+			return;
+		closeEntry();
+		flushPending(0);
+		end();
+
+		long start = written;
+		for (Header h : headers)
+			writeCentral(h);
+		long length = written - start;
+
+		int count = headers.size();
+		if (count >= MAX16 || start >= MAX32 || length >= MAX32) {
+			long end = written;
+			writeInt(ZIP64_ENDSIG);
+			writeLong(44);
+			writeShort(45);
+			writeShort(45);
+			writeInt(0);
+			writeInt(0);
+			writeLong(count);
+			writeLong(count);
+			writeLong(length);
+			writeLong(start);
+
+			writeInt(ZIP64_LOCSIG);
+			writeInt(0);
+			writeLong(end);
+			writeInt(1);
+		}
+
+		writeInt(ENDSIG);
+		writeShort(0);
+		writeShort(0);
+		writeShort(Math.min(count, MAX16));
+		writeShort(Math.min(count, MAX16));
+		writeInt(Math.min(length, MAX32));
+		writeInt(Math.min(start, MAX32));
+		writeShort(0);
+		out.flush();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private void end() {
+		finished = true;
+		compressor.deflater.end();
+		for (Compressor c : compressors)
+			c.deflater.end();
+	}
+
+	/*
+	 * Write pending entries, in order, until at most max are left
+	 */
+	private void flushPending(int max) throws IOException {
+		while (pending.size() > max) {
+			Pending p = pending.remove();
+			byte[] data;
+			try {
+				data = p.data.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while compressing " + new String(p.header.name, "UTF-8"));
+			}
+			catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				throw new IOException("Compressing " + new String(p.header.name, "UTF-8") + " failed", cause);
+			}
+			writeLocal(p.header);
+			write0(data, 0, data.length);
+			writeDescriptor(p.header);
+		}
+	}
+
+	private Header header(ZipEntry entry) throws IOException {
+		if (finished)
+			throw new ZipException("zip file already finished");
+		if (!names.add(entry.getName()))
+			throw new ZipException("duplicate entry: " + entry.getName());
+
+		Header h = new Header();
+		h.name = entry.getName().getBytes("UTF-8");
+		h.extra = entry.getExtra() == null ? EMPTY : entry.getExtra();
+		if (jar && headers.isEmpty() && !hasMagic(h.extra)) {
+			byte[] extra = new byte[h.extra.length + 4];
+			extra[0] = (byte) JAR_MAGIC;
+			extra[1] = (byte) (JAR_MAGIC >> 8);
+			System.arraycopy(h.extra, 0, extra, 4, h.extra.length);
+			h.extra = extra;
+		}
+		h.method = entry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED;
+		h.flags = EFS;
+		long time = entry.getTime();
+		if (time == -1)
+			time = System.currentTimeMillis();
+		h.time = toDosTime(time);
+		if (h.time == DOSTIME_BEFORE_1980 || time > UPPER_DOSTIME_BOUND)
+			h.mtime = time;
+		headers.add(h);
+		return h;
+	}
+
+	private static boolean hasMagic(byte[] extra) {
+		for (int i = 0; i + 4 <= extra.length; i += 4 + ((extra[i + 2] & 0xFF) | (extra[i + 3] & 0xFF) << 8)) {
+			if (((extra[i] & 0xFF) | (extra[i + 1] & 0xFF) << 8) == JAR_MAGIC)
+				return true;
+		}
+		return false;
+	}
+
+	private void writeLocal(Header h) throws IOException {
+		h.offset = written;
+		writeInt(LOCSIG);
+		writeShort(version(h));
+		writeShort(h.flags);
+		writeShort(h.method);
+		writeInt(h.time);
+		if ((h.flags & DESCRIPTOR) != 0) {
+			writeInt(0);
+			writeInt(0);
+			writeInt(0);
+		} else {
+			writeInt(h.crc);
+			writeInt(h.csize);
+			writeInt(h.size);
+		}
+		writeShort(h.name.length);
+		writeShort(h.extra.length + timeLength(h));
+		write0(h.name, 0, h.name.length);
+		writeTime(h, true);
+		write0(h.extra, 0, h.extra.length);
+	}
+
+	private void writeDescriptor(Header h) throws IOException {
+		if (h.size >= MAX32 || h.csize >= MAX32)
+			throw new ZipException("entry too large for a zip file: " + new String(h.name, "UTF-8"));
+
+		writeInt(EXTSIG);
+		writeInt(h.crc);
+		writeInt(h.csize);
+		writeInt(h.size);
+	}
+
+	private void writeCentral(Header h) throws IOException {
+		boolean zip64 = h.offset >= MAX32;
+		int version = zip64 ? 45 : version(h);
+		writeInt(CENSIG);
+		writeShort(version);
+		writeShort(version);
+		writeShort(h.flags);
+		writeShort(h.method);
+		writeInt(h.time);
+		writeInt(h.crc);
+		writeInt(h.csize);
+		writeInt(h.size);
+		writeShort(h.name.length);
+		writeShort(h.extra.length + (zip64 ? 12 : 0) + timeLength(h));
+		writeShort(0); // comment
+		writeShort(0); // disk
+		writeShort(0); // internal attributes
+		writeInt(0); // external attributes
+		writeInt(zip64 ? MAX32 : h.offset);
+		write0(h.name, 0, h.name.length);
+		if (zip64) {
+			writeShort(ZIP64_EXTRA);
+			writeShort(8);
+			writeLong(h.offset);
+		}
+		writeTime(h, false);
+		write0(h.extra, 0, h.extra.length);
+	}
+
+	/*
+	 * A time that is not a DOS time is written like a ZipOutputStream does, in
+	 * an extended timestamp or, when it does not fit in it, as NTFS time
+	 */
+	private static int timeLength(Header h) {
+		if (h.mtime == -1)
+			return 0;
+		return isNtfs(h) ? 36 : 9;
+	}
+
+	private static boolean isNtfs(Header h) {
+		return h.mtime / 1000 > UPPER_UNIXTIME_BOUND;
+	}
+
+	private void writeTime(Header h, boolean local) throws IOException {
+		if (h.mtime == -1)
+			return;
+
+		if (isNtfs(h)) {
+			writeShort(NTFS_EXTRA);
+			writeShort(32);
+			writeInt(0);
+			writeShort(0x0001);
+			writeShort(24);
+			writeLong((h.mtime * 1000 - WINDOWS_EPOCH_IN_MICROSECONDS) * 10);
+			writeLong(WINDOWS_TIME_NOT_AVAILABLE);
+			writeLong(WINDOWS_TIME_NOT_AVAILABLE);
+		} else {
+			writeShort(EXTT_EXTRA);
+			writeShort(5);
+			out.write(1); // modification time
+			written++;
+			writeInt(h.mtime / 1000);
+		}
+	}
+
+	private static int version(Header h) {
+		return h.method == ZipEntry.DEFLATED ? 20 : 10;
+	}
+
+	void write0(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		written += len;
+	}
+
+	private void writeShort(int v) throws IOException {
+		out.write(v & 0xFF);
+		out.write((v >>> 8) & 0xFF);
+		written += 2;
+	}
+
+	private void writeInt(long v) throws IOException {
+		writeShort((int) (v & 0xFFFF));
+		writeShort((int) ((v >>> 16) & 0xFFFF));
+	}
+
+	private void writeLong(long v) throws IOException {
+		writeInt(v & MAX32);
+		writeInt(v >>> 32);
+	}
+
+	/*
+	 * The DOS time is in the local time zone, with a two second resolution.
+	 * Times before 1980 cannot be represented, later times than the DOS time
+	 * can hold are truncated like in a ZipEntry. These times are also written
+	 * in an extended timestamp.
+	 */
+	static long toDosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (time < 0 || year < 1980)
+			return DOSTIME_BEFORE_1980;
+		return (((year - 1980L) << 25) | ((c.get(Calendar.MONTH) + 1L) << 21) | (c.get(Calendar.DAY_OF_MONTH) << 16)
+				| (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1))
+				& MAX32;
+	}
+}
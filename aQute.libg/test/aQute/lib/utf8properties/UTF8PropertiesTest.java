@@ -5,6 +5,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Properties;
 
 import junit.framework.TestCase;
@@ -75,4 +77,42 @@ public class UTF8PropertiesTest extends TestCase {
 		assertEquals(p, p1);
 	}
 
+	/**
+	 * Every change must change the stamp
+	 */
+	public void testStamp() {
+		UTF8Properties p = new UTF8Properties();
+		p.put("a", "1");
+		p.put("b", "2");
+		long stamp = p.stamp();
+
+		assertEquals("1", p.putIfAbsent("a", "3"));
+		assertNull(p.putIfAbsent("c", "3"));
+		assertTrue(stamp < (stamp = p.stamp()));
+		assertTrue(p.replace("c", "3", "4"));
+		assertTrue(stamp < (stamp = p.stamp()));
+		assertEquals("4", p.replace("c", "5"));
+		assertTrue(stamp < (stamp = p.stamp()));
+		assertTrue(p.remove("c", "5"));
+		assertTrue(stamp < (stamp = p.stamp()));
+
+		p.entrySet().iterator().next().setValue("6");
+		assertTrue(stamp < (stamp = p.stamp()));
+		Iterator<Object> i = p.keySet().iterator();
+		i.next();
+		i.remove();
+		assertTrue(stamp < (stamp = p.stamp()));
+		p.values().clear();
+		assertTrue(stamp < (stamp = p.stamp()));
+		assertTrue(p.isEmpty());
+
+		p.put("a", "1");
+		stamp = p.stamp();
+		UTF8Properties clone = (UTF8Properties) p.clone();
+		assertTrue(stamp < clone.stamp());
+		assertEquals(p, clone);
+		assertEquals(p.entrySet(), clone.entrySet());
+		assertEquals(p.keySet(), Collections.singleton("a"));
+	}
+
 }
@@ -0,0 +1,287 @@
+package aQute.lib.zip;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import junit.framework.*;
+
+public class ZipArchiveTest extends TestCase {
+	File tmp;
+
+	@Override
+	protected void setUp() throws Exception {
+		tmp = File.createTempFile("ziparchive", ".zip");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		tmp.delete();
+	}
+
+	/**
+	 * Write a zip with a prepended launch script and read it back, also with
+	 * ZipFile
+	 */
+	public void testWriteAndRead() throws Exception {
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write("#!/bin/sh\nexec java -jar $0\n".getBytes("UTF-8"));
+			ZipWriter zout = new ZipWriter(out);
+
+			ZipEntry dir = new ZipEntry("a/");
+			dir.setMethod(ZipEntry.STORED);
+			dir.setSize(0);
+			dir.setCrc(0);
+			zout.putNextEntry(dir);
+
+			for (int i = 0; i < 100; i++) {
+				zout.putNextEntry(new ZipEntry("a/" + i + ".txt"));
+				zout.write(content(i));
+			}
+			zout.putNextEntry(new ZipEntry("b/été.txt"));
+			zout.write(content(1000));
+			zout.finish();
+		}
+		finally {
+			out.close();
+		}
+
+		ZipFile zf = new ZipFile(tmp);
+		try {
+			assertEquals(102, zf.size());
+			assertTrue(Arrays.equals(content(42), read(zf.getInputStream(zf.getEntry("a/42.txt")))));
+		}
+		finally {
+			zf.close();
+		}
+
+		ZipArchive archive = new ZipArchive(tmp);
+		try {
+			assertEquals(102, archive.size());
+			assertNull(archive.getEntry("a/100.txt"));
+			assertNull(archive.getEntry("a"));
+			assertTrue(archive.getEntry("a/").isDirectory());
+
+			ZipArchive.Entry entry = archive.getEntry("a/42.txt");
+			assertNotNull(entry);
+			assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+			assertEquals(content(42).length, entry.getSize());
+			assertTrue(Arrays.equals(content(42), read(archive.openInputStream(entry))));
+
+			entry = archive.getEntry("b/été.txt");
+			assertNotNull(entry);
+			assertTrue(Arrays.equals(content(1000), read(archive.openInputStream(entry))));
+
+			List<ZipArchive.Entry> entries = archive.getEntries();
+			assertEquals(102, entries.size());
+			assertEquals("a/", entries.get(0).getName());
+			assertEquals("a/0.txt", entries.get(1).getName());
+			assertEquals("b/été.txt", entries.get(101).getName());
+		}
+		finally {
+			archive.close();
+		}
+	}
+
+	/**
+	 * The compressed data of an entry can be copied to another zip
+	 */
+	public void testCopyRaw() throws Exception {
+		ZipWriter zout = new ZipWriter(new FileOutputStream(tmp));
+		try {
+			zout.putNextEntry(new ZipEntry("x.txt"));
+			zout.write(content(7));
+		}
+		finally {
+			zout.close();
+		}
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ZipArchive archive = new ZipArchive(tmp);
+		try {
+			ZipArchive.Entry entry = archive.getEntry("x.txt");
+			assertTrue(entry.isCopyable());
+			ZipEntry ze = new ZipEntry("y.txt");
+			ze.setMethod(entry.getMethod());
+			ze.setCrc(entry.getCrc());
+			ze.setSize(entry.getSize());
+			ze.setCompressedSize(entry.getCompressedSize());
+
+			ZipWriter copy = new ZipWriter(bout);
+			copy.putRawEntry(ze, archive.openRawInputStream(entry));
+			copy.finish();
+		}
+		finally {
+			archive.close();
+		}
+
+		ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(bout.toByteArray()));
+		ZipEntry ze = zin.getNextEntry();
+		assertEquals("y.txt", ze.getName());
+		assertTrue(Arrays.equals(content(7), read(zin)));
+		assertNull(zin.getNextEntry());
+	}
+
+	/**
+	 * A released handle is opened again when the archive is read, the shared
+	 * handles only keep the most recently used and the pinned archives open
+	 */
+	public void testHandles() throws Exception {
+		ZipWriter zout = new ZipWriter(new FileOutputStream(tmp));
+		try {
+			zout.putNextEntry(new ZipEntry("x.txt"));
+			zout.write(content(7));
+		}
+		finally {
+			zout.close();
+		}
+
+		ZipHandles handles = new ZipHandles(1);
+		ZipArchive a = new ZipArchive(tmp);
+		ZipArchive b = new ZipArchive(tmp);
+		try {
+			a.setHandles(handles);
+			b.setHandles(handles);
+			assertFalse(a.isOpen());
+			assertTrue(b.isOpen());
+
+			assertTrue(Arrays.equals(content(7), read(a.openInputStream(a.getEntry("x.txt")))));
+			assertTrue(a.isOpen());
+			assertFalse(b.isOpen());
+			assertEquals(1, handles.size());
+
+			assertTrue(a.release());
+			assertFalse(a.release());
+			assertTrue(Arrays.equals(content(7), read(a.openInputStream(a.getEntry("x.txt")))));
+
+			// a pinned archive keeps its handle
+			a.pin();
+			assertTrue(Arrays.equals(content(7), read(b.openInputStream(b.getEntry("x.txt")))));
+			assertTrue(a.isOpen());
+			assertTrue(b.isOpen());
+			assertEquals(2, handles.size());
+			a.unpin();
+			assertFalse(a.isOpen());
+			assertTrue(b.isOpen());
+			assertEquals(1, handles.size());
+			assertTrue(Arrays.equals(content(7), read(a.openInputStream(a.getEntry("x.txt")))));
+
+			a.close();
+			assertEquals(0, handles.size());
+			try {
+				a.openInputStream(a.getEntry("x.txt"));
+				fail("closed");
+			}
+			catch (IOException e) {
+				// expected
+			}
+		}
+		finally {
+			a.close();
+			b.close();
+		}
+	}
+
+	/**
+	 * When a name occurs more than once, the last entry wins like with a
+	 * ZipFile
+	 */
+	public void testDuplicateLastWins() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ZipWriter zout = new ZipWriter(bout);
+		zout.putNextEntry(new ZipEntry("a.txt"));
+		zout.write(content(1));
+		zout.putNextEntry(new ZipEntry("b.txt"));
+		zout.write(content(2));
+		zout.close();
+		write(tmp, replace(bout.toByteArray(), "b.txt", "a.txt"));
+
+		ZipArchive archive = new ZipArchive(tmp);
+		try {
+			assertTrue(Arrays.equals(content(2), read(archive.openInputStream(archive.getEntry("a.txt")))));
+			List<ZipArchive.Entry> entries = archive.getEntries();
+			assertEquals(1, entries.size());
+			assertTrue(Arrays.equals(content(2), read(archive.openInputStream(entries.get(0)))));
+		}
+		finally {
+			archive.close();
+		}
+	}
+
+	/**
+	 * The crc of the data is verified when all data is read
+	 */
+	public void testInvalidCrc() throws Exception {
+		byte[] data = content(3);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ZipWriter zout = new ZipWriter(bout);
+		ZipEntry ze = new ZipEntry("x.txt");
+		ze.setMethod(ZipEntry.STORED);
+		ze.setSize(data.length);
+		ze.setCrc(crc.getValue());
+		zout.putNextEntry(ze);
+		zout.write(data);
+		zout.close();
+		write(tmp, replace(bout.toByteArray(), "line 3 1", "line 3 X"));
+
+		ZipArchive archive = new ZipArchive(tmp);
+		try {
+			read(archive.openInputStream(archive.getEntry("x.txt")));
+			fail("expected a ZipException");
+		}
+		catch (ZipException e) {
+			assertTrue(e.getMessage().contains("crc"));
+		}
+		finally {
+			archive.close();
+		}
+	}
+
+	static byte[] replace(byte[] data, String from, String to) throws UnsupportedEncodingException {
+		String s = new String(data, "ISO-8859-1");
+		assertTrue(s.contains(from));
+		return s.replace(from, to).getBytes("ISO-8859-1");
+	}
+
+	static void write(File file, byte[] data) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	public void testNotAZip() throws Exception {
+		OutputStream out = new FileOutputStream(tmp);
+		out.write("not a zip file".getBytes("UTF-8"));
+		out.close();
+		try {
+			new ZipArchive(tmp).close();
+			fail("expected a ZipException");
+		}
+		catch (ZipException e) {
+			// expected
+		}
+	}
+
+	static byte[] content(int n) throws UnsupportedEncodingException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i <= n % 50; i++)
+			sb.append("line ").append(n).append(' ').append(i).append('\n');
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		byte[] buffer = new byte[256];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			bout.write(buffer, 0, n);
+		return bout.toByteArray();
+	}
+}
@@ -0,0 +1,282 @@
+package aQute.lib.zip;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.*;
+import java.util.zip.*;
+
+import junit.framework.*;
+
+public class ZipWriterTest extends TestCase {
+	static final long TIME = 1400000000000L;
+
+	/**
+	 * Deflating in parallel must create exactly the same zip file
+	 */
+	public void testParallelIsIdentical() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			byte[] serial = write(null, 1, false);
+			assertTrue(Arrays.equals(serial, write(null, 1, true)));
+			assertTrue(Arrays.equals(serial, write(executor, 4, true)));
+			assertTrue(Arrays.equals(serial, write(executor, 2, true)));
+
+			ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(serial));
+			for (int i = 0; i < 50; i++) {
+				ZipEntry ze = zin.getNextEntry();
+				assertEquals("e/" + i, ze.getName());
+				assertTrue(Arrays.equals(content(i), ZipArchiveTest.read(zin)));
+				if (i == 25)
+					assertEquals("stored", zin.getNextEntry().getName());
+			}
+			assertNull(zin.getNextEntry());
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Entries written to another writer can be appended after an entry that
+	 * was written later
+	 */
+	public void testAppend() throws Exception {
+		File tmp = File.createTempFile("zipwriter", ".zip");
+		try {
+			ZipWriter entries = new ZipWriter(new FileOutputStream(tmp));
+			try {
+				for (int i = 1; i < 10; i++) {
+					entries.putNextEntry(new ZipEntry("e/" + i));
+					entries.write(content(i));
+				}
+
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				ZipWriter zout = new ZipWriter(bout);
+				zout.putNextEntry(new ZipEntry("first"));
+				zout.write(content(20));
+				InputStream in = new FileInputStream(tmp);
+				try {
+					zout.append(entries, in);
+				}
+				finally {
+					in.close();
+				}
+				zout.finish();
+
+				ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(bout.toByteArray()));
+				assertEquals("first", zin.getNextEntry().getName());
+				assertTrue(Arrays.equals(content(20), ZipArchiveTest.read(zin)));
+				for (int i = 1; i < 10; i++) {
+					assertEquals("e/" + i, zin.getNextEntry().getName());
+					assertTrue(Arrays.equals(content(i), ZipArchiveTest.read(zin)));
+				}
+				assertNull(zin.getNextEntry());
+
+				File copy = File.createTempFile("zipwriter", ".zip");
+				try {
+					OutputStream out = new FileOutputStream(copy);
+					out.write(bout.toByteArray());
+					out.close();
+					ZipArchive archive = new ZipArchive(copy);
+					try {
+						assertEquals(10, archive.size());
+						ZipArchive.Entry entry = archive.getEntry("e/7");
+						assertTrue(Arrays.equals(content(7), ZipArchiveTest.read(archive.openInputStream(entry))));
+					}
+					finally {
+						archive.close();
+					}
+				}
+				finally {
+					copy.delete();
+				}
+			}
+			finally {
+				entries.close();
+			}
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * The writer must write exactly the same bytes as a ZipOutputStream and a
+	 * JarOutputStream, also for times that are not DOS times
+	 */
+	public void testSameAsZipOutputStream() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (boolean jar : new boolean[] {
+					false, true
+			}) {
+				ByteArrayOutputStream expected = new ByteArrayOutputStream();
+				ZipOutputStream zout = jar ? new JarOutputStream(expected) : new ZipOutputStream(expected);
+				writeEntries(zout, zout);
+				zout.close();
+
+				ByteArrayOutputStream actual = new ByteArrayOutputStream();
+				ZipWriter zw = new ZipWriter(actual, jar);
+				writeEntries(zw, null);
+				zw.close();
+				assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+
+				actual = new ByteArrayOutputStream();
+				zw = new ZipWriter(actual, jar);
+				zw.setParallelism(executor, 4);
+				writeEntries(zw, null);
+				zw.close();
+				assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Copying the deflated entries of a zip file written by a ZipOutputStream
+	 * must create the same zip file
+	 */
+	public void testRawCopyIsIdentical() throws Exception {
+		File tmp = File.createTempFile("zipwriter", ".zip");
+		try {
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			ZipOutputStream zout = new JarOutputStream(expected);
+			for (int i = 1; i < 10; i++) {
+				ZipEntry ze = new ZipEntry("e/" + i);
+				ze.setTime(TIME);
+				zout.putNextEntry(ze);
+				zout.write(content(i));
+			}
+			zout.close();
+			OutputStream out = new FileOutputStream(tmp);
+			out.write(expected.toByteArray());
+			out.close();
+
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			ZipWriter zw = new ZipWriter(actual, true);
+			ZipArchive archive = new ZipArchive(tmp);
+			try {
+				for (int i = 1; i < 10; i++) {
+					ZipArchive.Entry entry = archive.getEntry("e/" + i);
+					ZipEntry ze = new ZipEntry(entry.getName());
+					ze.setTime(entry.getTime());
+					ze.setMethod(entry.getMethod());
+					ze.setCrc(entry.getCrc());
+					ze.setSize(entry.getSize());
+					ze.setCompressedSize(entry.getCompressedSize());
+					InputStream in = archive.openRawInputStream(entry);
+					try {
+						zw.putRawEntry(ze, in);
+					}
+					finally {
+						in.close();
+					}
+				}
+			}
+			finally {
+				archive.close();
+			}
+			zw.close();
+			assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+
+	/*
+	 * Write the entries to a ZipWriter or, when the second argument is set, to
+	 * a ZipOutputStream
+	 */
+	static void writeEntries(OutputStream out, ZipOutputStream zout) throws IOException {
+		Calendar c = Calendar.getInstance();
+		c.clear();
+		c.set(1975, 5, 1);
+		long before1980 = c.getTimeInMillis();
+		c.set(2150, 5, 1);
+		long after2107 = c.getTimeInMillis();
+
+		long[] times = {
+				TIME, before1980, after2107, TIME + 1
+		};
+		for (int i = 0; i < 20; i++) {
+			if (i % 5 == 0) {
+				ZipEntry dir = new ZipEntry("d" + i + "/");
+				put(out, zout, dir, null);
+			}
+			ZipEntry ze = new ZipEntry("d" + (i - i % 5) + "/e" + i);
+			ze.setTime(times[i % times.length]);
+			if (i == 7)
+				ze.setExtra(new byte[] {
+						0x34, 0x12, 2, 0, 'a', 'b'
+				});
+			put(out, zout, ze, content(i));
+		}
+		ZipEntry stored = new ZipEntry("stored");
+		stored.setTime(TIME);
+		stored.setMethod(ZipEntry.STORED);
+		stored.setSize(0);
+		stored.setCrc(0);
+		put(out, zout, stored, null);
+	}
+
+	static void put(OutputStream out, ZipOutputStream zout, ZipEntry ze, byte[] data) throws IOException {
+		if (zout != null) {
+			zout.putNextEntry(ze);
+			if (data != null)
+				for (int off = 0; off < data.length; off += 1001)
+					zout.write(data, off, Math.min(1001, data.length - off));
+			zout.closeEntry();
+			return;
+		}
+		ZipWriter zw = (ZipWriter) out;
+		if (data == null) {
+			zw.putNextEntry(ze);
+			zw.closeEntry();
+		} else
+			zw.putEntry(ze, data);
+	}
+
+	static byte[] write(Executor executor, int parallelism, boolean putEntry) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ZipWriter zout = new ZipWriter(bout);
+		zout.setParallelism(executor, parallelism);
+		for (int i = 0; i < 50; i++) {
+			ZipEntry ze = new ZipEntry("e/" + i);
+			ze.setTime(TIME);
+			byte[] data = content(i);
+			if (putEntry)
+				zout.putEntry(ze, data);
+			else {
+				// write in odd pieces, the output must not depend on it
+				zout.putNextEntry(ze);
+				for (int off = 0; off < data.length; off += 1001)
+					zout.write(data, off, Math.min(1001, data.length - off));
+			}
+			if (i == 25) {
+				ZipEntry stored = new ZipEntry("stored");
+				stored.setTime(TIME);
+				stored.setMethod(ZipEntry.STORED);
+				stored.setSize(0);
+				stored.setCrc(0);
+				zout.putNextEntry(stored);
+			}
+		}
+		zout.close();
+		return bout.toByteArray();
+	}
+
+	/*
+	 * Content that spans several deflater blocks for the larger entries
+	 */
+	static byte[] content(int n) {
+		Random random = new Random(n);
+		byte[] data = new byte[n * 3001];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) ('a' + random.nextInt(n % 20 + 1));
+		return data;
+	}
+}
@@ -4,9 +4,11 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
 import java.util.jar.Attributes;
@@ -16,13 +18,18 @@ import aQute.bnd.header.Attrs;
 import aQute.bnd.header.Parameters;
 import aQute.bnd.osgi.Analyzer;
 import aQute.bnd.osgi.Builder;
+import aQute.bnd.osgi.ClassDataCollector;
 import aQute.bnd.osgi.Clazz;
 import aQute.bnd.osgi.Constants;
+import aQute.bnd.osgi.Descriptors.TypeRef;
 import aQute.bnd.osgi.Domain;
+import aQute.bnd.osgi.EmbeddedResource;
 import aQute.bnd.osgi.FileResource;
 import aQute.bnd.osgi.Jar;
 import aQute.bnd.osgi.Packages;
 import aQute.bnd.osgi.Processor;
+import aQute.bnd.service.AnalyzerPlugin;
+import aQute.bnd.service.classparser.ClassParser;
 import aQute.bnd.test.BndTestCase;
 import aQute.lib.io.IO;
 
@@ -51,6 +58,126 @@ public class AnalyzerTest extends BndTestCase {
 		}
 	}
 
+	/**
+	 * Verify that the collectors of the ClassParser plugins are created after
+	 * the analyzer plugins ran and are called once for each class in the class
+	 * space with the references in the byte codes.
+	 */
+
+	public void testClassParser() throws Exception {
+		try (Builder b = new Builder();) {
+			final Map<String,Integer> seen = new HashMap<String,Integer>();
+			final Set<String> methods = new HashSet<String>();
+			final boolean[] analyzed = new boolean[1];
+			final boolean[] analyzedFirst = new boolean[1];
+			b.addClasspath(new File("bin"));
+			b.setProperty("Private-Package", "test.activator");
+			b.getPlugins().add(new AnalyzerPlugin() {
+				public boolean analyzeJar(Analyzer analyzer) throws Exception {
+					analyzed[0] = true;
+					return false;
+				}
+			});
+			b.getPlugins().add(new ClassParser() {
+				public ClassDataCollector getClassDataCollector(Analyzer analyzer) {
+					analyzedFirst[0] = analyzed[0];
+					return new ClassDataCollector() {
+						@Override
+						public boolean classStart(Clazz c) {
+							String fqn = c.getFQN();
+							Integer n = seen.get(fqn);
+							seen.put(fqn, n == null ? 1 : n + 1);
+							return true;
+						}
+
+						@Override
+						public void referenceMethod(int access, TypeRef className, String method, String descriptor) {
+							methods.add(className.getFQN() + "." + method);
+						}
+					};
+				}
+			});
+			b.build();
+			assertTrue(b.check());
+
+			assertTrue(analyzedFirst[0]);
+			assertEquals(b.getClassspace().size(), seen.size());
+			for (Clazz c : b.getClassspace().values()) {
+				assertEquals(Integer.valueOf(1), seen.get(c.getFQN()));
+			}
+			assertTrue(methods.toString(), methods.contains("java.lang.Object.<init>"));
+		}
+	}
+
+	/**
+	 * A parallel analysis must give the same result as a serial analysis
+	 */
+	public void testParallelAnalysis() throws Exception {
+		Manifest serial = buildAnnotationHeaders(null);
+		Manifest parallel = buildAnnotationHeaders("4");
+		Manifest cores = buildAnnotationHeaders("0");
+
+		for (String header : new String[] {
+				"Import-Package", "Private-Package", "Provide-Capability", "Require-Capability", "Bundle-License"
+		}) {
+			assertNotNull(header, serial.getMainAttributes().getValue(header));
+			assertEquals(header, serial.getMainAttributes().getValue(header),
+					parallel.getMainAttributes().getValue(header));
+			assertEquals(header, serial.getMainAttributes().getValue(header),
+					cores.getMainAttributes().getValue(header));
+		}
+	}
+
+	private Manifest buildAnnotationHeaders(String parallelism) throws Exception {
+		try (Builder b = new Builder();) {
+			b.addClasspath(new File("bin"));
+			b.setProperty("Private-Package", "test.annotationheaders.*, test.activator");
+			if (parallelism != null)
+				b.setProperty(Constants.ANALYZER_PARALLELISM, parallelism);
+			b.build();
+			assertTrue(b.check());
+			return b.getJar().getManifest();
+		}
+	}
+
+	/**
+	 * Resources are found through an index of the class path, the index must
+	 * follow changes to the class path and to the resources of its jars
+	 */
+	public void testClasspathIndex() throws Exception {
+		try (Analyzer a = new Analyzer(); Jar extra = new Jar("extra")) {
+			a.addClasspath(IO.getFile("jar/asm.jar"));
+			a.addClasspath(IO.getFile("jar/osgi.jar"));
+			assertNotNull(a.findResource("org/osgi/framework/Bundle.class"));
+			assertNull(a.findResource("org/osgi/framework/Missing.class"));
+			assertNull(a.findResource("org/example/A.class"));
+
+			TypeRef missing = a.getTypeRefFromFQN("org.example.Missing");
+			assertNull(a.findClass(missing));
+			assertNull(a.findClass(missing));
+
+			// a new jar on the class path
+			a.addClasspath(extra);
+			extra.putResource("org/osgi/framework/Bundle.class", new EmbeddedResource(new byte[0], 0));
+			extra.putResource("org/example/A.class", new EmbeddedResource(new byte[0], 0));
+			assertNotNull(a.findResource("org/example/A.class"));
+
+			// earlier jars still win
+			assertNotSame(extra.getResource("org/osgi/framework/Bundle.class"),
+					a.findResource("org/osgi/framework/Bundle.class"));
+
+			// a new directory in a jar already on the class path
+			extra.putResource("org/example/sub/B.class", new EmbeddedResource(new byte[0], 0));
+			assertNotNull(a.findResource("org/example/sub/B.class"));
+
+			// a missing class that is added to a directory that is present
+			assertNull(a.findClass(missing));
+			extra.putResource("org/example/Missing.class",
+					new EmbeddedResource(IO.read(a.findResource("org/osgi/framework/Bundle.class").openInputStream()), 0));
+			assertNotNull(a.findClass(missing));
+		}
+	}
+
 	/**
 	 * #525 Test if exceptions are imported
 	 */
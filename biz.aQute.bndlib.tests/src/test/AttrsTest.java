@@ -18,6 +18,33 @@ public class AttrsTest extends TestCase {
 		assertEquals("xyz:List<String>=\"a,\\,b\"", attr.toString());
 	}
 
+	/**
+	 * Typed values are converted once per value, changing the value must be
+	 * seen
+	 */
+	@SuppressWarnings("unchecked")
+	public void testConvertedOnce() {
+		Attrs attr = new Attrs();
+		attr.put("version:Version", "1.2");
+		attr.put("list:List<Long>", "1,2");
+		Object version = attr.getTyped("version");
+		assertEquals(new Version(1, 2, 0), version);
+		assertSame(version, attr.getTyped(Attrs.VERSION, "version"));
+
+		List<Long> list = (List<Long>) attr.getTyped("list");
+		assertEquals(Arrays.asList(1L, 2L), list);
+		list.add(3L);
+		assertEquals(Arrays.asList(1L, 2L), attr.getTyped(Attrs.LIST_LONG, "list"));
+
+		attr.put("version", "2");
+		assertEquals(new Version(2, 0, 0), attr.getTyped("version"));
+		attr.entrySet().iterator().next().setValue("3");
+		assertEquals(new Version(3, 0, 0), attr.getTyped("version"));
+		attr.put("version:Long", "4");
+		assertEquals(4L, attr.getTyped("version"));
+		assertSame("version", attr.keySet().iterator().next());
+	}
+
 	public void testFloats() {
 		Attrs attr = new Attrs();
 		attr.putTyped("double", 3.1D);
@@ -1948,6 +1948,52 @@ public class BuilderTest extends BndTestCase {
 		}
 	}
 
+	/**
+	 * Sub builders built in parallel must give the same bundles, errors and
+	 * warnings in the same order as when they are built one by one
+	 */
+	public static void testSubParallelism() throws Exception {
+		File tmp = IO.getFile("generated/tmp-sub");
+		IO.delete(tmp);
+		tmp.mkdirs();
+		try {
+			String[] packages = {
+					"org.objectweb.asm", "org.objectweb.asm.signature", "org.objectweb.asm.nonexistent"
+			};
+			for (int i = 0; i < 6; i++) {
+				IO.store("Private-Package: " + packages[i % packages.length] + "\n", IO.getFile(tmp, "s" + i + ".bnd"));
+			}
+
+			List<String> serial = buildSubs(tmp, "1");
+			List<String> parallel = buildSubs(tmp, "4");
+			assertEquals(serial, parallel);
+			assertEquals(serial.toString(), 10, serial.size());
+		}
+		finally {
+			IO.delete(tmp);
+		}
+	}
+
+	private static List<String> buildSubs(File base, String parallelism) throws Exception {
+		Builder b = new Builder();
+		try {
+			b.setBase(base);
+			b.setProperty("-sub", "*.bnd");
+			b.setProperty(Constants.SUB_PARALLELISM, parallelism);
+			b.addClasspath(IO.getFile("jar/asm.jar"));
+			List<String> result = new ArrayList<String>();
+			for (Jar jar : b.builds()) {
+				result.add(jar.getName() + " " + jar.getResources().keySet().size());
+			}
+			result.addAll(b.getErrors());
+			result.addAll(b.getWarnings());
+			return result;
+		}
+		finally {
+			b.close();
+		}
+	}
+
 	public static void testConduit() throws Exception {
 		Properties p = new Properties();
 		p.setProperty("-conduit", "jar/asm.jar");
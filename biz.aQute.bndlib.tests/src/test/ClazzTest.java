@@ -2,7 +2,9 @@ package test;
 
 import java.io.*;
 import java.lang.reflect.*;
+import java.nio.*;
 import java.util.*;
+import java.util.jar.*;
 
 import aQute.bnd.component.AnnotationReader;
 import aQute.bnd.component.DSAnnotations;
@@ -33,6 +35,75 @@ public class ClazzTest extends TestCase {
 		b.close();
 	}
 
+	/**
+	 * Build twice with a clazz cache, the second build restores the class
+	 * models from the cache and must calculate the same manifest.
+	 */
+
+	public void testClazzCache() throws Exception {
+		File tmp = new File("tmp-clazzcache");
+		IO.delete(tmp);
+		try {
+			ClazzCache cache = new ClazzCache(tmp);
+			Manifest first = buildWithCache(cache);
+			assertTrue(tmp.isDirectory());
+			assertTrue(tmp.list().length > 0);
+
+			Manifest second = buildWithCache(cache);
+			for (String header : new String[] {
+					Constants.IMPORT_PACKAGE, Constants.EXPORT_PACKAGE, Constants.PROVIDE_CAPABILITY,
+					Constants.REQUIRE_CAPABILITY, Constants.BUNDLE_ACTIVATOR
+			}) {
+				assertEquals(first.getMainAttributes().getValue(header), second.getMainAttributes().getValue(header));
+			}
+		}
+		finally {
+			IO.delete(tmp);
+		}
+	}
+
+	/**
+	 * The cache removes the least recently used models when it holds more
+	 * than its maximum number of models.
+	 */
+
+	public void testClazzCacheEviction() throws Exception {
+		File tmp = new File("tmp-clazzcache");
+		IO.delete(tmp);
+		try {
+			ClazzCache cache = new ClazzCache(tmp, 8);
+			buildWithCache(cache);
+			assertTrue(cache.size() > 0);
+			assertTrue(cache.size() <= 8);
+
+			Manifest first = buildWithCache(new ClazzCache(tmp, 8));
+			assertTrue(cache.size() <= 8);
+			Manifest second = buildWithCache(new ClazzCache(tmp));
+			assertEquals(first.getMainAttributes().getValue(Constants.IMPORT_PACKAGE),
+					second.getMainAttributes().getValue(Constants.IMPORT_PACKAGE));
+		}
+		finally {
+			IO.delete(tmp);
+		}
+	}
+
+	private Manifest buildWithCache(ClazzCache cache) throws Exception {
+		Builder b = new Builder();
+		try {
+			b.setClazzCache(cache);
+			b.addClasspath(new File("bin"));
+			b.addClasspath(IO.getFile("jar/osgi.jar"));
+			b.setExportPackage("test.activator, test.annotationheaders.*");
+			b.setProperty(Constants.BUNDLE_ACTIVATOR, "test.activator.Activator");
+			Jar jar = b.build();
+			assertTrue(b.check());
+			return jar.getManifest();
+		}
+		finally {
+			b.close();
+		}
+	}
+
 	/**
 	 * Check that exceptions that are caught are added to the imports.
 	 */
@@ -54,6 +125,30 @@ public class ClazzTest extends TestCase {
 		}
 	}
 
+	/**
+	 * The stream given to the parser is owned by the caller and must not be
+	 * closed.
+	 */
+	public void testStreamNotClosed() throws Exception {
+		final boolean[] closed = new boolean[1];
+		InputStream in = new FilterInputStream(new FileInputStream("bin/test/ClazzTest$Catching.class")) {
+			@Override
+			public void close() throws IOException {
+				closed[0] = true;
+				super.close();
+			}
+		};
+		try {
+			Analyzer a = new Analyzer();
+			Clazz c = new Clazz(a, "", null);
+			c.parseClassFile(in, new ClassDataCollector() {});
+			assertFalse(closed[0]);
+		}
+		finally {
+			in.close();
+		}
+	}
+
 	public void testCaughtExceptions() throws Exception {
 		Analyzer a = new Analyzer();
 		Clazz c = new Clazz(a, "", null);
@@ -61,6 +156,46 @@ public class ClazzTest extends TestCase {
 		assertTrue(c.getReferred().toString().contains("org.xml.sax"));
 	}
 
+	/**
+	 * Parsing from a (direct) byte buffer must give the same result as
+	 * parsing from a stream. The string constants, including non ASCII ones,
+	 * are decoded lazily from the buffer.
+	 */
+
+	public static class Strings {
+		public static final String	ASCII		= "ascii";
+		public static final String	NONASCII	= "\u00fcn\u00efc\u00f6d\u00e9 \u20ac";
+	}
+
+	public void testParseByteBuffer() throws Exception {
+		Analyzer a = new Analyzer();
+		Clazz stream = new Clazz(a, "", null);
+		stream.parseClassFile(new FileInputStream("bin/test/ClazzTest$Catching.class"));
+
+		byte[] data = IO.read(new File("bin/test/ClazzTest$Catching.class"));
+		ByteBuffer bb = ByteBuffer.allocateDirect(data.length);
+		bb.put(data);
+		bb.flip();
+		Clazz buffer = new Clazz(a, "", null);
+		buffer.parseClassFile(bb, null);
+
+		assertEquals(stream.getClassName(), buffer.getClassName());
+		assertEquals(stream.getSuper(), buffer.getSuper());
+		assertEquals(stream.getReferred(), buffer.getReferred());
+		assertEquals(stream.getAPIUses(), buffer.getAPIUses());
+
+		final List<Object> constants = new ArrayList<Object>();
+		Clazz c = new Clazz(a, "", null);
+		c.parseClassFile(ByteBuffer.wrap(IO.read(new File("bin/test/ClazzTest$Strings.class"))),
+				new ClassDataCollector() {
+					@Override
+					public void constant(Object o) {
+						constants.add(o);
+					}
+				});
+		assertEquals(Arrays.asList(Strings.ASCII, Strings.NONASCII), constants);
+	}
+
 	/**
 	 * There is an unused class constant in the This actually looks wrong since
 	 */
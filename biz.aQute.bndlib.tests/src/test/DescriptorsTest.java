@@ -1,5 +1,8 @@
 package test;
 
+import java.util.*;
+import java.util.concurrent.*;
+
 import junit.framework.*;
 import aQute.bnd.osgi.*;
 import aQute.bnd.osgi.Descriptors.PackageRef;
@@ -20,4 +23,45 @@ public class DescriptorsTest extends TestCase {
 		assertTrue(a == b);
 
 	}
+
+	/**
+	 * Threads that intern the same names must all get the same refs
+	 */
+	public static void testConcurrentInterning() throws Exception {
+		final Descriptors d = new Descriptors();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<List<Object>>> futures = new ArrayList<Future<List<Object>>>();
+			for (int t = 0; t < 8; t++) {
+				futures.add(executor.submit(new Callable<List<Object>>() {
+					public List<Object> call() throws Exception {
+						start.await();
+						List<Object> refs = new ArrayList<Object>();
+						for (int i = 0; i < 500; i++) {
+							refs.add(d.getTypeRef("p" + (i % 20) + "/C" + i));
+							refs.add(d.getTypeRef("[Lp" + (i % 20) + "/C" + i + ";"));
+							refs.add(d.getPackageRef("p" + (i % 20)));
+							refs.add(d.getDescriptor("(Lp" + (i % 20) + "/C" + i + ";)V"));
+						}
+						return refs;
+					}
+				}));
+			}
+			start.countDown();
+
+			List<Object> first = futures.get(0).get();
+			for (Future<List<Object>> f : futures) {
+				List<Object> refs = f.get();
+				assertEquals(first.size(), refs.size());
+				for (int i = 0; i < refs.size(); i++)
+					assertSame(first.get(i), refs.get(i));
+			}
+			TypeRef ref = d.getTypeRef("p3/C3");
+			assertSame(d.getPackageRef("p3"), ref.getPackageRef());
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
 }
@@ -13,6 +13,36 @@ public class InstructionTest extends TestCase {
 		assertEquals(Arrays.asList("a", "c"), new Instructions("!b,*").select(Arrays.asList("a", "b", "c"), false));
 	}
 
+	/**
+	 * The instructions are matched at once, the first matching instruction
+	 * must win
+	 */
+	public static void testMatcher() {
+		Instructions instructions = new Instructions(
+				"!com.foo.impl.*,com.foo.*,com.fo*,com.bar,*.api,Com.Baz*:i,!*.test~");
+		assertEquals("!com.foo.impl.*", instructions.matcher("com.foo.impl").getInput());
+		assertEquals("!com.foo.impl.*", instructions.matcher("com.foo.impl.x").getInput());
+		assertEquals("com.foo.*", instructions.matcher("com.foo.implx").getInput());
+		assertEquals("com.foo.*", instructions.matcher("com.foo").getInput());
+		assertEquals("com.fo*", instructions.matcher("com.foox").getInput());
+		assertEquals("com.fo*", instructions.matcher("com.fo").getInput());
+		assertEquals("com.bar", instructions.matcher("com.bar").getInput());
+		assertEquals("*.api", instructions.matcher("com.bar.api").getInput());
+		assertEquals("Com.Baz*:i", instructions.matcher("com.baz").getInput());
+		assertEquals("!*.test~", instructions.matcher("com.bar.test").getInput());
+		assertNull(instructions.matcher("com.bar.x"));
+		assertNull(instructions.matcher("com"));
+
+		assertFalse(instructions.matches("com.foo.impl"));
+		assertTrue(instructions.matches("com.foo.implx"));
+		assertFalse(instructions.matches("com.bar.test"));
+
+		instructions.remove(instructions.matcher("com.bar"));
+		assertNull(instructions.matcher("com.bar"));
+		instructions.put(new Instruction("com.*"), null);
+		assertEquals("com.*", instructions.matcher("com.bar").getInput());
+	}
+
 	public static void testWildcard() {
 		assertTrue(new Instruction("a|b").matches("a"));
 		assertTrue(new Instruction("a|b").matches("b"));
@@ -3,11 +3,21 @@ package test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import aQute.bnd.osgi.Builder;
@@ -15,8 +25,10 @@ import aQute.bnd.osgi.Constants;
 import aQute.bnd.osgi.EmbeddedResource;
 import aQute.bnd.osgi.FileResource;
 import aQute.bnd.osgi.Jar;
+import aQute.bnd.osgi.JarCache;
 import aQute.bnd.osgi.Resource;
 import aQute.lib.io.IO;
+import aQute.lib.zip.ZipUtil;
 import junit.framework.TestCase;
 
 @SuppressWarnings("resource")
@@ -139,4 +151,277 @@ public class JarTest extends TestCase {
 
 		assertEquals(expectedValue, parsedValue);
 	}
+
+	/**
+	 * Entries that come from a zip file are copied without inflating and
+	 * deflating them again
+	 */
+	public static void testCopyCompressedEntries() throws Exception {
+		File tmp = IO.getFile("generated/tmp-copy.jar");
+		try (Jar source = new Jar(IO.getFile("jar/jsr311-api-1.1.1.jar"))) {
+			Jar jar = new Jar("copy");
+			jar.addAll(source, null);
+			jar.setManifest(source.getManifest());
+			jar.write(tmp);
+			jar.close();
+
+			try (ZipFile in = new ZipFile(IO.getFile("jar/jsr311-api-1.1.1.jar"));
+					ZipFile out = new ZipFile(tmp)) {
+				int n = 0;
+				int deflated = 0;
+				for (Enumeration< ? extends ZipEntry> e = in.entries(); e.hasMoreElements();) {
+					ZipEntry ze = e.nextElement();
+					if (ze.isDirectory() || ze.getName().equals("META-INF/MANIFEST.MF"))
+						continue;
+					ZipEntry copy = out.getEntry(ze.getName());
+					assertNotNull(ze.getName(), copy);
+					// stored entries are deflated, like all other resources
+					assertEquals(ZipEntry.DEFLATED, copy.getMethod());
+					if (ze.getMethod() == ZipEntry.DEFLATED) {
+						assertEquals(ze.getCompressedSize(), copy.getCompressedSize());
+						deflated++;
+					}
+					assertEquals(ze.getCrc(), copy.getCrc());
+					assertTrue(Arrays.equals(IO.read(in.getInputStream(ze)), IO.read(out.getInputStream(copy))));
+					n++;
+				}
+				assertTrue(n > 0);
+				assertTrue(deflated > 0);
+			}
+
+			try (JarInputStream jin = new JarInputStream(new FileInputStream(tmp))) {
+				assertNotNull(jin.getManifest());
+				byte[] buffer = new byte[1024];
+				int n = 0;
+				for (ZipEntry ze = jin.getNextEntry(); ze != null; ze = jin.getNextEntry()) {
+					while (jin.read(buffer) >= 0)
+						continue;
+					n++;
+				}
+				assertTrue(n > 0);
+			}
+		}
+		finally {
+			IO.delete(tmp);
+		}
+	}
+
+	/**
+	 * A jar is written byte for byte as it was written with a JarOutputStream
+	 */
+	public static void testWriteSameAsJarOutputStream() throws Exception {
+		try (Jar jar = new Jar(IO.getFile("src/test/api"))) {
+			jar.setManifest(new Manifest());
+			jar.getManifest().getMainAttributes().putValue("Manifest-Version", "1.0");
+
+			//
+			// The directory entries get the current time, the DOS time can
+			// tick between the two writes
+			//
+			for (int i = 0;; i++) {
+				ByteArrayOutputStream expected = new ByteArrayOutputStream();
+				writeWithJarOutputStream(jar, expected);
+				ByteArrayOutputStream actual = new ByteArrayOutputStream();
+				jar.write(actual);
+				if (Arrays.equals(expected.toByteArray(), actual.toByteArray()))
+					break;
+				assertTrue("written jar differs from a JarOutputStream", i < 2);
+			}
+		}
+	}
+
+	/*
+	 * Write the jar like Jar.write did with a JarOutputStream
+	 */
+	private static void writeWithJarOutputStream(Jar jar, OutputStream out) throws Exception {
+		JarOutputStream jout = new JarOutputStream(out);
+		JarEntry manifest = new JarEntry("META-INF/MANIFEST.MF");
+		ZipUtil.setModifiedTime(manifest, jar.lastModified());
+		jout.putNextEntry(manifest);
+		jar.writeManifest(jout);
+		jout.closeEntry();
+
+		Set<String> directories = new HashSet<String>();
+		for (Map.Entry<String,Resource> entry : jar.getResources().entrySet()) {
+			String path = entry.getKey();
+			if (path.equals("META-INF/MANIFEST.MF"))
+				continue;
+			for (int n = path.indexOf('/'); n > 0; n = path.indexOf('/', n + 1)) {
+				if (directories.add(path.substring(0, n))) {
+					jout.putNextEntry(new ZipEntry(path.substring(0, n + 1)));
+					jout.closeEntry();
+				}
+			}
+			Resource resource = entry.getValue();
+			ZipEntry ze = new ZipEntry(path);
+			ZipUtil.setModifiedTime(ze, resource.lastModified());
+			if (resource.getExtra() != null)
+				ze.setExtra(resource.getExtra().getBytes("UTF-8"));
+			jout.putNextEntry(ze);
+			resource.write(jout);
+			jout.closeEntry();
+		}
+		jout.finish();
+	}
+
+	/**
+	 * Deflating the resources in parallel must not change the written jar
+	 */
+	public static void testCompressionParallelism() throws Exception {
+		try (Jar jar = new Jar(IO.getFile("src/test/api"))) {
+			jar.setManifest(new Manifest());
+			ByteArrayOutputStream serial = new ByteArrayOutputStream();
+			jar.write(serial);
+
+			jar.setCompressionParallelism(4);
+			ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+			jar.write(parallel);
+			assertTrue(Arrays.equals(serial.toByteArray(), parallel.toByteArray()));
+		}
+	}
+
+	/**
+	 * The digests are calculated while the jar is written, the manifest must
+	 * still be the first entry
+	 */
+	public static void testWriteDigests() throws Exception {
+		try (Jar source = new Jar(IO.getFile("jar/osgi.jar"))) {
+			Jar jar = new Jar("digests");
+			jar.addAll(source, null);
+			jar.putResource("a/b.txt", new EmbeddedResource("ab".getBytes("UTF-8"), 0));
+			jar.setManifest(new Manifest());
+			jar.setDigestAlgorithms(new String[] {
+					"SHA", "MD5"
+			});
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			jar.write(bout);
+			assertNull(jar.getManifest().getAttributes("a/b.txt"));
+
+			jar.calcChecksums(null);
+			Manifest expected = jar.getManifest();
+			jar.close();
+
+			try (JarInputStream jin = new JarInputStream(new ByteArrayInputStream(bout.toByteArray()))) {
+				Manifest m = jin.getManifest();
+				assertNotNull(m);
+				assertEquals(expected.getEntries().size(), m.getEntries().size());
+				assertEquals(expected.getAttributes("a/b.txt"), m.getAttributes("a/b.txt"));
+				assertEquals(expected.getAttributes("org/osgi/framework/Bundle.class"),
+						m.getAttributes("org/osgi/framework/Bundle.class"));
+				int n = 0;
+				for (ZipEntry ze = jin.getNextEntry(); ze != null; ze = jin.getNextEntry())
+					n++;
+				assertTrue(n > 0);
+			}
+		}
+	}
+
+	/**
+	 * A jar file is only read completely when all its resources are needed
+	 */
+	public static void testLazyZip() throws Exception {
+		File file = IO.getFile("jar/osgi.jar");
+		try (Jar jar = new Jar(file);
+				ZipFile zf = new ZipFile(file)) {
+			Resource r = jar.getResource("org/osgi/framework/Bundle.class");
+			assertNotNull(r);
+			assertTrue(Arrays.equals(IO.read(zf.getInputStream(zf.getEntry("org/osgi/framework/Bundle.class"))),
+					IO.read(r.openInputStream())));
+			assertSame(r, jar.getResource("org/osgi/framework/Bundle.class"));
+			assertNull(jar.getResource("org/osgi/framework/"));
+			assertNull(jar.getResource("does/not/exist.class"));
+			assertTrue(jar.exists("org/osgi/framework/BundleContext.class"));
+			assertNotNull(jar.getManifest());
+
+			int n = 0;
+			for (Enumeration< ? extends ZipEntry> e = zf.entries(); e.hasMoreElements();)
+				if (!e.nextElement().isDirectory())
+					n++;
+			assertEquals(n, jar.getResources().size());
+			assertSame(r, jar.getResource("org/osgi/framework/Bundle.class"));
+			assertTrue(jar.hasDirectory("org/osgi/framework"));
+			assertTrue(jar.lastModified() > 0);
+		}
+	}
+
+	/**
+	 * Builders share a read only jar for a jar file until the file changes,
+	 * only a limited number of jars that are not used keep their file open
+	 */
+	public static void testJarCache() throws Exception {
+		File tmp = IO.getFile("generated/tmp");
+		IO.delete(tmp);
+		tmp.mkdirs();
+		File a = new File(tmp, "a.jar");
+		File b = new File(tmp, "b.jar");
+		IO.copy(IO.getFile("jar/osgi.jar"), a);
+		IO.copy(IO.getFile("jar/asm.jar"), b);
+
+		JarCache cache = new JarCache(1, 1);
+		try {
+			Builder one = new Builder();
+			Builder two = new Builder();
+			Jar ja = cache.get(a, one);
+			assertSame(ja, cache.get(a, two));
+			assertNotNull(ja.getResource("org/osgi/framework/Bundle.class"));
+			try {
+				ja.putResource("x.txt", new EmbeddedResource(new byte[0], 0));
+				fail("shared jars are read only");
+			}
+			catch (UnsupportedOperationException e) {
+				// expected
+			}
+
+			// closing a builder closes the classpath but not the shared jar
+			one.addClasspath(ja);
+			one.close();
+			assertNotNull(ja.getManifest());
+
+			// referenced jars keep their file open, the others close it
+			Jar jb = cache.get(b, one);
+			assertNotNull(jb.getManifest());
+			assertEquals(2, cache.getOpenHandles());
+			assertTrue(IO.read(ja.getResource("org/osgi/framework/Bundle.class").openInputStream()).length > 0);
+			assertEquals(2, cache.size());
+			one.close();
+			assertEquals(1, cache.getOpenHandles());
+			assertSame(jb, cache.get(b, one));
+			assertEquals(2, cache.getOpenHandles());
+			one.close();
+
+			// a changed file gets a new jar
+			IO.copy(IO.getFile("jar/asm.jar"), a);
+			a.setLastModified(a.lastModified() - 10000);
+			Jar changed = cache.get(a, one);
+			assertNotSame(ja, changed);
+			assertNotNull(changed.getResource("org/objectweb/asm/ClassReader.class"));
+			assertNotNull(ja.getManifest());
+			two.close();
+			try {
+				ja.getResource("org/osgi/framework/Bundle.class");
+				fail("released stale jar must be closed");
+			}
+			catch (RuntimeException e) {
+				// expected
+			}
+			one.close();
+
+			// unreferenced jars are closed when there are too many
+			assertEquals(1, cache.size());
+
+			// a cached jar can be replaced after its builder is closed
+			assertEquals(0, cache.getOpenHandles());
+			assertTrue(a.delete());
+			IO.copy(IO.getFile("jar/osgi.jar"), a);
+			a.setLastModified(a.lastModified() - 20000);
+			Jar replaced = cache.get(a, one);
+			assertNotSame(changed, replaced);
+			assertNotNull(replaced.getResource("org/osgi/framework/Bundle.class"));
+			one.close();
+			assertEquals(0, cache.getOpenHandles());
+		}
+		finally {
+			cache.close();
+		}
+	}
 }
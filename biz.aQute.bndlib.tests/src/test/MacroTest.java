@@ -35,6 +35,30 @@ public class MacroTest extends TestCase {
 		value = m.getMainAttributes().getValue("Header-Foo");
 		assertNotNull(value);
 	}
+	/**
+	 * Lines are parsed once, the parsed line must expand like the line
+	 */
+	public void testParsedLines() throws Exception {
+		Processor p = new Processor();
+		p.setProperty("a", "A");
+		p.setProperty("b", "a");
+		Macro m = p.getReplacer();
+		for (int i = 0; i < 2; i++) {
+			assertEquals("xAy", m.process("x${a}y"));
+			assertEquals("A", m.process("${${b}}"));
+			assertEquals("A A", m.process("$(a) $[a]"));
+			assertEquals("${a}", m.process("\\${a}"));
+			assertEquals("${a", m.process("${a"));
+			assertEquals("xa{}y", m.process("x${a{}y"));
+			assertEquals("no macro", m.process("no macro"));
+			assertEquals("$", m.process("$"));
+			assertEquals(p.getBase().getAbsolutePath() + "/x a./y", m.process("./x a./y"));
+			assertEquals("a,b", m.process("${join;a;b}"));
+			assertEquals("${unknown-command;x}", m.process("${unknown-command;x}"));
+		}
+		p.close();
+	}
+
 	/*
 	 * #722 ${cat;<file>} removes \ before a $
 	 */
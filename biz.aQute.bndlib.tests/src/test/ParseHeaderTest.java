@@ -34,6 +34,31 @@ public class ParseHeaderTest extends TestCase {
 		assertEquals(Arrays.asList(new Version("1.0.1"), new Version("1.0.2")), attrs.getTyped("h"));
 	}
 
+	/**
+	 * Parsed headers are cached, changing a result must not change the results
+	 * of later parses
+	 */
+	public void testCachedHeader() {
+		String header = "a;b;x:Long=1;y:=\"1,2\",c;version=1";
+		Parameters p = new Parameters(header);
+		assertEquals(3, p.size());
+		assertSame(p.get("a"), p.get("b"));
+		p.get("a").put("z", "3");
+		p.get("c").remove("version");
+		p.put("d", new Attrs());
+
+		Parameters q = OSGiHeader.parseHeader(header);
+		assertEquals(3, q.size());
+		assertSame(q.get("a"), q.get("b"));
+		assertNotSame(p.get("a"), q.get("a"));
+		assertEquals("a;x:Long=1;y:=\"1,2\",b;x:Long=1;y:=\"1,2\",c;version=1", q.toString());
+		assertEquals(1L, q.get("a").getTyped("x"));
+
+		Attrs copy = new Attrs(q.get("a"));
+		assertEquals(Attrs.Type.LONG, copy.getType("x"));
+		assertEquals("x:Long=1;y:=\"1,2\"", copy.toString());
+	}
+
 	public void testEscaping() {
 
 		{
@@ -1,10 +1,15 @@
 package test;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
 
 import aQute.bnd.osgi.Constants;
 import aQute.bnd.osgi.OSInformation;
 import aQute.bnd.osgi.Processor;
+import aQute.lib.io.IO;
 import aQute.lib.strings.Strings;
 import junit.framework.TestCase;
 
@@ -155,6 +160,173 @@ public class ProcessorTest extends TestCase {
 		assertEquals("", Processor.removeDuplicateMarker("~~~~~~~~~~~~~~"));
 	}
 
+	/**
+	 * Expansions are reused until a property of the processor or one of its
+	 * parents changes
+	 */
+	public void testExpansionCache() throws IOException {
+		Processor top = new Processor();
+		Processor p = new Processor(top);
+		top.setProperty("a", "${b}-${c}");
+		top.setProperty("b", "1");
+		p.setProperty("c", "2");
+		assertEquals("1-2", p.getProperty("a"));
+		assertEquals("1-2", p.getProperty("a"));
+
+		top.setProperty("b", "3");
+		assertEquals("3-2", p.getProperty("a"));
+		p.getProperties().put("c", "4");
+		assertEquals("3-4", p.getProperty("a"));
+		p.getProperties().remove("c");
+		assertEquals("3-${c}", p.getProperty("a"));
+		assertEquals(1, p.getWarnings().size());
+
+		assertNull(p.getProperty("d"));
+		top.setProperty("d", "${b}");
+		assertEquals("3", p.getProperty("d"));
+		assertEquals("3", p.getProperty("b"));
+
+		Processor other = new Processor();
+		other.setProperty("b", "5");
+		p.setParent(other);
+		assertEquals("5", p.getProperty("b"));
+		assertNull(p.getProperty("d"));
+		assertTrue(top.check());
+		p.close();
+		top.close();
+		other.close();
+	}
+
+	public static class Counting extends Processor {
+		int count;
+
+		public String _count(@SuppressWarnings("unused") String[] args) {
+			return Integer.toString(++count);
+		}
+	}
+
+	/**
+	 * Expansions that use more than the properties are not reused
+	 */
+	public void testUncacheableExpansion() throws IOException {
+		Counting p = new Counting();
+		p.setProperty("a", "${count}");
+		p.setProperty("b", "${toupper;x}");
+		assertEquals("1", p.getProperty("a"));
+		assertEquals("2", p.getProperty("a"));
+		assertEquals("X", p.getProperty("b"));
+		assertEquals("X", p.getProperty("b"));
+		assertTrue(p.check());
+
+		String key = "test.processor.expansion.cache";
+		assertNull(p.getProperty(key));
+		System.setProperty(key, "set");
+		try {
+			assertEquals("set", p.getProperty(key));
+		}
+		finally {
+			System.clearProperty(key);
+		}
+		p.close();
+	}
+
+	/**
+	 * All changes to the properties must be seen by the expansion cache
+	 */
+	public void testExpansionCacheChanges() throws IOException {
+		Processor p = new Processor();
+		p.setProperty("a", "${b}");
+		p.setProperty("b", "1");
+		Properties properties = p.getProperties();
+		assertEquals("1", p.getProperty("a"));
+
+		for (Map.Entry<Object,Object> entry : properties.entrySet())
+			if (entry.getKey().equals("b"))
+				entry.setValue("3");
+		assertEquals("3", p.getProperty("a"));
+
+		properties.keySet().remove("b");
+		assertNull(p.getProperty("b"));
+		properties.putAll(Collections.singletonMap("b", "4"));
+		assertEquals("4", p.getProperty("a"));
+
+		p.close();
+	}
+
+	/**
+	 * Wildcard keys are matched against the sorted keys, these must follow
+	 * changes to the processor and its parent
+	 */
+	public void testWildcardKeys() throws IOException {
+		Processor top = new Processor();
+		top.setProperty("x.b", "tb");
+		top.setProperty("y", "ty");
+		Processor p = new Processor(top);
+		p.setProperty("x.c", "c");
+		p.setProperty("x.a", "a");
+		p.setProperty("xx", "xx");
+		assertEquals("a,tb,c", p.getProperty("x.*"));
+		assertEquals("a,tb,c,xx", p.getProperty("x*"));
+		assertEquals("a,tb,c,xx,ty", p.getProperty("*"));
+		assertEquals("a,ty", p.getProperty("x.a|y"));
+		assertEquals("a,tb,c", p.getReplacer().process("${x.*}"));
+
+		p.setProperty("x.b", "b");
+		assertEquals("a,b,c", p.getProperty("x.*"));
+		p.unsetProperty("x.c");
+		assertEquals("a,b", p.getProperty("x.*"));
+		top.setProperty("x.d", "td");
+		assertEquals("a,b,td", p.getProperty("x.*"));
+		assertNull(p.getProperty("z.*"));
+		assertTrue(p.check());
+		p.close();
+		top.close();
+	}
+
+	/**
+	 * Properties files are parsed once and shared, every processor must still
+	 * get its own properties and see changes to the file
+	 */
+	public void testLoadedPropertiesFile() throws Exception {
+		File tmp = IO.getFile("generated/tmp-loaded");
+		IO.delete(tmp);
+		tmp.mkdirs();
+		try {
+			File include = IO.getFile(tmp, "include.bnd");
+			IO.store("a=1\nb=${.}/x\n", include);
+			File bnd = IO.getFile(tmp, "bnd.bnd");
+			IO.store("-include: include.bnd\nc=2\n", bnd);
+
+			Processor p1 = new Processor();
+			p1.setProperties(bnd);
+			assertEquals("1", p1.getProperty("a"));
+			assertEquals(tmp.getAbsolutePath() + "/x", p1.getProperty("b"));
+			assertEquals("2", p1.getProperty("c"));
+			p1.setProperty("a", "changed");
+
+			Processor p2 = new Processor();
+			p2.setProperties(bnd);
+			assertEquals("1", p2.getProperty("a"));
+			assertEquals("1", p2.loadProperties(include).getProperty("a"));
+
+			IO.store("a=22\n", include);
+			Processor p3 = new Processor();
+			p3.setProperties(bnd);
+			assertEquals("22", p3.getProperty("a"));
+			assertNull(p3.getProperty("b"));
+
+			assertTrue(p1.check());
+			assertTrue(p2.check());
+			assertTrue(p3.check());
+			p1.close();
+			p2.close();
+			p3.close();
+		}
+		finally {
+			IO.delete(tmp);
+		}
+	}
+
 	public static void appendPathTest() throws Exception {
 		assertEquals("a/b/c", Processor.appendPath("", "a/b/c/"));
 		assertEquals("a/b/c", Processor.appendPath("", "/a/b/c"));
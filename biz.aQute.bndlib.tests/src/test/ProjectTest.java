@@ -5,11 +5,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.jar.Manifest;
 
+import aQute.bnd.build.BuildScheduler;
+import aQute.bnd.build.CircularDependencyException;
 import aQute.bnd.build.Container;
 import aQute.bnd.build.Project;
 import aQute.bnd.build.Workspace;
@@ -18,6 +21,7 @@ import aQute.bnd.osgi.Constants;
 import aQute.bnd.osgi.Jar;
 import aQute.bnd.osgi.Processor;
 import aQute.bnd.osgi.eclipse.EclipseClasspath;
+import aQute.bnd.service.DependencyContributor;
 import aQute.bnd.service.Strategy;
 import aQute.bnd.version.Version;
 import aQute.lib.deployer.FileRepo;
@@ -320,44 +324,259 @@ public class ProjectTest extends TestCase {
 		ws.setOffline(false);
 		Project top = ws.getProject("p-stale");
 		assertNotNull(top);
-		top.build();
 		Project bottom = ws.getProject("p-stale-dep");
 		assertNotNull(bottom);
-		bottom.build();
+		assertEquals("no build files", bottom.getStaleReason());
+		assertEquals("no build files", top.getStaleReason());
 
-		long lastModified = bottom.lastModified();
-		top.getPropertiesFile().setLastModified(lastModified + 1000);
+		bottom.build();
+		top.build();
+		assertFalse(bottom.isStale());
+		assertFalse(top.isStale());
 
-		stale(top, true);
-		stale(bottom, true);
-		assertTrue(top.isStale());
-		assertTrue(bottom.isStale());
+		// Only changing the time does not make a project stale
+		top.getPropertiesFile().setLastModified(top.getBuildFiles(false)[0].lastModified() + 10000);
+		bottom.getBuildFiles(false)[0].setLastModified(top.getBuildFiles(false)[0].lastModified() + 10000);
+		assertFalse(top.isStale());
+		assertFalse(bottom.isStale());
 
-		stale(top, false);
-		stale(bottom, true);
-		assertTrue(top.isStale());
-		assertTrue(bottom.isStale());
+		// Changing the content does
+		append(top.getPropertiesFile(), "foo: bar");
+		assertEquals("changed p-stale/bnd.bnd", top.getStaleReason());
+		assertFalse(bottom.isStale());
+		top.build();
+		assertFalse(top.isStale());
 
-		stale(top, true);
-		stale(bottom, false);
-		assertTrue(top.isStale());
+		// Also when it is a dependency
+		append(bottom.getPropertiesFile(), "foo: bar");
+		assertEquals("changed p-stale-dep/bnd.bnd", bottom.getStaleReason());
+		assertEquals("dependency p-stale-dep is stale", top.getStaleReason());
+		bottom.refresh();
+		bottom.build();
 		assertFalse(bottom.isStale());
+		assertEquals("changed p-stale-dep/generated/p-stale-dep.jar", top.getStaleReason());
+	}
+
+	/**
+	 * Build projects with the scheduler, dependencies must be built first
+	 */
+	public void testBuildScheduler() throws Exception {
+		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
+		Project top = ws.getProject("p-stale");
+		Project bottom = ws.getProject("p-stale-dep");
+		Project p6 = ws.getProject("p6");
+		Project p2 = ws.getProject("p2");
+		p6.setProperty("-dependson", "p-stale");
+
+		BuildScheduler scheduler = ws.getBuildScheduler(Arrays.asList(p6, p2));
+		assertEquals(Arrays.asList(bottom, top, p6, p2), scheduler.getOrder());
+		assertTrue(scheduler.getCycles().isEmpty());
+
+		assertTrue(scheduler.build(false, 4));
+		assertTrue(scheduler.getFailed().isEmpty());
+		for (Project p : scheduler.getOrder()) {
+			assertTrue(p.isOk());
+			assertNotNull(scheduler.getFiles(p));
+			assertTrue(scheduler.getTime(p) >= 0);
+		}
+
+		// The critical path is a chain of dependencies
+		List<Project> critical = scheduler.getCriticalPath();
+		assertFalse(critical.isEmpty());
+		long time = 0;
+		for (int i = 0; i < critical.size(); i++) {
+			if (i > 0)
+				assertTrue(critical.get(i).getDependson().contains(critical.get(i - 1)));
+			time += scheduler.getTime(critical.get(i));
+		}
+		assertEquals(time, scheduler.getCriticalPathTime());
+		assertTrue(ws.check());
+	}
+
+	/**
+	 * A project that depends on a cycle is not built, other projects are
+	 */
+	public void testBuildSchedulerCycle() throws Exception {
+		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
+		Project bottom = ws.getProject("p-stale-dep");
+		Project p6 = ws.getProject("p6");
+		Project p2 = ws.getProject("p2");
+		bottom.setProperty("-dependson", "p-stale");
+		p6.setProperty("-dependson", "p-stale");
+
+		BuildScheduler scheduler = ws.getBuildScheduler(Arrays.asList(p6, p2));
+		assertFalse(scheduler.build(false, 4));
+		assertEquals(Collections.singleton(p6), scheduler.getFailed());
+		assertNull(scheduler.getFiles(p6));
+		assertNotNull(scheduler.getFiles(p2));
+		assertTrue(ws.check("Circular dependency"));
+	}
+
+	/**
+	 * All projects are prepared in parallel, projects in a cycle are prepared
+	 * without deadlocking and still report the cycle
+	 */
+	public void testPrepareAllProjects() throws Exception {
+		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
+		Project bottom = ws.getProject("p-stale-dep");
+		Project p6 = ws.getProject("p6");
+		bottom.setProperty("-dependson", "p6");
+		p6.setProperty("-dependson", "p-stale");
+
+		Collection<Project> projects = ws.prepareAllProjects(4);
+		assertEquals(new ArrayList<Project>(ws.getAllProjects()), new ArrayList<Project>(projects));
+		assertTrue(projects.contains(p6));
+
+		Project p3 = ws.getProject("p3");
+		boolean found = false;
+		for (Container c : p3.getBuildpath())
+			found |= c.getBundleSymbolicName().equals("org.apache.felix.configadmin");
+		assertTrue(found);
+		try {
+			p6.getDependson();
+			fail("expected a circular dependency");
+		}
+		catch (CircularDependencyException e) {
+			// expected
+		}
+	}
 
-		// Thread.sleep(1000);
-		// stale(top, false);
-		// stale(bottom, false);
-		// assertFalse(top.isStale());
-		// assertFalse(bottom.isStale());
+	/**
+	 * A prepared project is stored in the workspace cache and restored by a
+	 * next project as long as its inputs do not change
+	 */
+	public void testPrepareSnapshot() throws Exception {
+		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
+		ws.setProperty(Constants.PREPARE_SNAPSHOT, "true");
+		Project p3 = ws.getProject("p3");
+		List<String> buildpath = new ArrayList<String>();
+		for (Container c : p3.getBuildpath())
+			buildpath.add(c.toString());
+		assertTrue(p3.check());
+
+		File snapshot = new File(ws.getCache("snapshots"), "p3");
+		assertTrue(snapshot.isFile());
+		snapshot.setLastModified(1000000000L);
+
+		// restored, the snapshot is not written again
+		Project restored = new Project(ws, p3.getBase());
+		List<String> restoredpath = new ArrayList<String>();
+		for (Container c : restored.getBuildpath())
+			restoredpath.add(c.toString());
+		assertEquals(buildpath, restoredpath);
+		assertEquals(p3.getOutput(), restored.getOutput());
+		assertEquals(p3.getSourcePath(), restored.getSourcePath());
+		assertEquals(1000000000L, snapshot.lastModified());
+
+		// a changed instruction prepares again
+		Project changed = new Project(ws, p3.getBase());
+		changed.setProperty(Constants.BUILDPATH, "org.apache.felix.configadmin;version=1.0.1");
+		changed.getBuildpath();
+		assertTrue(changed.check());
+		assertTrue(snapshot.lastModified() > 1000000000L);
+
+		// a changed bnd file prepares again
+		snapshot.setLastModified(1000000000L);
+		File bnd = p3.getPropertiesFile();
+		IO.store(IO.collect(bnd) + "\nfoo: bar\n", bnd);
+		new Project(ws, p3.getBase()).getBuildpath();
+		assertTrue(snapshot.lastModified() > 1000000000L);
+
+		// a pattern in -dependson prepares again when a project is added
+		ws.setProperty(Constants.DEPENDSON, "p1*");
+		new Project(ws, p3.getBase()).getBuildpath();
+		snapshot.setLastModified(1000000000L);
+		new Project(ws, p3.getBase()).getBuildpath();
+		assertEquals(1000000000L, snapshot.lastModified());
+		File added = new File(ws.getBase(), "p1a");
+		added.mkdirs();
+		IO.store("", new File(added, Project.BNDFILE));
+		new Project(ws, p3.getBase()).getBuildpath();
+		assertTrue(snapshot.lastModified() > 1000000000L);
+
+		// no snapshot when a plugin can contribute dependencies
+		IO.delete(snapshot);
+		ws.addBasicPlugin(new DependencyContributor() {
+			public void addDependencies(Project project, Set<String> dependencies) {}
+		});
+		Project contributed = new Project(ws, p3.getBase());
+		contributed.getBuildpath();
+		assertTrue(contributed.check());
+		assertFalse(snapshot.isFile());
 	}
 
-	private void stale(Project project, boolean b) throws Exception {
-		File file = project.getBuildFiles(false)[0];
-		if (b)
-			file.setLastModified(project.lastModified() - 10000);
-		else
-			file.setLastModified(project.lastModified() + 10000);
+	/**
+	 * Only the changed sources and the sources that depend on them are
+	 * compiled again
+	 */
+	public void testIncrementalCompile() throws Exception {
+		Workspace ws = getWorkspace(IO.getFile("testresources/ws"));
+		Project project = ws.getProject("p6");
+		project.setProperty("javac.source", "1.8");
+		project.setProperty("javac.target", "1.8");
+		File src = project.getSourcePath().iterator().next();
+		File a = IO.getFile(src, "a/A.java");
+		File c = IO.getFile(src, "a/C.java");
+		a.getParentFile().mkdirs();
+		IO.store("package a; public class A { public static String a() { return \"a\"; } }", a);
+		IO.store("package a; public class B { public String b() { return A.a(); } }", IO.getFile(src, "a/B.java"));
+		IO.store("package a; public class C {}", c);
+
+		project.compile(false);
+		assertTrue(project.check());
+		File output = project.getOutput();
+		File[] classes = {
+				IO.getFile(output, "a/A.class"), IO.getFile(output, "a/B.class"), IO.getFile(output, "a/C.class")
+		};
+		for (File f : classes) {
+			assertTrue(f.isFile());
+			f.setLastModified(1000000000L);
+		}
+
+		project.compile(false);
+		assertTrue(project.check());
+		for (File f : classes)
+			assertEquals(1000000000L, f.lastModified());
+
+		IO.store("package a; public class A { public static String a() { return \"aa\"; } }", a);
+		project.compile(false);
+		assertTrue(project.check());
+		assertTrue(classes[0].lastModified() != 1000000000L);
+		assertTrue(classes[1].lastModified() != 1000000000L);
+		assertEquals(1000000000L, classes[2].lastModified());
+
+		c.delete();
+		project.compile(false);
+		assertTrue(project.check());
+		assertFalse(classes[2].isFile());
+
+		IO.store("package a; public class C { String c() { return B.b(); } }", c);
+		project.compile(false);
+		assertTrue(project.check("javac failed"));
+
+		// a clean compiles everything again
+		IO.store("package a; public class C {}", c);
+		project.compile(false);
+		assertTrue(project.check());
+		project.clean();
+		assertFalse(classes[0].isFile());
+		project.compile(false);
+		assertTrue(project.check());
+		for (File f : classes)
+			assertTrue(f.isFile());
+
+		// a class that is removed from the output is compiled again
+		classes[1].delete();
+		project.compile(false);
+		assertTrue(project.check());
+		assertTrue(classes[1].isFile());
 	}
 
+	private void append(File file, String line) throws Exception {
+		IO.store(IO.collect(file) + "\n" + line + "\n", file);
+	}
+
+
 	/**
 	 * Check multiple repos @throws Exception
 	 */
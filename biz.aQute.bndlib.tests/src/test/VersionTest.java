@@ -12,6 +12,61 @@ public class VersionTest extends TestCase {
 		compare("[0,1)", "[0.5,2]", "[0.5.0,1.0.0)");
 	}
 
+	/**
+	 * Versions and ranges are parsed without the patterns but must accept the
+	 * same syntax
+	 */
+	public void testParse() {
+		for (String v : new String[] {
+				"1", "1.2", "1.2.3", "1.2.3.q-_Z9", "000000001.0", "999999999.999999999.999999999"
+		}) {
+			assertTrue(v, Version.isVersion(v));
+			assertTrue(v, Version.VERSION.matcher(v).matches());
+		}
+		for (String v : new String[] {
+				"", "a", "1.", "1..2", "1.2.3.", "1.2.3.a.b", "1.2.3.a b", "1234567890", " 1", "1.2.3.\u00e9"
+		}) {
+			assertFalse(v, Version.isVersion(v));
+			assertFalse(v, Version.VERSION.matcher(v).matches());
+		}
+		assertEquals(new Version(1, 2, 3, "q"), new Version(" 1.2.3.q "));
+		assertEquals(new Version(1, 2, 0), Version.parseVersion("1.2"));
+		assertSame(Version.parseVersion("1.2"), Version.parseVersion("1.2"));
+		assertNotSame(new Version("1.2"), new Version("1.2"));
+		assertSame(Version.LOWEST, Version.parseVersion(" "));
+		try {
+			new Version("1.x");
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("Invalid syntax for version: 1.x", e.getMessage());
+		}
+
+		assertTrue(VersionRange.isVersionRange("[1,2)"));
+		assertTrue(VersionRange.isVersionRange("( 1.2.3.q ,\t2 ]"));
+		assertFalse(VersionRange.isVersionRange(" [1,2)"));
+		assertFalse(VersionRange.isVersionRange("[1,2,3]"));
+		assertFalse(VersionRange.isVersionRange("[1;2]"));
+		assertFalse(VersionRange.isVersionRange("1"));
+
+		VersionRange range = VersionRange.parseVersionRange("[1,1]");
+		assertSame(range, VersionRange.parseVersionRange("[1,1]"));
+		assertTrue(range.isRange());
+		assertTrue(range.includes(new Version("1")));
+		assertFalse(range.includes(new Version("1.0.1")));
+		assertEquals("(1.0.0,2.0.0]", new VersionRange(" (1, 2] ").toString());
+		assertNull(VersionRange.parseVersionRange("1"));
+		assertTrue(VersionRange.parseOSGiVersionRange("1").isSingleVersion());
+
+		// shared bounds must still make a range
+		range = new VersionRange("[1.0,2.0)").intersect(new VersionRange("[0.5,1.0]"));
+		assertTrue(range.isRange());
+		assertTrue(range.includes(new Version("1.0")));
+		assertFalse(range.includes(new Version("1.5")));
+		assertTrue(new VersionRange(Version.parseVersion("1.0"), Version.parseVersion("1.0")).isRange());
+		assertTrue(new VersionRange(true, Version.parseVersion("1.0"), Version.parseVersion("1.0"), true).isRange());
+	}
+
 	void compare(String a, String b, String result) {
 		assertEquals(result, new VersionRange(a).intersect(new VersionRange(b)).toString());
 	}
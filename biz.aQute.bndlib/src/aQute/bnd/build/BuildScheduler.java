@@ -0,0 +1,368 @@
+package aQute.bnd.build;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import aQute.bnd.osgi.Constants;
+import aQute.bnd.osgi.Processor;
+import aQute.libg.tarjan.Tarjan;
+
+/**
+ * Builds a set of projects and the projects they depend on. The projects form a
+ * graph through {@link Project#getDependson()}, a project is built as soon as
+ * all the projects it depends on have been built. Projects that do not depend
+ * on each other are built concurrently by at most
+ * {@link Constants#BUILD_PARALLELISM} threads, by default one. Projects that
+ * are part of a cycle, or that depend on a project that failed, are not built.
+ * <p>
+ * After a build the time of each project is known. The critical path is the
+ * chain of dependent projects that took the longest, no amount of threads can
+ * make the build faster than this path.
+ */
+public class BuildScheduler {
+	final Workspace							workspace;
+	final List<Project>						order		= new ArrayList<Project>();
+	final Map<Project,Collection<Project>>	dependson	= new LinkedHashMap<Project,Collection<Project>>();
+	final Map<Project,List<Project>>		dependents	= new HashMap<Project,List<Project>>();
+	final Map<Project,Integer>				index		= new HashMap<Project,Integer>();
+	final Map<Project,Integer>				priority	= new HashMap<Project,Integer>();
+	final Set<Project>						broken		= new LinkedHashSet<Project>();
+	final List<Collection<Project>>			cycles		= new ArrayList<Collection<Project>>();
+
+	final Map<Project,Long>					times		= new HashMap<Project,Long>();
+	final Map<Project,File[]>				files		= new HashMap<Project,File[]>();
+	final Set<Project>						failed		= new LinkedHashSet<Project>();
+	final List<Project>						critical	= new ArrayList<Project>();
+	long									criticalTime;
+
+	// State of a running build, guarded by this
+	private Map<Project,Integer>			waiting;
+	private PriorityQueue<Project>			ready;
+	private int								remaining;
+
+	/**
+	 * Create a scheduler for the given projects. The projects they depend on,
+	 * directly or indirectly, are added. Cycles are reported as errors on the
+	 * workspace.
+	 */
+	public BuildScheduler(Workspace workspace, Collection<Project> projects) throws Exception {
+		this.workspace = workspace;
+
+		// Prepare all projects here, preparing them concurrently can
+		// deadlock since a project prepares its dependencies while locked
+		for (Project project : projects)
+			add(project);
+
+		for (Collection<Project> scc : Tarjan.tarjan(dependson)) {
+			if (scc.size() > 1) {
+				List<Project> cycle = sort(scc);
+				cycles.add(cycle);
+				broken.addAll(cycle);
+				workspace.error("Circular dependency between projects %s", cycle);
+			}
+		}
+
+		Set<Project> visited = new HashSet<Project>();
+		for (Project project : dependson.keySet())
+			order(project, visited);
+
+		// Favor the projects with the longest chain of dependents so the
+		// critical path is started as early as possible
+		for (int i = order.size() - 1; i >= 0; i--) {
+			Project project = order.get(i);
+			int max = 0;
+			for (Project dependent : getDependents(project)) {
+				Integer p = priority.get(dependent);
+				if (p != null)
+					max = Math.max(max, p);
+			}
+			priority.put(project, max + 1);
+			index.put(project, i);
+		}
+	}
+
+	private void add(Project project) throws Exception {
+		if (dependson.containsKey(project))
+			return;
+
+		Collection<Project> deps = new ArrayList<Project>();
+		dependson.put(project, deps);
+		try {
+			for (Project dep : project.getDependson()) {
+				if (dep != project)
+					deps.add(dep);
+			}
+		}
+		catch (CircularDependencyException e) {
+			broken.add(project);
+			workspace.error("Circular dependency in project %s: %s", project, e.getMessage());
+		}
+
+		for (Project dep : deps) {
+			add(dep);
+			getDependents(dep).add(project);
+		}
+	}
+
+	private void order(Project project, Set<Project> visited) {
+		if (!visited.add(project))
+			return;
+
+		for (Project dep : dependson.get(project))
+			order(dep, visited);
+		order.add(project);
+	}
+
+	private List<Project> getDependents(Project project) {
+		List<Project> list = dependents.get(project);
+		if (list == null) {
+			list = new ArrayList<Project>();
+			dependents.put(project, list);
+		}
+		return list;
+	}
+
+	private static List<Project> sort(Collection<Project> projects) {
+		List<Project> list = new ArrayList<Project>(projects);
+		Collections.sort(list, new Comparator<Project>() {
+			public int compare(Project a, Project b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Answer all projects in an order where a project comes after the
+	 * projects it depends on.
+	 */
+	public List<Project> getOrder() {
+		return Collections.unmodifiableList(order);
+	}
+
+	/**
+	 * Answer the cycles in the graph, these projects cannot be built.
+	 */
+	public List<Collection<Project>> getCycles() {
+		return Collections.unmodifiableList(cycles);
+	}
+
+	/**
+	 * Build the projects with the {@link Constants#BUILD_PARALLELISM} of the
+	 * workspace. Answer true if all projects were built.
+	 */
+	public boolean build(boolean underTest) throws Exception {
+		return build(underTest, workspace.getParallelism(Constants.BUILD_PARALLELISM));
+	}
+
+	/**
+	 * Build the projects with at most parallelism builds at the same time.
+	 * With a parallelism of 1 the projects are built on this thread. Answer
+	 * true if all projects were built.
+	 */
+	public boolean build(final boolean underTest, int parallelism) throws Exception {
+		synchronized (this) {
+			times.clear();
+			files.clear();
+			failed.clear();
+			waiting = new HashMap<Project,Integer>();
+			ready = new PriorityQueue<Project>(Math.max(order.size(), 1), new Comparator<Project>() {
+				public int compare(Project a, Project b) {
+					int n = priority.get(b) - priority.get(a);
+					if (n != 0)
+						return n;
+					return index.get(a) - index.get(b);
+				}
+			});
+			remaining = order.size();
+			for (Project project : order)
+				waiting.put(project, dependson.get(project).size());
+			for (Project project : order) {
+				if (broken.contains(project))
+					finish(project, false);
+				else if (waiting.get(project) == 0 && !failed.contains(project))
+					ready.add(project);
+			}
+		}
+
+		parallelism = Math.min(parallelism, order.size());
+		if (parallelism <= 1)
+			work(underTest);
+		else {
+			List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+			for (int i = 0; i < parallelism; i++) {
+				FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+					public void run() {
+						try {
+							work(underTest);
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}, null);
+				tasks.add(task);
+				Processor.getExecutor().execute(task);
+			}
+
+			for (FutureTask<Void> task : tasks) {
+				try {
+					task.get();
+				}
+				catch (ExecutionException e) {
+					Throwable t = e.getCause();
+					if (t instanceof Error)
+						throw (Error) t;
+					throw (Exception) t;
+				}
+			}
+		}
+
+		calculateCriticalPath();
+		if (!critical.isEmpty())
+			workspace.trace("critical path %s took %s ms", critical, criticalTime);
+		return failed.isEmpty();
+	}
+
+	private void work(boolean underTest) throws InterruptedException {
+		Project project;
+		while ((project = next()) != null) {
+			boolean ok = false;
+			File[] result = null;
+			long start = System.nanoTime();
+			try {
+				result = project.build(underTest);
+				ok = project.isOk();
+			}
+			catch (Exception e) {
+				project.exception(e, "Building %s", project);
+			}
+			finally {
+				long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				synchronized (this) {
+					times.put(project, time);
+					if (result != null)
+						files.put(project, result);
+					finish(project, ok);
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private synchronized Project next() throws InterruptedException {
+		while (ready.isEmpty()) {
+			if (remaining == 0)
+				return null;
+			wait();
+		}
+		return ready.poll();
+	}
+
+	/*
+	 * Called with the lock held. A project that failed, or that is not built,
+	 * makes all its dependents fail.
+	 */
+	private void finish(Project project, boolean ok) {
+		if (!ok)
+			failed.add(project);
+		remaining--;
+
+		for (Project dependent : getDependents(project)) {
+			if (!ok && !broken.contains(dependent) && failed.add(dependent))
+				workspace.trace("not building %s because %s failed", dependent, project);
+
+			int n = waiting.get(dependent) - 1;
+			waiting.put(dependent, n);
+			if (n == 0 && !broken.contains(dependent)) {
+				if (failed.contains(dependent))
+					finish(dependent, false);
+				else
+					ready.add(dependent);
+			}
+		}
+	}
+
+	private void calculateCriticalPath() {
+		Map<Project,Long> costs = new HashMap<Project,Long>();
+		Map<Project,Project> previous = new HashMap<Project,Project>();
+		Project last = null;
+
+		for (Project project : order) {
+			Long time = times.get(project);
+			if (time == null)
+				continue;
+
+			long max = 0;
+			for (Project dep : dependson.get(project)) {
+				Long cost = costs.get(dep);
+				if (cost != null && (cost > max || previous.get(project) == null)) {
+					max = cost;
+					previous.put(project, dep);
+				}
+			}
+			long cost = max + time;
+			costs.put(project, cost);
+			if (last == null || cost > costs.get(last))
+				last = project;
+		}
+
+		critical.clear();
+		criticalTime = last == null ? 0 : costs.get(last);
+		for (Project p = last; p != null; p = previous.get(p))
+			critical.add(0, p);
+	}
+
+	/**
+	 * Answer the projects that were not built in the last build, either
+	 * because they failed or because a project they depend on failed.
+	 */
+	public synchronized Set<Project> getFailed() {
+		return new LinkedHashSet<Project>(failed);
+	}
+
+	/**
+	 * Answer the files built for a project in the last build or null.
+	 */
+	public synchronized File[] getFiles(Project project) {
+		return files.get(project);
+	}
+
+	/**
+	 * Answer the time in milliseconds it took to build a project in the last
+	 * build, or -1 if it was not built.
+	 */
+	public synchronized long getTime(Project project) {
+		Long time = times.get(project);
+		return time == null ? -1 : time;
+	}
+
+	/**
+	 * Answer the critical path of the last build, the chain of dependent
+	 * projects that took the longest time, in build order.
+	 */
+	public synchronized List<Project> getCriticalPath() {
+		return new ArrayList<Project>(critical);
+	}
+
+	/**
+	 * Answer the time in milliseconds of the critical path of the last build.
+	 */
+	public synchronized long getCriticalPathTime() {
+		return criticalTime;
+	}
+}
@@ -0,0 +1,262 @@
+package aQute.bnd.build;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import aQute.bnd.osgi.Processor;
+import aQute.lib.io.IO;
+import aQute.libg.cryptography.SHA1;
+
+/**
+ * The content of the inputs of a project build. An input is a file that can
+ * change the result of the build: the bnd files of the project and the
+ * workspace, the files in the project directory, the jars and directories on
+ * the build path and the build files of the projects it depends on. For each
+ * file its SHA-1 is recorded so a build is only needed when the content
+ * changed, not when only the last modified time changed.
+ * <p>
+ * Hashing is avoided when the length and last modified time of a file are the
+ * same as when it was hashed before, either in this process or in the previous
+ * fingerprint. A file that was modified shortly before it was hashed is always
+ * hashed again since a later change could keep the same time.
+ */
+class Fingerprint {
+	final static int							MAX			= 100000;
+	final static long							RACY		= 2000;
+	final static ConcurrentMap<File,Entry>	digests		= new ConcurrentHashMap<File,Entry>();
+
+	final SortedMap<String,Entry>				entries		= new TreeMap<String,Entry>();
+
+	static class Entry {
+		final long		length;
+		final long		lastModified;
+		final long		checked;
+		final String	sha;
+
+		Entry(long length, long lastModified, long checked, String sha) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.checked = checked;
+			this.sha = sha;
+		}
+
+		boolean isValid(long length, long lastModified) {
+			return this.length == length && this.lastModified == lastModified && lastModified + RACY < checked;
+		}
+	}
+
+	/**
+	 * Calculate the fingerprint of the current inputs of the project. The
+	 * previous fingerprint, if not null, is used to avoid hashing files that
+	 * did not change.
+	 */
+	static Fingerprint calculate(Project project, Fingerprint previous) throws Exception {
+		Fingerprint fp = new Fingerprint();
+		File workspace = project.getWorkspace().getBase();
+		File target = project.getTarget();
+
+		fp.scan(workspace, project.getBase(), target, previous);
+		fp.scan(workspace, project.getOutput(), target, previous);
+
+		for (Processor p = project; p != null; p = p.getParent()) {
+			fp.add(workspace, p.getPropertiesFile(), previous);
+			if (p.getIncluded() != null)
+				for (File f : p.getIncluded())
+					fp.add(workspace, f, previous);
+		}
+
+		for (Container c : project.getBuildpath())
+			fp.scan(workspace, c.getFile(), target, previous);
+		for (Container c : project.getBootclasspath())
+			fp.scan(workspace, c.getFile(), target, previous);
+
+		for (Project dependency : project.getDependson()) {
+			if (dependency == project || dependency.isNoBundles())
+				continue;
+
+			File[] files = dependency.getBuildFiles(false);
+			if (files != null)
+				for (File f : files)
+					fp.add(workspace, f, previous);
+		}
+		return fp;
+	}
+
+	private void scan(File workspace, File file, File target, Fingerprint previous) throws Exception {
+		if (file == null || file.equals(target))
+			return;
+
+		if (file.isDirectory()) {
+			if (IO.isSymbolicLink(file))
+				return;
+
+			File[] files = file.listFiles();
+			if (files != null)
+				for (File sub : files) {
+					if (sub.isDirectory() && sub.getName().startsWith("."))
+						continue;
+					scan(workspace, sub, target, previous);
+				}
+		} else
+			add(workspace, file, previous);
+	}
+
+	void add(File workspace, File file, Fingerprint previous) throws Exception {
+		if (file == null || !file.isFile())
+			return;
+
+		file = file.getAbsoluteFile();
+		String path = getPath(workspace, file);
+		if (entries.containsKey(path))
+			return;
+
+		long length = file.length();
+		long lastModified = file.lastModified();
+
+		Entry entry = previous == null ? null : previous.entries.get(path);
+		if (entry == null || !entry.isValid(length, lastModified)) {
+			entry = digests.get(file);
+			if (entry == null || !entry.isValid(length, lastModified)) {
+				long checked = System.currentTimeMillis();
+				entry = new Entry(length, lastModified, checked, SHA1.digest(file).asHex());
+				if (digests.size() >= MAX)
+					digests.clear();
+				digests.put(file, entry);
+			}
+		}
+		entries.put(path, entry);
+	}
+
+	/*
+	 * Paths in the workspace are relative so the fingerprint remains valid
+	 * when the workspace is moved
+	 */
+	private static String getPath(File workspace, File file) {
+		String path = file.getAbsolutePath();
+		String prefix = workspace.getAbsolutePath() + File.separator;
+		if (path.startsWith(prefix))
+			path = path.substring(prefix.length());
+		return path.replace(File.separatorChar, '/');
+	}
+
+	private static File getFile(File workspace, String path) {
+		File file = new File(path.replace('/', File.separatorChar));
+		if (file.isAbsolute())
+			return file;
+		return new File(workspace, file.getPath());
+	}
+
+	/**
+	 * Calculate the fingerprint of the same files again, the files that did
+	 * not change are not hashed again.
+	 */
+	Fingerprint recalculate(File workspace) throws Exception {
+		Fingerprint fp = new Fingerprint();
+		for (String path : entries.keySet())
+			fp.add(workspace, getFile(workspace, path), this);
+		return fp;
+	}
+
+	/**
+	 * Answer the first difference between this fingerprint and a newer
+	 * fingerprint, or null if the inputs have the same content.
+	 */
+	String diff(Fingerprint newer) {
+		for (Map.Entry<String,Entry> e : newer.entries.entrySet()) {
+			Entry old = entries.get(e.getKey());
+			if (old == null)
+				return "added " + e.getKey();
+			if (!old.sha.equals(e.getValue().sha))
+				return "changed " + e.getKey();
+		}
+		for (String path : entries.keySet()) {
+			if (!newer.entries.containsKey(path))
+				return "removed " + path;
+		}
+		return null;
+	}
+
+	/**
+	 * Read a fingerprint, answer null if there is none
+	 */
+	static Fingerprint read(File file) throws Exception {
+		if (!file.isFile())
+			return null;
+
+		Fingerprint fp = new Fingerprint();
+		BufferedReader rdr = IO.reader(file, "UTF-8");
+		try {
+			for (String s = rdr.readLine(); s != null; s = rdr.readLine()) {
+				String[] parts = s.split(" ", 5);
+				if (parts.length != 5)
+					return null;
+
+				fp.entries.put(parts[4], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+						Long.parseLong(parts[3]), parts[0]));
+			}
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		finally {
+			rdr.close();
+		}
+		return fp;
+	}
+
+	static Fingerprint read(DataInputStream in) throws IOException {
+		Fingerprint fp = new Fingerprint();
+		for (int n = in.readInt(); n > 0; n--) {
+			String path = in.readUTF();
+			fp.entries.put(path, new Entry(in.readLong(), in.readLong(), in.readLong(), in.readUTF()));
+		}
+		return fp;
+	}
+
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(entries.size());
+		for (Map.Entry<String,Entry> e : entries.entrySet()) {
+			Entry entry = e.getValue();
+			out.writeUTF(e.getKey());
+			out.writeLong(entry.length);
+			out.writeLong(entry.lastModified);
+			out.writeLong(entry.checked);
+			out.writeUTF(entry.sha);
+		}
+	}
+
+	void write(File file) throws Exception {
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IllegalStateException("Could not create directory " + dir);
+
+		PrintWriter pw = IO.writer(file, "UTF-8");
+		try {
+			for (Map.Entry<String,Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				pw.print(entry.sha);
+				pw.print(' ');
+				pw.print(entry.length);
+				pw.print(' ');
+				pw.print(entry.lastModified);
+				pw.print(' ');
+				pw.print(entry.checked);
+				pw.print(' ');
+				pw.print(e.getKey());
+				pw.print('\n');
+			}
+		}
+		finally {
+			pw.close();
+		}
+	}
+}
@@ -0,0 +1,392 @@
+package aQute.bnd.build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import aQute.bnd.osgi.Analyzer;
+import aQute.bnd.osgi.ClassDataCollector;
+import aQute.bnd.osgi.Clazz;
+import aQute.bnd.osgi.Descriptors.TypeRef;
+import aQute.bnd.osgi.FileResource;
+import aQute.lib.strings.Strings;
+
+/**
+ * Compiles the sources of a project with the {@link JavaCompiler} of the
+ * running VM, so no VM has to be started. The compiler remembers for each
+ * source the classes it produced and, from the class files, the classes each
+ * class refers to. A next compile only compiles the sources that changed and
+ * the sources with classes that refer, directly or indirectly, to the classes
+ * of the changed sources.
+ * <p>
+ * Everything is compiled again when the options or the class path changed, or
+ * when a changed class has constants since other classes can have inlined
+ * them. Each compile uses its own file manager and closes it, a file manager
+ * keeps the contents of the jars it read and keeps them open.
+ */
+class IncrementalCompiler {
+	final Project					project;
+	final JavaCompiler				compiler;
+	final Map<File,Source>			sources		= new HashMap<File,Source>();
+	final Map<String,File>			classes		= new HashMap<String,File>();
+	final Map<String,Set<String>>	references	= new HashMap<String,Set<String>>();
+	String							signature;
+
+	static class Source {
+		final long			lastModified;
+		final long			length;
+		final Set<String>	classes	= new LinkedHashSet<String>();
+		boolean				constants;
+
+		Source(long lastModified, long length) {
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+
+		boolean isChanged(File file) {
+			return lastModified != file.lastModified() || length != file.length();
+		}
+
+		/*
+		 * Answer true if a class of the source is no longer in the output
+		 */
+		boolean isMissing(File output) {
+			for (String name : classes) {
+				if (!new File(output, name + ".class").isFile())
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/*
+	 * Records the classes written for each source
+	 */
+	class Recorder extends ForwardingJavaFileManager<StandardJavaFileManager> {
+		final Map<File,Set<String>> written = new HashMap<File,Set<String>>();
+
+		Recorder(StandardJavaFileManager fileManager) {
+			super(fileManager);
+		}
+
+		@Override
+		public JavaFileObject getJavaFileForOutput(Location location, String className, Kind kind, FileObject sibling)
+				throws IOException {
+			if (kind == Kind.CLASS && sibling != null) {
+				URI uri = sibling.toUri();
+				if ("file".equals(uri.getScheme())) {
+					File source = normalize(new File(uri));
+					Set<String> set = written.get(source);
+					if (set == null) {
+						set = new LinkedHashSet<String>();
+						written.put(source, set);
+					}
+					set.add(className.replace('.', '/'));
+				}
+			}
+			return super.getJavaFileForOutput(location, className, kind, sibling);
+		}
+	}
+
+	/*
+	 * Detects constants that can be inlined in other classes
+	 */
+	static class ConstantFields extends ClassDataCollector {
+		Clazz.FieldDef	last;
+		boolean			constants;
+
+		@Override
+		public void field(Clazz.FieldDef field) {
+			last = field;
+		}
+
+		@Override
+		public void constant(Object object) {
+			if (last != null && !last.isPrivate())
+				constants = true;
+		}
+	}
+
+	IncrementalCompiler(Project project, JavaCompiler compiler) {
+		this.project = project;
+		this.compiler = compiler;
+	}
+
+	/**
+	 * Answer a compiler for the project or null if this VM has no compiler
+	 */
+	static IncrementalCompiler create(Project project) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null)
+			return null;
+		return new IncrementalCompiler(project, compiler);
+	}
+
+	/**
+	 * Compile the files that need to be compiled. The options must not
+	 * contain the class path, the output directory is added in front of the
+	 * class path so the classes that are not compiled can be found.
+	 */
+	synchronized boolean compile(List<String> options, List<File> classpath, File output, List<File> files)
+			throws Exception {
+		List<File> path = new ArrayList<File>();
+		path.add(output);
+		path.addAll(classpath);
+
+		Set<File> current = new LinkedHashSet<File>();
+		for (File file : files)
+			current.add(normalize(file));
+
+		String signature = getSignature(options, path, output);
+		Set<File> compile = new LinkedHashSet<File>();
+		boolean full = !signature.equals(this.signature);
+
+		if (!full) {
+			Set<File> changed = new LinkedHashSet<File>();
+			for (File file : current) {
+				Source source = sources.get(file);
+				if (source == null || source.isChanged(file) || source.isMissing(output))
+					changed.add(file);
+			}
+			for (File file : sources.keySet()) {
+				if (!current.contains(file))
+					changed.add(file);
+			}
+
+			if (changed.isEmpty()) {
+				project.trace("compile %s is up to date", output);
+				return true;
+			}
+
+			Deque<String> affected = new ArrayDeque<String>();
+			for (File file : changed) {
+				Source source = sources.get(file);
+				if (source != null) {
+					full |= source.constants;
+					affected.addAll(source.classes);
+				}
+				if (current.contains(file))
+					compile.add(file);
+			}
+
+			if (!full)
+				addDependents(affected, compile, current);
+		}
+
+		if (full) {
+			compile.addAll(current);
+			for (File file : new ArrayList<File>(sources.keySet()))
+				remove(file, output);
+		} else {
+			for (File file : new ArrayList<File>(sources.keySet())) {
+				if (compile.contains(file) || !current.contains(file))
+					remove(file, output);
+			}
+		}
+		this.signature = signature;
+
+		if (compile.isEmpty())
+			return true;
+
+		project.trace("compile %s of %s files to %s", compile.size(), current.size(), output);
+
+		Map<File,Source> stamps = new HashMap<File,Source>();
+		for (File file : compile)
+			stamps.put(file, new Source(file.lastModified(), file.length()));
+
+		List<String> args = new ArrayList<String>(options);
+		args.add("-classpath");
+		args.add(Strings.join(File.pathSeparator, path));
+
+		StringWriter out = new StringWriter();
+		StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+		Recorder recorder = new Recorder(fileManager);
+		boolean ok;
+		try {
+			ok = compiler.getTask(out, recorder, null, args, null, fileManager.getJavaFileObjectsFromFiles(compile))
+					.call();
+		}
+		catch (IllegalArgumentException e) {
+			// an invalid option
+			out.write(e.getMessage());
+			ok = false;
+		}
+		finally {
+			fileManager.close();
+		}
+
+		if (!ok) {
+			project.error("javac failed %s", out);
+			// the failed sources are compiled again next time
+			for (File file : recorder.written.keySet())
+				remove(file, output);
+			return false;
+		}
+
+		if (out.getBuffer().length() > 0)
+			project.trace("javac: %s", out);
+
+		Analyzer analyzer = new Analyzer();
+		try {
+			for (File file : compile) {
+				Source source = stamps.get(file);
+				sources.put(file, source);
+			}
+
+			for (Map.Entry<File,Set<String>> e : recorder.written.entrySet()) {
+				File file = e.getKey();
+				Source source = stamps.get(file);
+				if (source == null) {
+					// compiled implicitly through the source path
+					forget(file);
+					source = new Source(file.lastModified(), file.length());
+					sources.put(file, source);
+				}
+
+				for (String name : e.getValue())
+					parse(analyzer, source, file, name, output);
+			}
+		}
+		finally {
+			analyzer.close();
+		}
+		return true;
+	}
+
+	private void parse(Analyzer analyzer, Source source, File file, String name, File output) throws Exception {
+		source.classes.add(name);
+		classes.put(name, file);
+
+		File classFile = new File(output, name + ".class");
+		if (!classFile.isFile())
+			return;
+
+		ConstantFields constants = new ConstantFields();
+		Clazz clazz = new Clazz(analyzer, name + ".class", new FileResource(classFile));
+		Set<String> refs = new HashSet<String>();
+		for (TypeRef ref : clazz.parseClassFileWithCollector(constants)) {
+			if (!ref.isPrimitive())
+				refs.add(ref.getBinary());
+		}
+		references.put(name, refs);
+		source.constants |= constants.constants;
+	}
+
+	/*
+	 * Add the sources that refer to the affected classes, this is repeated for
+	 * the classes of these sources
+	 */
+	private void addDependents(Deque<String> affected, Set<File> compile, Set<File> current) {
+		Map<String,List<String>> dependents = new HashMap<String,List<String>>();
+		for (Map.Entry<String,Set<String>> e : references.entrySet()) {
+			for (String ref : e.getValue()) {
+				List<String> list = dependents.get(ref);
+				if (list == null) {
+					list = new ArrayList<String>();
+					dependents.put(ref, list);
+				}
+				list.add(e.getKey());
+			}
+		}
+
+		Set<String> done = new HashSet<String>(affected);
+		while (!affected.isEmpty()) {
+			List<String> list = dependents.get(affected.poll());
+			if (list == null)
+				continue;
+
+			for (String dependent : list) {
+				File file = classes.get(dependent);
+				if (file == null || !current.contains(file) || !compile.add(file))
+					continue;
+
+				for (String name : sources.get(file).classes) {
+					if (done.add(name))
+						affected.add(name);
+				}
+			}
+		}
+	}
+
+	private void remove(File file, File output) {
+		Source source = forget(file);
+		if (source == null)
+			return;
+
+		for (String name : source.classes)
+			new File(output, name + ".class").delete();
+	}
+
+	private Source forget(File file) {
+		Source source = sources.remove(file);
+		if (source != null) {
+			for (String name : source.classes) {
+				classes.remove(name);
+				references.remove(name);
+			}
+		}
+		return source;
+	}
+
+	private static File normalize(File file) {
+		return new File(file.getAbsoluteFile().toURI().normalize());
+	}
+
+	/*
+	 * The options and the state of the class path, a change requires a full
+	 * compile. The output directory is ignored since we change it ourselves.
+	 */
+	private String getSignature(List<String> options, Collection<File> path, File output) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(options);
+		for (File file : path) {
+			sb.append(';').append(file);
+			if (!file.equals(output))
+				stamp(sb, file);
+		}
+		return sb.toString();
+	}
+
+	private void stamp(StringBuilder sb, File file) {
+		if (file.isDirectory()) {
+			long lastModified = 0;
+			int count = 0;
+			Deque<File> dirs = new ArrayDeque<File>();
+			dirs.add(file);
+			while (!dirs.isEmpty()) {
+				File[] sub = dirs.poll().listFiles();
+				if (sub == null)
+					continue;
+				for (File f : sub) {
+					if (f.isDirectory())
+						dirs.add(f);
+					else {
+						lastModified = Math.max(lastModified, f.lastModified());
+						count++;
+					}
+				}
+			}
+			sb.append(',').append(lastModified).append(',').append(count);
+		} else
+			sb.append(',').append(file.lastModified()).append(',').append(file.length());
+	}
+}
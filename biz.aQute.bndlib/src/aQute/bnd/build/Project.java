@@ -19,6 +19,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -103,6 +104,7 @@ public class Project extends Processor {
 	public final static String	BNDFILE					= "bnd.bnd";
 	public final static String	BNDCNF					= "cnf";
 	public final static String	SHA_256					= "SHA-256";
+	final static String			CHECKING				= "checking";
 	final Workspace				workspace;
 	boolean						preparedPaths;
 	final Collection<Project>	dependson				= new LinkedHashSet<Project>();
@@ -117,6 +119,7 @@ public class Project extends Processor {
 	final Collection<File>		allsourcepath			= new LinkedHashSet<File>();
 	final Collection<Container>	bootclasspath			= new LinkedHashSet<Container>();
 	final Map<String,Version>	versionMap				= new LinkedHashMap<String,Version>();
+	int							versionGeneration;		// guarded by versionMap
 	final Lock					lock					= new ReentrantLock(true);
 	volatile String				lockingReason;
 	volatile Thread				lockingThread;
@@ -125,7 +128,13 @@ public class Project extends Processor {
 	boolean						inPrepare;
 	int							revision;
 	File						files[];
-	static List<Project>		trail					= new ArrayList<Project>();
+	// the projects that are being prepared by the current thread
+	final static ThreadLocal<List<Project>>	trail	= new ThreadLocal<List<Project>>() {
+														@Override
+														protected List<Project> initialValue() {
+															return new ArrayList<Project>();
+														}
+													};
 	boolean						delayRunDependencies	= true;
 	final ProjectMessages		msgs					= ReporterMessages.base(this, ProjectMessages.class);
 	private Properties			ide;
@@ -134,6 +143,7 @@ public class Project extends Processor {
 	final Packages				containedPackages		= new Packages();
 	final PackageInfo			packageInfo				= new PackageInfo(this);
 	private Makefile			makefile;
+	final Map<String,IncrementalCompiler>	compilers	= new HashMap<String,IncrementalCompiler>();
 
 	public Project(Workspace workspace, File unused, File buildFile) throws Exception {
 		super(workspace);
@@ -243,9 +253,9 @@ public class Project extends Processor {
 		}
 
 		if (inPrepare)
-			throw new CircularDependencyException(trail.toString() + "," + this);
+			throw new CircularDependencyException(trail.get().toString() + "," + this);
 
-		trail.add(this);
+		trail.get().add(this);
 		try {
 			if (!preparedPaths) {
 
@@ -269,6 +279,13 @@ public class Project extends Processor {
 					// use.
 					setProperty("basedir", getBase().getAbsolutePath());
 
+					// A snapshot of an earlier prepare saves resolving the
+					// paths again
+					if (ProjectSnapshot.restore(this)) {
+						preparedPaths = true;
+						return;
+					}
+
 					// If a bnd.bnd file exists, we read it.
 					// Otherwise, we just do the build properties.
 					if (!getPropertiesFile().isFile() && new File(getBase(), ".classpath").isFile()) {
@@ -391,6 +408,7 @@ public class Project extends Processor {
 					// the same projects.
 					// if (isOk())
 					preparedPaths = true;
+					ProjectSnapshot.store(this);
 				}
 				finally {
 					inPrepare = false;
@@ -398,7 +416,7 @@ public class Project extends Processor {
 			}
 		}
 		finally {
-			trail.remove(this);
+			trail.get().remove(this);
 		}
 	}
 
@@ -1512,62 +1530,78 @@ public class Project extends Processor {
 	}
 
 	/**
-	 * Check if this project needs building. This is defined as:
+	 * Check if this project needs building, see {@link #getStaleReason()}.
 	 */
 	public boolean isStale() throws Exception {
+		return getStaleReason() != null;
+	}
+
+	/**
+	 * Answer why this project needs building, or null when it does not. A
+	 * project needs building when it has no build files, when a project it
+	 * depends on needs building, or when the content of one of its inputs
+	 * differs from the content when it was last built. The content of the
+	 * inputs is recorded in the workspace cache after each build.
+	 */
+	public String getStaleReason() throws Exception {
 		if (workspace == null || workspace.isOffline()) {
 			trace("working %s offline, so always stale", this);
-			return true;
+			return "working offline";
 		}
 
-		Set<Project> visited = new HashSet<Project>();
-		return isStale(visited);
+		return getStaleReason(new HashMap<Project,String>());
 	}
 
-	boolean isStale(Set<Project> visited) throws Exception {
+	/*
+	 * Every project is checked once, the results are remembered in checked
+	 * since a dependency can be reached through many paths
+	 */
+	private String getStaleReason(Map<Project,String> checked) throws Exception {
 		// When we do not generate anything ...
 		if (isNoBundles())
-			return false;
+			return null;
 
-		if (visited.contains(this)) {
-			msgs.CircularDependencyContext_Message_(this.getName(), visited.toString());
-			return false;
+		if (checked.containsKey(this)) {
+			String reason = checked.get(this);
+			if (reason == CHECKING) {
+				msgs.CircularDependencyContext_Message_(this.getName(), checked.keySet().toString());
+				return null;
+			}
+			return reason;
 		}
 
-		visited.add(this);
-
-		long buildTime = 0;
+		checked.put(this, CHECKING);
+		String reason = getStaleReason0(checked);
+		checked.put(this, reason);
+		if (reason != null)
+			trace("%s is stale: %s", this, reason);
+		return reason;
+	}
 
+	private String getStaleReason0(Map<Project,String> checked) throws Exception {
 		files = getBuildFiles(false);
 		if (files == null)
-			return true;
-
-		for (File f : files) {
-			if (f.lastModified() < lastModified())
-				return true;
-
-			if (buildTime < f.lastModified())
-				buildTime = f.lastModified();
-		}
+			return "no build files";
 
 		for (Project dependency : getDependson()) {
 			if (dependency == this)
 				continue;
 
-			if (dependency.isStale())
-				return true;
+			if (dependency.getStaleReason(checked) != null)
+				return "dependency " + dependency + " is stale";
+		}
 
-			if (dependency.isNoBundles())
-				continue;
+		Fingerprint fingerprint = Fingerprint.read(getFingerprintFile());
+		if (fingerprint == null)
+			return "inputs not recorded";
 
-			File[] deps = dependency.getBuildFiles();
-			for (File f : deps) {
-				if (f.lastModified() >= buildTime)
-					return true;
-			}
-		}
+		return fingerprint.diff(Fingerprint.calculate(this, fingerprint));
+	}
 
-		return false;
+	File getFingerprintFile() {
+		if (workspace == null)
+			return null;
+		return new File(workspace.getCache("fingerprints"), getName());
 	}
 
 	/**
@@ -1624,7 +1658,7 @@ public class Project extends Processor {
 		if (isNoBundles())
 			return null;
 
-		versionMap.clear();
+		clearVersions();
 		getMakefile().make();
 
 		//
@@ -1642,6 +1676,23 @@ public class Project extends Processor {
 		File bfs = new File(getTarget(), BUILDFILES);
 		bfs.delete();
 
+		// The inputs are recorded before the build so a change during the
+		// build is seen next time
+		File fpf = getFingerprintFile();
+		Fingerprint fingerprint = null;
+		boolean changed = false;
+		if (fpf != null) {
+			try {
+				Fingerprint previous = Fingerprint.read(fpf);
+				fingerprint = Fingerprint.calculate(this, previous);
+				changed = previous != null && previous.diff(fingerprint) != null;
+			}
+			catch (Exception e) {
+				trace("cannot record the inputs of %s: %s", this, e);
+			}
+			fpf.delete();
+		}
+
 		files = null;
 		ProjectBuilder builder = getBuilder(null);
 		try {
@@ -1657,7 +1708,7 @@ public class Project extends Processor {
 
 				for (int i = 0; i < jars.length; i++) {
 					Jar jar = jars[i];
-					File file = saveBuild(jar);
+					File file = saveBuild(jar, changed);
 					if (file == null) {
 						getInfo(builder);
 						error("Could not save %s", jar.getName());
@@ -1679,6 +1730,8 @@ public class Project extends Processor {
 					fw.close();
 				}
 				getWorkspace().changedFile(bfs);
+				if (fingerprint != null)
+					fingerprint.write(fpf);
 				return files;
 			}
 			return null;
@@ -1698,10 +1751,19 @@ public class Project extends Processor {
 	}
 
 	public File saveBuild(Jar jar) throws Exception {
+		return saveBuild(jar, false);
+	}
+
+	/*
+	 * A jar is not saved when the file is newer than the jar. Changed inputs
+	 * can have an older time, for example after a checkout, so then the jar is
+	 * always saved.
+	 */
+	private File saveBuild(Jar jar, boolean changed) throws Exception {
 		try {
 			File f = getOutputFile(jar.getBsn(), jar.getVersion());
 			String msg = "";
-			if (!f.exists() || f.lastModified() < jar.lastModified()) {
+			if (changed || !f.exists() || f.lastModified() < jar.lastModified()) {
 				reportNewer(f.lastModified(), jar);
 				f.delete();
 				File fp = f.getParentFile();
@@ -1793,9 +1855,8 @@ public class Project extends Processor {
 	 */
 	@Override
 	public boolean refresh() {
-		synchronized (versionMap) {
-			versionMap.clear();
-		}
+		clearVersions();
+		clearCompilers();
 		boolean changed = false;
 		if (isCnf()) {
 			changed = workspace.refresh();
@@ -1818,8 +1879,8 @@ public class Project extends Processor {
 		preparedPaths = false;
 		files = null;
 		makefile = null;
-		versionMap.clear();
-
+		clearVersions();
+		clearCompilers();
 	}
 
 	public String getName() {
@@ -1886,6 +1947,7 @@ public class Project extends Processor {
 			ProjectLauncher launcher = packageProject.getProjectLauncher();
 			launcher.setKeep(keep);
 			Jar jar = launcher.executable();
+			jar.setCompressionParallelism(packageProject.getParallelism(COMPRESSION_PARALLELISM));
 			getInfo(launcher);
 
 			outStream = new FileOutputStream(output);
@@ -1934,6 +1996,7 @@ public class Project extends Processor {
 		clean(getSrcOutput(), "source output");
 		clean(getTestOutput(), "test output");
 		clean(getOutput(), "output");
+		clearCompilers();
 	}
 
 	void clean(File dir, String type) throws IOException {
@@ -2510,6 +2573,7 @@ public class Project extends Processor {
 		launcher.getRunProperties().put("profile", profile); // TODO remove
 		launcher.getRunProperties().put(PROFILE, profile);
 		Jar jar = launcher.executable();
+		jar.setCompressionParallelism(getParallelism(COMPRESSION_PARALLELISM));
 		Manifest m = jar.getManifest();
 		Attributes main = m.getMainAttributes();
 		for (String key : getPropertyKeys(true)) {
@@ -2618,70 +2682,91 @@ public class Project extends Processor {
 
 	public void compile(boolean test) throws Exception {
 
-		Command javac = getCommonJavac(false);
-		javac.add("-d", getOutput().getAbsolutePath());
-
-		StringBuilder buildpath = new StringBuilder();
-
-		String buildpathDel = "";
+		List<File> buildpath = new ArrayList<File>();
 		Collection<Container> bp = Container.flatten(getBuildpath());
 		trace("buildpath %s", getBuildpath());
 		for (Container c : bp) {
-			buildpath.append(buildpathDel).append(c.getFile().getAbsolutePath());
-			buildpathDel = File.pathSeparator;
-		}
-
-		if (buildpath.length() != 0) {
-			javac.add("-classpath", buildpath.toString());
-		}
-
-		List<File> sp = new ArrayList<File>(getAllsourcepath());
-		StringBuilder sourcepath = new StringBuilder();
-		String sourcepathDel = "";
-
-		for (File sourceDir : sp) {
-			sourcepath.append(sourcepathDel).append(sourceDir.getAbsolutePath());
-			sourcepathDel = File.pathSeparator;
+			buildpath.add(c.getFile());
 		}
 
-		javac.add("-sourcepath", sourcepath.toString());
+		List<File> sourcepath = new ArrayList<File>(getAllsourcepath());
 
 		Glob javaFiles = new Glob("*.java");
 		List<File> files = javaFiles.getFiles(getSrc(), true, false);
 
-		for (File file : files) {
-			javac.add(file.getAbsolutePath());
-		}
-
 		if (files.isEmpty()) {
 			trace("Not compiled, no source files");
 		} else
-			compile(javac, "src");
+			compile(getOutput(), buildpath, sourcepath, files, false, "src");
 
 		if (test) {
-			javac = getCommonJavac(true);
-			javac.add("-d", getTestOutput().getAbsolutePath());
-
 			Collection<Container> tp = Container.flatten(getTestpath());
 			for (Container c : tp) {
-				buildpath.append(buildpathDel).append(c.getFile().getAbsolutePath());
-				buildpathDel = File.pathSeparator;
-			}
-			if (buildpath.length() != 0) {
-				javac.add("-classpath", buildpath.toString());
+				buildpath.add(c.getFile());
 			}
 
-			sourcepath.append(sourcepathDel).append(getTestSrc().getAbsolutePath());
-			javac.add("-sourcepath", sourcepath.toString());
+			sourcepath.add(getTestSrc());
 
 			javaFiles.getFiles(getTestSrc(), files, true, false);
-			for (File file : files) {
-				javac.add(file.getAbsolutePath());
-			}
 			if (files.isEmpty()) {
 				trace("Not compiled for test, no test src files");
 			} else
-				compile(javac, "test");
+				compile(getTestOutput(), buildpath, sourcepath, files, true, "test");
+		}
+	}
+
+	/*
+	 * When the javac property is not set the compiler of this VM is used, if
+	 * present. It only compiles what changed since the previous compile.
+	 * Otherwise an external javac is started.
+	 */
+	private void compile(File output, List<File> buildpath, List<File> sourcepath, List<File> files, boolean test,
+			String what) throws Exception {
+		List<String> options = getJavacOptions(test);
+		options.add("-d");
+		options.add(output.getAbsolutePath());
+		options.add("-sourcepath");
+		options.add(Strings.join(File.pathSeparator, sourcepath));
+
+		String javac = getProperty("javac", "javac");
+		if ("javac".equals(javac)) {
+			IncrementalCompiler compiler = getCompiler(what);
+			if (compiler != null) {
+				compiler.compile(options, buildpath, output, files);
+				return;
+			}
+		}
+
+		Command command = new Command();
+		command.add(javac);
+		for (String option : options)
+			command.add(option);
+		if (!buildpath.isEmpty())
+			command.add("-classpath", Strings.join(File.pathSeparator, buildpath));
+		for (File file : files) {
+			command.add(file.getAbsolutePath());
+		}
+		compile(command, what);
+	}
+
+	private IncrementalCompiler getCompiler(String what) {
+		synchronized (compilers) {
+			IncrementalCompiler compiler = compilers.get(what);
+			if (compiler == null && !compilers.containsKey(what)) {
+				compiler = IncrementalCompiler.create(this);
+				compilers.put(what, compiler);
+			}
+			return compiler;
+		}
+	}
+
+	/*
+	 * The compilers remember what they compiled, they start again when the
+	 * output or the project changed
+	 */
+	private void clearCompilers() {
+		synchronized (compilers) {
+			compilers.clear();
 		}
 	}
 
@@ -2700,9 +2785,8 @@ public class Project extends Processor {
 		}
 	}
 
-	private Command getCommonJavac(boolean test) throws Exception {
-		Command javac = new Command();
-		javac.add(getProperty("javac", "javac"));
+	private List<String> getJavacOptions(boolean test) throws Exception {
+		List<String> javac = new ArrayList<String>();
 		String target = getProperty("javac.target", "1.6");
 		String profile = getProperty("javac.profile", "");
 		String source = getProperty("javac.source", "1.6");
@@ -2714,20 +2798,25 @@ public class Project extends Processor {
 
 		boolean deprecation = isTrue(getProperty("java.deprecation"));
 
-		javac.add("-encoding", "UTF-8");
+		javac.add("-encoding");
+		javac.add("UTF-8");
 
-		javac.add("-source", source);
+		javac.add("-source");
+		javac.add(source);
 
-		javac.add("-target", target);
+		javac.add("-target");
+		javac.add(target);
 
-		if (!profile.isEmpty())
-			javac.add("-profile", profile);
+		if (!profile.isEmpty()) {
+			javac.add("-profile");
+			javac.add(profile);
+		}
 
 		if (deprecation)
 			javac.add("-deprecation");
 
 		if (test || debug == null) {
-			javac.add("-g:source,lines,vars" + debug);
+			javac.add("-g:source,lines,vars");
 		} else {
 			javac.add("-g:" + debug);
 		}
@@ -2776,24 +2865,48 @@ public class Project extends Processor {
 		return null;
 	}
 
+	/*
+	 * The versions are calculated without holding the lock on the version
+	 * map, the sub builders need the lock on this project. A project that is
+	 * prepared holds that lock and can ask for the versions of other projects.
+	 */
 	public Map<String,Version> getVersions() throws Exception {
+		int generation;
 		synchronized (versionMap) {
-			if (versionMap.isEmpty()) {
-				for (Builder builder : getSubBuilders()) {
-					String v = builder.getVersion();
-					if (v == null)
-						v = "0";
-					else {
-						v = Analyzer.cleanupVersion(v);
-						if (!Verifier.isVersion(v))
-							continue; // skip
-					}
+			if (!versionMap.isEmpty())
+				return new LinkedHashMap<String,Version>(versionMap);
+			generation = versionGeneration;
+		}
 
-					Version version = new Version(v);
-					versionMap.put(builder.getBsn(), version);
-				}
+		Map<String,Version> versions = new LinkedHashMap<String,Version>();
+		for (Builder builder : getSubBuilders()) {
+			String v = builder.getVersion();
+			if (v == null)
+				v = "0";
+			else {
+				v = Analyzer.cleanupVersion(v);
+				if (!Verifier.isVersion(v))
+					continue; // skip
+			}
+
+			Version version = new Version(v);
+			versions.put(builder.getBsn(), version);
+		}
+
+		synchronized (versionMap) {
+			// only publish when the versions were not cleared in the mean time
+			if (generation == versionGeneration) {
+				versionMap.clear();
+				versionMap.putAll(versions);
 			}
-			return new LinkedHashMap<String,Version>(versionMap);
+		}
+		return versions;
+	}
+
+	private void clearVersions() {
+		synchronized (versionMap) {
+			versionMap.clear();
+			versionGeneration++;
 		}
 	}
 
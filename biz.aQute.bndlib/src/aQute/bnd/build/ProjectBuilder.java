@@ -1,6 +1,7 @@
 package aQute.bnd.build;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -75,16 +76,17 @@ public class ProjectBuilder extends Builder {
 		try {
 			if (!initialized) {
 				initialized = true;
+				setClazzCache(project.getWorkspace().getClazzCache());
 				for (Container file : project.getClasspath()) {
-					addClasspath(file.getFile());
+					addContainer(file.getFile());
 				}
 
 				for (Container file : project.getBuildpath()) {
-					addClasspath(file.getFile());
+					addContainer(file.getFile());
 				}
 
 				for (Container file : project.getBootclasspath()) {
-					addClasspath(file.getFile());
+					addContainer(file.getFile());
 				}
 
 				for (File file : project.getAllsourcepath()) {
@@ -98,6 +100,16 @@ public class ProjectBuilder extends Builder {
 		}
 	}
 
+	/*
+	 * Jar files are shared with the other builders in the workspace
+	 */
+	private void addContainer(File file) throws IOException {
+		if (file.isFile())
+			addClasspath(project.getWorkspace().getJarCache().get(file, this));
+		else
+			addClasspath(file);
+	}
+
 	@Override
 	public List<Jar> getClasspath() {
 		init();
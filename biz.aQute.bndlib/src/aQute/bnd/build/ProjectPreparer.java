@@ -0,0 +1,266 @@
+package aQute.bnd.build;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import aQute.bnd.header.Parameters;
+import aQute.bnd.osgi.Constants;
+import aQute.bnd.osgi.Instructions;
+import aQute.bnd.osgi.Processor;
+import aQute.bnd.service.DependencyContributor;
+import aQute.libg.tarjan.Tarjan;
+
+/**
+ * Finds and prepares the projects of a workspace with multiple threads. A
+ * project prepares the projects it depends on while it is locked, so two
+ * projects that depend on each other would deadlock when prepared at the same
+ * time. The dependencies are therefore first read from the instructions of the
+ * projects, without resolving them, and a project is only prepared after the
+ * projects it refers to. Projects in a cycle, and the projects that refer to
+ * them, are prepared afterwards on the calling thread, they report the cycle
+ * as before.
+ * <p>
+ * When there are {@link DependencyContributor} plugins the dependencies cannot
+ * be known up front and all projects are prepared on the calling thread.
+ */
+class ProjectPreparer {
+	final static String[]				PATHS		= {
+			Constants.BUILDPATH, Constants.TESTPATH, Constants.RUNFW, Constants.RUNPATH, Constants.RUNBUNDLES
+	};
+
+	final Workspace						workspace;
+	final int							parallelism;
+	final Map<Project,Set<Project>>		refers		= new LinkedHashMap<Project,Set<Project>>();
+	final Map<Project,List<Project>>	referrers	= new HashMap<Project,List<Project>>();
+
+	// State of the parallel phase, guarded by this
+	private Map<Project,Integer>		waiting;
+	private Deque<Project>				ready;
+	private int							remaining;
+
+	ProjectPreparer(Workspace workspace, int parallelism) {
+		this.workspace = workspace;
+		this.parallelism = parallelism;
+	}
+
+	List<Project> prepare() throws Exception {
+		final List<String> names = workspace.getProjectNames();
+
+		// Plugins are loaded once and shared by the projects
+		workspace.getPlugins();
+
+		//
+		// Resolving a bundle against the workspace repository asks all
+		// projects for their versions, this locks the project that is asked.
+		// The versions are therefore calculated before any project is
+		// prepared, a project that is prepared holds its lock.
+		//
+		final Project[] found = new Project[names.size()];
+		final AtomicInteger next = new AtomicInteger();
+		run(Math.min(parallelism, names.size()), new Callable<Void>() {
+			public Void call() throws Exception {
+				for (int i; (i = next.getAndIncrement()) < found.length;) {
+					Project project = found[i] = workspace.getProject(names.get(i));
+					if (project != null)
+						try {
+							project.getVersions();
+						}
+						catch (Exception e) {
+							workspace.trace("versions of %s failed: %s", project, e);
+						}
+				}
+				return null;
+			}
+		});
+
+		List<Project> projects = new ArrayList<Project>();
+		for (Project project : found)
+			if (project != null)
+				projects.add(project);
+
+		List<Project> order = new ArrayList<Project>();
+		Set<Project> serial = new LinkedHashSet<Project>();
+		if (parallelism <= 1 || !workspace.getPlugins(DependencyContributor.class).isEmpty())
+			serial.addAll(projects);
+		else
+			plan(projects, order, serial);
+
+		if (!order.isEmpty()) {
+			synchronized (this) {
+				waiting = new HashMap<Project,Integer>();
+				ready = new ArrayDeque<Project>();
+				remaining = order.size();
+				for (Project project : order) {
+					int n = refers.get(project).size();
+					waiting.put(project, n);
+					if (n == 0)
+						ready.add(project);
+				}
+			}
+			run(Math.min(parallelism, order.size()), new Callable<Void>() {
+				public Void call() throws Exception {
+					work();
+					return null;
+				}
+			});
+		}
+
+		for (Project project : serial)
+			prepare(project);
+		return projects;
+	}
+
+	/*
+	 * Order the projects that can be prepared in parallel, the other projects
+	 * are added to serial in the order they must be prepared
+	 */
+	private void plan(List<Project> projects, List<Project> order, Set<Project> serial) throws Exception {
+		Map<String,Project> byName = new HashMap<String,Project>();
+		for (Project project : projects)
+			byName.put(project.getName(), project);
+
+		for (Project project : projects) {
+			Set<Project> set = new LinkedHashSet<Project>();
+			Instructions dependson = new Instructions(project.getMergedParameters(Constants.DEPENDSON).keySet());
+			set.addAll(dependson.select(projects, false));
+
+			for (String path : PATHS) {
+				for (String name : new Parameters(project.mergeProperties(path)).keySet()) {
+					Project refer = byName.get(Processor.removeDuplicateMarker(name));
+					if (refer != null)
+						set.add(refer);
+				}
+			}
+			set.remove(project);
+			refers.put(project, set);
+			for (Project refer : set) {
+				List<Project> list = referrers.get(refer);
+				if (list == null) {
+					list = new ArrayList<Project>();
+					referrers.put(refer, list);
+				}
+				list.add(project);
+			}
+		}
+
+		Set<Project> cyclic = new HashSet<Project>();
+		for (Collection<Project> scc : Tarjan.tarjan(refers)) {
+			if (scc.size() > 1)
+				cyclic.addAll(scc);
+		}
+
+		Set<Project> visited = new HashSet<Project>();
+		List<Project> all = new ArrayList<Project>();
+		for (Project project : projects)
+			order(project, visited, all);
+
+		for (Project project : all) {
+			boolean later = cyclic.contains(project);
+			for (Project refer : refers.get(project))
+				later |= serial.contains(refer);
+
+			if (later)
+				serial.add(project);
+			else
+				order.add(project);
+		}
+	}
+
+	private void order(Project project, Set<Project> visited, List<Project> all) {
+		if (!visited.add(project))
+			return;
+
+		for (Project refer : refers.get(project))
+			order(refer, visited, all);
+		all.add(project);
+	}
+
+	private void work() throws InterruptedException {
+		Project project;
+		while ((project = next()) != null) {
+			try {
+				prepare(project);
+			}
+			finally {
+				synchronized (this) {
+					remaining--;
+					List<Project> list = referrers.get(project);
+					if (list != null)
+						for (Project referrer : list) {
+							Integer n = waiting.get(referrer);
+							if (n == null)
+								continue;
+							waiting.put(referrer, n - 1);
+							if (n == 1)
+								ready.add(referrer);
+						}
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private synchronized Project next() throws InterruptedException {
+		while (ready.isEmpty()) {
+			if (remaining == 0)
+				return null;
+			wait();
+		}
+		return ready.poll();
+	}
+
+	/*
+	 * A project that fails to prepare prepares again when it is used and
+	 * then reports the failure to the caller
+	 */
+	private void prepare(Project project) {
+		try {
+			project.prepare();
+		}
+		catch (Exception e) {
+			workspace.trace("preparing %s failed: %s", project, e);
+		}
+	}
+
+	/*
+	 * Run the task on the calling thread or on n threads
+	 */
+	private static void run(int n, Callable<Void> task) throws Exception {
+		if (n <= 1) {
+			task.call();
+			return;
+		}
+
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+		for (int i = 0; i < n; i++) {
+			FutureTask<Void> future = new FutureTask<Void>(task);
+			tasks.add(future);
+			Processor.getExecutor().execute(future);
+		}
+
+		for (FutureTask<Void> future : tasks) {
+			try {
+				future.get();
+			}
+			catch (ExecutionException e) {
+				Throwable t = e.getCause();
+				if (t instanceof Error)
+					throw (Error) t;
+				throw (Exception) t;
+			}
+		}
+	}
+}
@@ -0,0 +1,479 @@
+package aQute.bnd.build;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import aQute.bnd.build.Container.TYPE;
+import aQute.bnd.header.Attrs;
+import aQute.bnd.osgi.Constants;
+import aQute.bnd.osgi.Instruction;
+import aQute.bnd.osgi.Processor;
+import aQute.bnd.service.DependencyContributor;
+import aQute.lib.io.IO;
+
+/**
+ * The result of preparing a project, stored in the workspace cache so a next
+ * process can use the project without resolving its paths against the
+ * repositories again. The snapshot holds the projects it depends on, the build,
+ * test and boot class path, the source path and the output directories. It is
+ * only used when the {@link Constants#PREPARE_SNAPSHOT} instruction is set.
+ * <p>
+ * A snapshot is valid as long as the instructions used to prepare the project
+ * are the same and the bnd files of the project, its workspace and the
+ * projects it depends on, and the files on its paths, have the same content.
+ * A repository can get a new version of a bundle without any of these files
+ * changing, so for the bundles from a repository the directory of the file is
+ * checked as well, a new version in the same directory changes its last
+ * modified time. Only projects that prepared without errors or warnings are
+ * stored, the run paths are not stored since they are resolved on demand.
+ * There is no snapshot when there are {@link DependencyContributor} plugins,
+ * they can add dependencies at any time.
+ */
+class ProjectSnapshot {
+	final static int			VERSION			= 1;
+	final static String[]		INSTRUCTIONS	= {
+			Constants.DEPENDSON, Constants.BUILDPATH, Constants.TESTPATH, Constants.DEFAULT_PROP_SRC_DIR,
+			Constants.DEFAULT_PROP_BIN_DIR, Constants.DEFAULT_PROP_TARGET_DIR, Constants.RUNSTORAGE
+	};
+
+	final String				base;
+	final String				instructions;
+	final Fingerprint			inputs;
+	final Map<String,Long>		directories;
+	final List<String>			dependson;
+	final List<ContainerData>	buildpath;
+	final List<ContainerData>	testpath;
+	final List<ContainerData>	bootclasspath;
+	final Map<String,Attrs>		sourcepath;
+	final List<String>			allsourcepath;
+	final String				output;
+	final String				target;
+	final String				runstorage;
+
+	static class ContainerData {
+		final String				project;
+		final String				bsn;
+		final String				version;
+		final TYPE					type;
+		final String				file;
+		final Map<String,String>	attributes;
+
+		ContainerData(String project, String bsn, String version, TYPE type, String file,
+				Map<String,String> attributes) {
+			this.project = project;
+			this.bsn = bsn;
+			this.version = version;
+			this.type = type;
+			this.file = file;
+			this.attributes = attributes;
+		}
+	}
+
+	ProjectSnapshot(String base, String instructions, Fingerprint inputs, Map<String,Long> directories, List<String> dependson,
+			List<ContainerData> buildpath, List<ContainerData> testpath, List<ContainerData> bootclasspath,
+			Map<String,Attrs> sourcepath, List<String> allsourcepath, String output, String target,
+			String runstorage) {
+		this.base = base;
+		this.instructions = instructions;
+		this.inputs = inputs;
+		this.directories = directories;
+		this.dependson = dependson;
+		this.buildpath = buildpath;
+		this.testpath = testpath;
+		this.bootclasspath = bootclasspath;
+		this.sourcepath = sourcepath;
+		this.allsourcepath = allsourcepath;
+		this.output = output;
+		this.target = target;
+		this.runstorage = runstorage;
+	}
+
+	static boolean isEnabled(Project project) {
+		return project.is(Constants.PREPARE_SNAPSHOT) && project.delayRunDependencies
+				&& project.getPlugins(DependencyContributor.class).isEmpty();
+	}
+
+	static File getFile(Project project) {
+		return new File(project.getWorkspace().getCache("snapshots"), project.getName());
+	}
+
+	/**
+	 * Restore the prepared state of the project from its snapshot. Answer
+	 * false, without touching the project, if there is no valid snapshot.
+	 */
+	static boolean restore(Project project) {
+		if (!isEnabled(project))
+			return false;
+
+		File file = getFile(project);
+		if (!file.isFile())
+			return false;
+
+		try {
+			ProjectSnapshot snapshot = read(file);
+			if (snapshot == null)
+				return false;
+
+			String reason = snapshot.validate(project);
+			if (reason != null) {
+				project.trace("snapshot of %s is not valid: %s", project, reason);
+				return false;
+			}
+			snapshot.apply(project);
+			return true;
+		}
+		catch (Exception e) {
+			project.trace("cannot restore snapshot of %s: %s", project, e);
+			IO.delete(file);
+			return false;
+		}
+	}
+
+	/**
+	 * Store the prepared state of the project, if it can be restored.
+	 */
+	static void store(Project project) {
+		if (!isEnabled(project))
+			return;
+
+		File file = getFile(project);
+		try {
+			ProjectSnapshot snapshot = capture(project);
+			if (snapshot == null) {
+				IO.delete(file);
+				return;
+			}
+			snapshot.write(file);
+		}
+		catch (Exception e) {
+			project.trace("cannot store snapshot of %s: %s", project, e);
+			IO.delete(file);
+		}
+	}
+
+	/*
+	 * Called after the project was prepared, answer null when the state cannot
+	 * be restored later
+	 */
+	static ProjectSnapshot capture(Project project) throws Exception {
+		if (!project.isPerfect())
+			return null;
+
+		File workspace = project.getWorkspace().getBase();
+		Fingerprint inputs = new Fingerprint();
+		Map<String,Long> directories = new LinkedHashMap<String,Long>();
+
+		addBndFiles(inputs, workspace, project, true);
+		inputs.add(workspace, project.getFile("build.properties"), null);
+
+		List<String> dependson = new ArrayList<String>();
+		for (Project dependency : project.dependson) {
+			dependson.add(dependency.getName());
+			addBndFiles(inputs, workspace, dependency, false);
+		}
+
+		List<ContainerData> buildpath = toData(project.buildpath, inputs, directories, workspace);
+		List<ContainerData> testpath = toData(project.testpath, inputs, directories, workspace);
+		List<ContainerData> bootclasspath = toData(project.bootclasspath, inputs, directories, workspace);
+		if (buildpath == null || testpath == null || bootclasspath == null)
+			return null;
+
+		Map<String,Attrs> sourcepath = new LinkedHashMap<String,Attrs>();
+		for (Map.Entry<File,Attrs> e : project.sourcepath.entrySet()) {
+			for (String key : e.getValue().keySet())
+				if (e.getValue().getType(key) != Attrs.Type.STRING)
+					return null;
+			sourcepath.put(e.getKey().getAbsolutePath(), e.getValue());
+		}
+
+		List<String> allsourcepath = new ArrayList<String>();
+		for (File f : project.allsourcepath)
+			allsourcepath.add(f.getAbsolutePath());
+
+		return new ProjectSnapshot(path(project.getBase()), getInstructions(project), inputs, directories, dependson,
+				buildpath, testpath, bootclasspath, sourcepath, allsourcepath, path(project.output),
+				path(project.target), path(project.runstorage));
+	}
+
+	/*
+	 * The instructions that are used to prepare, they can also be set without
+	 * changing a bnd file. When -dependson has patterns the projects it selects
+	 * change when a project is added or removed, so then the names of the
+	 * projects in the workspace are part of the instructions.
+	 */
+	private static String getInstructions(Project project) {
+		StringBuilder sb = new StringBuilder();
+		for (String key : INSTRUCTIONS) {
+			String value = project.mergeProperties(key);
+			sb.append(key).append('=').append(value == null ? "" : value).append('\n');
+		}
+		for (String key : project.getMergedParameters(Constants.DEPENDSON).keySet()) {
+			if (!new Instruction(key).isLiteral()) {
+				List<String> names = project.getWorkspace().getProjectNames();
+				Collections.sort(names);
+				sb.append("projects=").append(Processor.join(names)).append('\n');
+				break;
+			}
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * The properties files of the processor and its parents and the files
+	 * they include
+	 */
+	private static void addBndFiles(Fingerprint inputs, File workspace, Processor processor, boolean parents)
+			throws Exception {
+		for (Processor p = processor; p != null; p = parents ? p.getParent() : null) {
+			inputs.add(workspace, p.getPropertiesFile(), null);
+			if (p.getIncluded() != null)
+				for (File f : p.getIncluded())
+					inputs.add(workspace, f, null);
+		}
+	}
+
+	private static List<ContainerData> toData(Collection<Container> containers, Fingerprint inputs,
+			Map<String,Long> directories, File workspace) throws Exception {
+		List<ContainerData> list = new ArrayList<ContainerData>();
+		for (Container c : containers) {
+			if (c.getType() == TYPE.ERROR || c.getError() != null)
+				return null;
+			if (c.db != null && c.db.getStage() != DownloadBlocker.Stage.SUCCESS)
+				return null;
+
+			File file = c.getFile();
+			if (c.getType() != TYPE.PROJECT) {
+				if (!file.isFile())
+					return null;
+				inputs.add(workspace, file, null);
+			}
+			if (c.getType() == TYPE.REPO) {
+				File dir = file.getAbsoluteFile().getParentFile();
+				directories.put(dir.getAbsolutePath(), dir.lastModified());
+			}
+
+			list.add(new ContainerData(c.getProject() == null ? null : c.getProject().getName(),
+					c.getBundleSymbolicName(), c.getVersion(), c.getType(), file.getAbsolutePath(),
+					new LinkedHashMap<String,String>(c.getAttributes())));
+		}
+		return list;
+	}
+
+	private static String path(File file) {
+		return file == null ? null : file.getAbsolutePath();
+	}
+
+	/*
+	 * Answer why the snapshot cannot be used or null
+	 */
+	String validate(Project project) throws Exception {
+		if (!base.equals(path(project.getBase())))
+			return "moved";
+		if (!instructions.equals(getInstructions(project)))
+			return "changed instructions";
+
+		File workspace = project.getWorkspace().getBase();
+		String diff = inputs.diff(inputs.recalculate(workspace));
+		if (diff != null)
+			return diff;
+
+		for (Map.Entry<String,Long> e : directories.entrySet()) {
+			if (new File(e.getKey()).lastModified() != e.getValue())
+				return "changed " + e.getKey();
+		}
+
+		for (String name : dependson) {
+			if (project.getWorkspace().getProject(name) == null)
+				return "missing project " + name;
+		}
+
+		for (String dir : sourcepath.keySet()) {
+			if (!new File(dir).isDirectory())
+				return "missing " + dir;
+		}
+		if (!new File(output).isDirectory())
+			return "missing " + output;
+		if (!new File(target).isDirectory())
+			return "missing " + target;
+		return null;
+	}
+
+	void apply(Project project) throws Exception {
+		Workspace workspace = project.getWorkspace();
+
+		for (String name : dependson)
+			project.dependson.add(workspace.getProject(name));
+
+		apply(project, buildpath, project.buildpath);
+		apply(project, testpath, project.testpath);
+		apply(project, bootclasspath, project.bootclasspath);
+
+		for (Map.Entry<String,Attrs> e : sourcepath.entrySet())
+			project.sourcepath.put(new File(e.getKey()), e.getValue());
+		for (String path : allsourcepath)
+			project.allsourcepath.add(new File(path));
+
+		project.output = new File(output);
+		project.target = new File(target);
+		project.runstorage = runstorage == null ? null : new File(runstorage);
+	}
+
+	private static void apply(Project project, List<ContainerData> data, Collection<Container> path)
+			throws Exception {
+		for (ContainerData c : data) {
+			Project owner = null;
+			if (c.project != null)
+				owner = c.project.equals(project.getName()) ? project : project.getWorkspace().getProject(c.project);
+			path.add(new Container(owner, c.bsn, c.version, c.type, new File(c.file), null, c.attributes, null));
+		}
+	}
+
+	static ProjectSnapshot read(File file) throws Exception {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(IO.read(file)));
+		if (in.readInt() != VERSION)
+			return null;
+
+		String base = in.readUTF();
+		String instructions = in.readUTF();
+		Fingerprint inputs = Fingerprint.read(in);
+		Map<String,Long> directories = new LinkedHashMap<String,Long>();
+		for (int n = in.readInt(); n > 0; n--)
+			directories.put(in.readUTF(), in.readLong());
+
+		List<String> dependson = readStrings(in);
+		List<ContainerData> buildpath = readContainers(in);
+		List<ContainerData> testpath = readContainers(in);
+		List<ContainerData> bootclasspath = readContainers(in);
+
+		Map<String,Attrs> sourcepath = new LinkedHashMap<String,Attrs>();
+		for (int n = in.readInt(); n > 0; n--) {
+			String dir = in.readUTF();
+			Attrs attrs = new Attrs();
+			for (int m = in.readInt(); m > 0; m--)
+				attrs.put(in.readUTF(), in.readUTF());
+			sourcepath.put(dir, attrs);
+		}
+		List<String> allsourcepath = readStrings(in);
+		String output = in.readUTF();
+		String target = in.readUTF();
+		String runstorage = readString(in);
+		return new ProjectSnapshot(base, instructions, inputs, directories, dependson, buildpath, testpath,
+				bootclasspath, sourcepath, allsourcepath, output, target, runstorage);
+	}
+
+	/*
+	 * Written to a temporary file first and then renamed so readers never see
+	 * a partial file
+	 */
+	void write(File file) throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bout);
+		out.writeInt(VERSION);
+		out.writeUTF(base);
+		out.writeUTF(instructions);
+		inputs.write(out);
+		out.writeInt(directories.size());
+		for (Map.Entry<String,Long> e : directories.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeLong(e.getValue());
+		}
+		writeStrings(out, dependson);
+		writeContainers(out, buildpath);
+		writeContainers(out, testpath);
+		writeContainers(out, bootclasspath);
+		out.writeInt(sourcepath.size());
+		for (Map.Entry<String,Attrs> e : sourcepath.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeInt(e.getValue().size());
+			for (Map.Entry<String,String> a : e.getValue().entrySet()) {
+				out.writeUTF(a.getKey());
+				out.writeUTF(a.getValue());
+			}
+		}
+		writeStrings(out, allsourcepath);
+		out.writeUTF(output);
+		out.writeUTF(target);
+		writeString(out, runstorage);
+		out.close();
+
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Could not create directory " + parent);
+		File tmp = File.createTempFile("snapshot", ".tmp", parent);
+		try {
+			IO.copy(bout.toByteArray(), tmp);
+			if (!tmp.renameTo(file))
+				IO.rename(tmp, file);
+		}
+		finally {
+			IO.delete(tmp);
+		}
+	}
+
+	private static List<ContainerData> readContainers(DataInputStream in) throws IOException {
+		List<ContainerData> list = new ArrayList<ContainerData>();
+		for (int n = in.readInt(); n > 0; n--) {
+			String project = readString(in);
+			String bsn = in.readUTF();
+			String version = readString(in);
+			TYPE type = TYPE.valueOf(in.readUTF());
+			String file = in.readUTF();
+			Map<String,String> attributes = new LinkedHashMap<String,String>();
+			for (int m = in.readInt(); m > 0; m--)
+				attributes.put(in.readUTF(), in.readUTF());
+			list.add(new ContainerData(project, bsn, version, type, file, attributes));
+		}
+		return list;
+	}
+
+	private static void writeContainers(DataOutputStream out, List<ContainerData> list) throws IOException {
+		out.writeInt(list.size());
+		for (ContainerData c : list) {
+			writeString(out, c.project);
+			out.writeUTF(c.bsn);
+			writeString(out, c.version);
+			out.writeUTF(c.type.name());
+			out.writeUTF(c.file);
+			out.writeInt(c.attributes.size());
+			for (Map.Entry<String,String> e : c.attributes.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeUTF(e.getValue());
+			}
+		}
+	}
+
+	private static List<String> readStrings(DataInputStream in) throws IOException {
+		List<String> list = new ArrayList<String>();
+		for (int n = in.readInt(); n > 0; n--)
+			list.add(in.readUTF());
+		return list;
+	}
+
+	private static void writeStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for (String s : strings)
+			out.writeUTF(s);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		if (in.readBoolean())
+			return in.readUTF();
+		return null;
+	}
+}
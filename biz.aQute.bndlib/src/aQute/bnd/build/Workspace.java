@@ -16,12 +16,15 @@ import java.util.Enumeration;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -40,7 +43,9 @@ import aQute.bnd.header.OSGiHeader;
 import aQute.bnd.header.Parameters;
 import aQute.bnd.maven.support.Maven;
 import aQute.bnd.osgi.About;
+import aQute.bnd.osgi.ClazzCache;
 import aQute.bnd.osgi.Constants;
+import aQute.bnd.osgi.JarCache;
 import aQute.bnd.osgi.Macro;
 import aQute.bnd.osgi.Processor;
 import aQute.bnd.osgi.Verifier;
@@ -83,7 +88,8 @@ public class Workspace extends Processor {
 
 	static Map<File,WeakReference<Workspace>>	cache			= newHashMap();
 	static Processor							defaults		= null;
-	final Map<String,Project>					models			= newHashMap();
+	final ConcurrentMap<String,Project>			models			= new ConcurrentHashMap<String,Project>();
+	final ConcurrentMap<String,Object>			creating		= new ConcurrentHashMap<String,Object>();
 	final Map<String,Action>					commands		= newMap();
 	final File									buildDir;
 	final Maven									maven			= new Maven(Processor.getExecutor());
@@ -104,6 +110,10 @@ public class Workspace extends Processor {
 
 	private final WorkspaceLayout layout;
 
+	private ClazzCache clazzCache;
+
+	private JarCache jarCache;
+
 	/**
 	 * This static method finds the workspace and creates a project (or returns
 	 * an existing project) @param projectDir @return
@@ -249,8 +259,21 @@ public class Workspace extends Processor {
 	}
 
 	public Project getProject(String bsn) throws Exception {
-		synchronized (models) {
-			Project project = models.get(bsn);
+		Project project = models.get(bsn);
+		if (project != null)
+			return project;
+
+		//
+		// Only lock the name so different projects can be created at the
+		// same time
+		//
+		Object lock = new Object();
+		Object previous = creating.putIfAbsent(bsn, lock);
+		if (previous != null)
+			lock = previous;
+
+		synchronized (lock) {
+			project = models.get(bsn);
 			if (project != null)
 				return project;
 
@@ -268,9 +291,7 @@ public class Workspace extends Processor {
 		if (p.isCnf())
 			return;
 
-		synchronized (models) {
-			models.remove(p.getName());
-		}
+		models.remove(p.getName());
 		for (LifeCyclePlugin lp : getPlugins(LifeCyclePlugin.class)) {
 			lp.delete(p);
 		}
@@ -334,17 +355,46 @@ public class Workspace extends Processor {
 
 	public Collection<Project> getAllProjects() throws Exception {
 		List<Project> projects = new ArrayList<Project>();
-		for (File file : getBase().listFiles()) {
-			if (new File(file, Project.BNDFILE).isFile()) {
-				Project p = getProject(file.getAbsoluteFile().getName());
-				if (p != null) {
-					projects.add(p);
-				}
+		for (String name : getProjectNames()) {
+			Project p = getProject(name);
+			if (p != null) {
+				projects.add(p);
 			}
 		}
 		return projects;
 	}
 
+	/**
+	 * Find all projects and prepare them with at most
+	 * {@link Constants#PREPARE_PARALLELISM} threads, by default one. Preparing
+	 * reads the bnd files and resolves the paths of the projects, doing this
+	 * up front makes the first use of the projects fast.
+	 */
+	public Collection<Project> prepareAllProjects() throws Exception {
+		return prepareAllProjects(getParallelism(Constants.PREPARE_PARALLELISM));
+	}
+
+	/**
+	 * Find all projects and prepare them with at most parallelism threads.
+	 */
+	public Collection<Project> prepareAllProjects(int parallelism) throws Exception {
+		return new ProjectPreparer(this, parallelism).prepare();
+	}
+
+	/*
+	 * The names of the directories in the workspace with a bnd file
+	 */
+	List<String> getProjectNames() {
+		List<String> names = new ArrayList<String>();
+		File[] files = getBase().listFiles();
+		if (files != null)
+			for (File file : files) {
+				if (new File(file, Project.BNDFILE).isFile())
+					names.add(file.getAbsoluteFile().getName());
+			}
+		return names;
+	}
+
 	/**
 	 * Inform any listeners that we changed a file
 	 * (created/deleted/changed). @param f The changed file
@@ -509,31 +559,30 @@ public class Workspace extends Processor {
 	}
 
 	public Collection<Project> getBuildOrder() throws Exception {
-		List<Project> result = new ArrayList<Project>();
+		Set<Project> result = new LinkedHashSet<Project>();
 		for (Project project : getAllProjects()) {
 			Collection<Project> dependsOn = project.getDependson();
 			getBuildOrder(dependsOn, result);
-			if (!result.contains(project)) {
-				result.add(project);
-			}
+			result.add(project);
 		}
-		return result;
+		return new ArrayList<Project>(result);
 	}
 
-	private void getBuildOrder(Collection<Project> dependsOn, List<Project> result) throws Exception {
+	private void getBuildOrder(Collection<Project> dependsOn, Set<Project> result) throws Exception {
 		for (Project project : dependsOn) {
-			Collection<Project> subProjects = project.getDependson();
-			for (Project subProject : subProjects) {
-				if (!result.contains(subProject)) {
-					result.add(subProject);
-				}
-			}
-			if (!result.contains(project)) {
-				result.add(project);
-			}
+			result.addAll(project.getDependson());
+			result.add(project);
 		}
 	}
 
+	/**
+	 * Answer a scheduler that builds the given projects, and the projects they
+	 * depend on, concurrently where possible.
+	 */
+	public BuildScheduler getBuildScheduler(Collection<Project> projects) throws Exception {
+		return new BuildScheduler(this, projects);
+	}
+
 	public static Workspace getWorkspace(String path) throws Exception {
 		File file = IO.getFile(new File(""), path);
 		return getWorkspace(file);
@@ -778,6 +827,26 @@ public class Workspace extends Processor {
 		return getFile(buildDir, CACHEDIR + "/" + name);
 	}
 
+	/**
+	 * Answer the cache of parsed class models that is shared by the builders
+	 * of the projects in this workspace.
+	 */
+	public synchronized ClazzCache getClazzCache() {
+		if (clazzCache == null)
+			clazzCache = new ClazzCache(getCache("clazz"));
+		return clazzCache;
+	}
+
+	/**
+	 * Answer the cache of jar files that is shared by the builders of the
+	 * projects in this workspace.
+	 */
+	public synchronized JarCache getJarCache() {
+		if (jarCache == null)
+			jarCache = new JarCache();
+		return jarCache;
+	}
+
 	/**
 	 * Return the workspace repo
 	 */
@@ -816,6 +885,12 @@ public class Workspace extends Processor {
 
 	public void close() {
 		cache.remove(getPropertiesFile().getParentFile().getParentFile());
+		synchronized (this) {
+			if (jarCache != null) {
+				jarCache.close();
+				jarCache = null;
+			}
+		}
 	}
 
 	/**
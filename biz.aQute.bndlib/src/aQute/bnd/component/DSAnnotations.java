@@ -16,6 +16,7 @@ import aQute.bnd.header.OSGiHeader;
 import aQute.bnd.header.Parameters;
 import aQute.bnd.osgi.Analyzer;
 import aQute.bnd.osgi.Clazz;
+import aQute.bnd.osgi.Clazz.QUERY;
 import aQute.bnd.osgi.Constants;
 import aQute.bnd.osgi.Descriptors;
 import aQute.bnd.osgi.Instruction;
@@ -30,6 +31,7 @@ import aQute.lib.strings.Strings;
  * Analyze the class space for any classes that have an OSGi annotation for DS.
  */
 public class DSAnnotations implements AnalyzerPlugin {
+	static final Instruction DS_ANNOTATIONS = new Instruction("org.osgi.service.component.annotations.*");
 
 	public enum Options {
 		inherit, felixExtensions, extender
@@ -70,6 +72,14 @@ public class DSAnnotations implements AnalyzerPlugin {
 
 		XMLAttributeFinder finder = new XMLAttributeFinder(analyzer);
 		for (Clazz c : list) {
+			//
+			// Only a class with DS annotations can be a component. The
+			// annotations were already collected during the first parse so
+			// this check saves us the parsing of all the other classes.
+			//
+			if (!c.is(QUERY.ANNOTATED, DS_ANNOTATIONS, analyzer))
+				continue;
+
 			for (Instruction instruction : instructions.keySet()) {
 
 				if (instruction.matches(c.getFQN())) {
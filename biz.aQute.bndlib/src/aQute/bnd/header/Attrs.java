@@ -5,6 +5,7 @@ import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -111,16 +112,49 @@ public class Attrs implements Map<String,String> {
 	 * argument scalar | list ’String’ | ’Version’ | ’Long’ list ::= ’List<’
 	 * scalar ’>’ </pre>
 	 */
+	// most clauses have only a few attributes
+	private final static int	INITIAL		= 4;
 	static String				EXTENDED	= "[\\-0-9a-zA-Z\\._]+";
 	static String				SCALAR		= "String|Version|Long|Double";
 	static String				LIST		= "List\\s*<\\s*(" + SCALAR + ")\\s*>";
 	public static final Pattern	TYPED		= Pattern
 			.compile("\\s*(" + EXTENDED + ")\\s*:\\s*(" + SCALAR + "|" + LIST + ")\\s*");
 
-	private Map<String,String>	map;
-	private Map<String,Type>	types;
-	static Map<String,String>	EMPTY		= Collections.emptyMap();
-	public static Attrs			EMPTY_ATTRS	= new Attrs();
+	/*
+	 * The keys that appear in almost every clause share one instance
+	 */
+	private final static Map<String,String> KEYS = new HashMap<String,String>();
+
+	static {
+		for (String key : new String[] {
+				"version", "specification-version", "bundle-version", "bundle-symbolic-name", "uses:", "resolution:",
+				"mandatory:", "include:", "exclude:", "singleton:", "fragment-attachment:", "visibility:", "filter:",
+				"effective:", "cardinality:", "split:", "from:", "x-internal:", "x-friends:", "objectClass",
+				"provide:", "-split-package:", "-noimport:", "-remove-attribute:", "lib", "name"
+		})
+			KEYS.put(key, key);
+	}
+
+	private Map<String,String>				map;
+	private Map<String,Type>				types;
+	private volatile Map<String,Converted>	converted;
+	static Map<String,String>				EMPTY		= Collections.emptyMap();
+	public static Attrs						EMPTY_ATTRS	= new Attrs();
+
+	/*
+	 * A typed value converted from the string it was converted from
+	 */
+	private static class Converted {
+		final String	source;
+		final Type		type;
+		final Object	value;
+
+		Converted(String source, Type type, Object value) {
+			this.source = source;
+			this.type = type;
+			this.value = value;
+		}
+	}
 
 	static {
 		EMPTY_ATTRS.map = Collections.emptyMap();
@@ -130,10 +164,18 @@ public class Attrs implements Map<String,String> {
 
 	public Attrs(Attrs... attrs) {
 		for (Attrs a : attrs) {
-			if (a != null) {
-				putAll(a);
-				if (a.types != null)
-					types.putAll(a.types);
+			if (a != null && a.map != null) {
+				// the keys are already stripped of their type
+				if (map == null)
+					map = new LinkedHashMap<String,String>(a.map);
+				else
+					map.putAll(a.map);
+				if (a.types != null) {
+					if (types == null)
+						types = new LinkedHashMap<String,Type>(a.types);
+					else
+						types.putAll(a.types);
+				}
 			}
 		}
 	}
@@ -297,10 +339,12 @@ public class Attrs implements Map<String,String> {
 			return null;
 
 		if (map == null)
-			map = new LinkedHashMap<String,String>();
+			map = new LinkedHashMap<String,String>(INITIAL);
 
-		Matcher m = TYPED.matcher(key);
-		if (m.matches()) {
+		// only a key with a ':' before its end can have a type
+		int colon = key.indexOf(':');
+		Matcher m = colon < 0 || colon == key.length() - 1 ? null : TYPED.matcher(key);
+		if (m != null && m.matches()) {
 			key = m.group(1);
 			String type = m.group(2);
 			Type t = Type.STRING;
@@ -326,13 +370,14 @@ public class Attrs implements Map<String,String> {
 					t = Type.VERSION;
 			}
 			if (types == null)
-				types = new LinkedHashMap<String,Type>();
+				types = new LinkedHashMap<String,Type>(INITIAL);
 			types.put(key, t);
 
 			// TODO verify value?
 		}
 
-		return map.put(key, value);
+		String shared = KEYS.get(key);
+		return map.put(shared == null ? key : shared, value);
 	}
 
 	public Type getType(String key) {
@@ -459,7 +504,7 @@ public class Attrs implements Map<String,String> {
 			return null;
 
 		Type t = getType(adname);
-		return convert(t, s);
+		return getConverted(adname, t, s);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -473,7 +518,31 @@ public class Attrs implements Map<String,String> {
 			throw new IllegalArgumentException(
 					"For key " + adname + ", expected " + type.type() + " but had a " + t + ". Value is " + s);
 
-		return (T) convert(t, s);
+		return (T) getConverted(adname, t, s);
+	}
+
+	/*
+	 * Converting is only done once for the same string, lists are copied since
+	 * the caller can modify them
+	 */
+	private Object getConverted(String key, Type t, String s) {
+		if (t == Type.STRING)
+			return s;
+
+		Map<String,Converted> converted = this.converted;
+		Converted c = converted == null ? null : converted.get(key);
+		if (c == null || c.source != s || c.type != t) {
+			c = new Converted(s, t, convert(t, s));
+			// readers can share this Attrs, so never modify a published map
+			converted = converted == null ? new HashMap<String,Converted>(INITIAL)
+					: new HashMap<String,Converted>(converted);
+			converted.put(key, c);
+			this.converted = converted;
+		}
+
+		if (t.sub != null)
+			return new ArrayList<Object>((List< ? >) c.value);
+		return c.value;
 	}
 
 	public static Type toType(String type) {
@@ -1,7 +1,10 @@
 package aQute.bnd.header;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import aQute.libg.generics.Create;
@@ -29,16 +32,75 @@ public class OSGiHeader {
 		if (value == null || value.trim().length() == 0)
 			return result;
 
-		QuotedTokenizer qt = new QuotedTokenizer(value, ";=,");
+		if (!result.isEmpty()) {
+			parse(value, logger, result);
+			return result;
+		}
+
+		Parameters cached;
+		synchronized (cache) {
+			cached = cache.get(value);
+		}
+		if (cached != null) {
+			copy(cached, result);
+			return result;
+		}
+
+		if (parse(value, logger, result) && value.length() < MAX_CACHED) {
+			Parameters copy = new Parameters();
+			copy(result, copy);
+			synchronized (cache) {
+				if (cache.put(value, copy) == null)
+					cachedLength += value.length();
+				for (Iterator<String> i = cache.keySet().iterator(); cachedLength > MAX_CACHED;) {
+					cachedLength -= i.next().length();
+					i.remove();
+				}
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Parsed headers are kept by their text, the least recently used headers
+	 * are removed when the texts are longer than the maximum. Parameters and
+	 * Attrs can be modified by their users so the cache hands out copies.
+	 */
+	private static final int								MAX_CACHED	= 1 << 22;
+	private static final LinkedHashMap<String,Parameters>	cache		= new LinkedHashMap<String,Parameters>(16,
+			0.75f, true);
+	private static int										cachedLength;
+
+	private static void copy(Parameters from, Parameters to) {
+		Attrs last = null;
+		Attrs copy = null;
+		for (Map.Entry<String,Attrs> e : from.entrySet()) {
+			// aliases share their attributes and are always adjacent
+			if (e.getValue() != last) {
+				last = e.getValue();
+				copy = new Attrs(last);
+			}
+			to.put(e.getKey(), copy);
+		}
+	}
+
+	/*
+	 * Parse the header into the result, answer true if there was nothing to
+	 * report
+	 */
+	private static boolean parse(String value, Reporter logger, Parameters result) {
+		boolean clean = true;
+		Cursor qt = new Cursor(value);
 		char del = 0;
 		do {
 			boolean hadAttribute = false;
 			Attrs clause = new Attrs();
-			List<String> aliases = Create.list();
+			List<String> aliases = null;
 			String name = qt.nextToken(",;");
 
 			del = qt.getSeparator();
 			if (name == null || name.length() == 0) {
+				clean = false;
 				if (logger != null && logger.isPedantic()) {
 					logger.warning(
 							"Empty clause, usually caused by repeating a comma without any name field or by having spaces after the backslash of a property file: "
@@ -49,26 +111,32 @@ public class OSGiHeader {
 			} else {
 				name = name.trim();
 
-				aliases.add(name);
 				while (del == ';') {
-					String adname = qt.nextToken();
+					String adname = qt.nextToken(";=,");
 					if ((del = qt.getSeparator()) != '=') {
-						if (hadAttribute)
+						if (hadAttribute) {
+							clean = false;
 							if (logger != null) {
 								logger.error("Header contains name field after attribute or directive: " + adname
 										+ " from " + value
 										+ ". Name fields must be consecutive, separated by a ';' like a;b;c;x=3;y=4");
 							}
-						if (adname != null && adname.length() > 0)
+						}
+						if (adname != null && adname.length() > 0) {
+							if (aliases == null)
+								aliases = Create.list();
 							aliases.add(adname.trim());
+						}
 					} else {
-						String advalue = qt.nextToken();
+						String advalue = qt.nextToken(";=,");
 						if (clause.containsKey(adname)) {
+							clean = false;
 							if (logger != null && logger.isPedantic())
 								logger.warning("Duplicate attribute/directive name " + adname + " in " + value
 										+ ". This attribute/directive will be ignored");
 						}
 						if (advalue == null) {
+							clean = false;
 							if (logger != null)
 								logger.error("No value after '=' sign for attribute " + adname);
 							advalue = "";
@@ -82,19 +150,163 @@ public class OSGiHeader {
 				// Check for duplicate names. The aliases list contains
 				// the list of nams, for each check if it exists. If so,
 				// add a number of "~" to make it unique.
-				for (String clauseName : aliases) {
-					if (result.containsKey(clauseName)) {
-						if (logger != null && logger.isPedantic())
-							logger.warning("Duplicate name " + clauseName + " used in header: '" + clauseName
-									+ "'. Duplicate names are specially marked in Bnd with a ~ at the end (which is stripped at printing time).");
-						while (result.containsKey(clauseName))
-							clauseName += "~";
-					}
-					result.put(clauseName, clause);
-				}
+				clean &= put(result, name, clause, logger);
+				if (aliases != null)
+					for (String clauseName : aliases)
+						clean &= put(result, clauseName, clause, logger);
 			}
 		} while (del == ',');
-		return result;
+		return clean;
+	}
+
+	private static boolean put(Parameters result, String clauseName, Attrs clause, Reporter logger) {
+		boolean clean = true;
+		if (result.containsKey(clauseName)) {
+			clean = false;
+			if (logger != null && logger.isPedantic())
+				logger.warning("Duplicate name " + clauseName + " used in header: '" + clauseName
+						+ "'. Duplicate names are specially marked in Bnd with a ~ at the end (which is stripped at printing time).");
+			while (result.containsKey(clauseName))
+				clauseName += "~";
+		}
+		result.put(clauseName, clause);
+		return clean;
+	}
+
+	/**
+	 * Tokenizes a header in place. Works like the {@link QuotedTokenizer} but
+	 * takes a token without quotes from the header as is and only uses its
+	 * buffer, reused for all tokens, for tokens with quotes.
+	 */
+	static final class Cursor {
+		private final String		string;
+		private final int			length;
+		private final StringBuilder	sb	= new StringBuilder();
+		private int					index;
+		private char				separator;
+
+		Cursor(String string) {
+			this.string = string;
+			this.length = string.length();
+		}
+
+		String nextToken(String separators) {
+			separator = 0;
+			if (index == length)
+				return null;
+
+			int start = index;
+			int begin = -1;
+			int end = length;
+			while (index < length) {
+				char c = string.charAt(index);
+				if (c == '"' || c == '\'') {
+					index = start;
+					return quotedToken(separators);
+				}
+				index++;
+
+				if (Character.isWhitespace(c)) {
+					// white space at the end is not part of the token
+					if (index == length)
+						end = index - 1;
+					continue;
+				}
+
+				if (separators.indexOf(c) >= 0) {
+					separator = c;
+					end = index - 1;
+					break;
+				}
+
+				if (begin < 0)
+					begin = index - 1;
+			}
+
+			if (begin < 0)
+				begin = end;
+			while (begin < end && string.charAt(begin) <= ' ')
+				begin++;
+			while (begin < end && string.charAt(end - 1) <= ' ')
+				end--;
+
+			if (begin == end && index == length)
+				return null;
+			return string.substring(begin, end);
+		}
+
+		private String quotedToken(String separators) {
+			sb.setLength(0);
+			boolean hadstring = false; // means no further trimming
+			boolean validspace = false; // means include spaces
+
+			while (index < length) {
+				char c = string.charAt(index++);
+
+				if (Character.isWhitespace(c)) {
+					if (index == length)
+						break;
+
+					if (validspace)
+						sb.append(c);
+
+					continue;
+				}
+
+				if (separators.indexOf(c) >= 0) {
+					separator = c;
+					break;
+				}
+
+				switch (c) {
+					case '"' :
+					case '\'' :
+						hadstring = true;
+						quotedString(c);
+						// skip remaining space
+						validspace = false;
+						break;
+
+					default :
+						sb.append(c);
+						validspace = true;
+				}
+			}
+
+			if (hadstring)
+				return sb.toString();
+
+			// trim
+			int begin = 0;
+			int end = sb.length();
+			while (begin < end && sb.charAt(begin) <= ' ')
+				begin++;
+			while (begin < end && sb.charAt(end - 1) <= ' ')
+				end--;
+
+			if (begin == end && index == length)
+				return null;
+			return sb.substring(begin, end);
+		}
+
+		private void quotedString(char quote) {
+			while (index < length) {
+				char c = string.charAt(index++);
+				if (c == quote)
+					break;
+				if (c == '\\' && index < length) {
+					char cc = string.charAt(index++);
+					if (cc != quote)
+						sb.append('\\');
+					c = cc;
+				}
+				sb.append(c);
+			}
+		}
+
+		char getSeparator() {
+			return separator;
+		}
 	}
 
 	public static Attrs parseProperties(String input) {
@@ -106,7 +318,7 @@ public class OSGiHeader {
 			return new Attrs();
 
 		Attrs result = new Attrs();
-		QuotedTokenizer qt = new QuotedTokenizer(input, "=,");
+		Cursor qt = new Cursor(input);
 		char del = ',';
 
 		while (del == ',') {
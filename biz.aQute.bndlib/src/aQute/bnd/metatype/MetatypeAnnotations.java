@@ -12,6 +12,7 @@ import aQute.bnd.header.OSGiHeader;
 import aQute.bnd.header.Parameters;
 import aQute.bnd.osgi.Analyzer;
 import aQute.bnd.osgi.Clazz;
+import aQute.bnd.osgi.Clazz.QUERY;
 import aQute.bnd.osgi.Constants;
 import aQute.bnd.osgi.Descriptors.TypeRef;
 import aQute.bnd.osgi.Instruction;
@@ -23,6 +24,7 @@ import aQute.bnd.xmlattribute.XMLAttributeFinder;
  * Analyze the class space for any classes that have an OSGi annotation for DS.
  */
 public class MetatypeAnnotations implements AnalyzerPlugin {
+	static final Instruction METATYPE_ANNOTATIONS = new Instruction("org.osgi.service.metatype.annotations.*");
 
 	enum Options {
 		nested
@@ -55,6 +57,13 @@ public class MetatypeAnnotations implements AnalyzerPlugin {
 
 		XMLAttributeFinder finder = new XMLAttributeFinder(analyzer);
 		for (Clazz c : list) {
+			//
+			// The annotations were already collected during the first parse
+			// so we only need to parse the classes with metatype annotations
+			//
+			if (!c.is(QUERY.ANNOTATED, METATYPE_ANNOTATIONS, analyzer))
+				continue;
+
 			for (Instruction instruction : instructions.keySet()) {
 
 				if (instruction.matches(c.getFQN())) {
@@ -75,6 +84,9 @@ public class MetatypeAnnotations implements AnalyzerPlugin {
 			list = analyzer.getClassspace().values();
 
 			for (Clazz c : list) {
+				if (!c.is(QUERY.ANNOTATED, METATYPE_ANNOTATIONS, analyzer))
+					continue;
+
 				for (Instruction instruction : instructions.keySet()) {
 
 					if (instruction.matches(c.getFQN())) {
@@ -113,6 +113,9 @@ public class Analyzer extends Processor {
 	final protected AnalyzerMessages				msgs					= ReporterMessages.base(this,
 			AnalyzerMessages.class);
 	private AnnotationHeaders						annotationHeaders;
+	private ClazzCache								clazzCache;
+	private ClasspathIndex							classpathIndex;
+	private ParallelParser							parallelParser;
 	private Set<PackageRef>							packagesVisited			= new HashSet<PackageRef>();
 	private Set<Check>								checks;
 
@@ -219,7 +222,15 @@ public class Analyzer extends Processor {
 
 				cds.add(annotationHeaders = new AnnotationHeaders(this));
 
+				//
+				// The built in collectors only look at the classes that have
+				// annotations, the first parse already told us which those
+				// are. Without plugin collectors the other classes do not
+				// have to be decoded again.
+				//
 				for (Clazz c : classspace.values()) {
+					if (parsers.isEmpty() && c.annotations == null)
+						continue;
 					cds.parse(c);
 				}
 				cds.close();
@@ -2117,6 +2128,19 @@ public class Analyzer extends Processor {
 	}
 
 	private void analyzeBundleClasspath() throws Exception {
+		parallelParser = newParallelParser();
+		try {
+			analyzeBundleClasspath0();
+		}
+		finally {
+			if (parallelParser != null) {
+				parallelParser.close();
+				parallelParser = null;
+			}
+		}
+	}
+
+	private void analyzeBundleClasspath0() throws Exception {
 		Parameters bcp = getBundleClasspath();
 
 		if (bcp.isEmpty()) {
@@ -2176,6 +2200,19 @@ public class Analyzer extends Processor {
 		}
 	}
 
+	/**
+	 * Create the parser that parses the classes in parallel when the
+	 * {@link Constants#ANALYZER_PARALLELISM} instruction asks for more than one
+	 * thread, see {@link #getParallelism(String)}.
+	 */
+	private ParallelParser newParallelParser() {
+		int parallelism = getParallelism(ANALYZER_PARALLELISM);
+		if (parallelism < 2)
+			return null;
+
+		return new ParallelParser(this, parallelism, clazzCache);
+	}
+
 	/**
 	 * We traverse through all the classes that we can find and calculate the
 	 * contained and referred set and uses. This method ignores the Bundle
@@ -2184,6 +2221,8 @@ public class Analyzer extends Processor {
 	 */
 	private boolean analyzeJar(Jar jar, String prefix, boolean okToIncludeDirs) throws Exception {
 		Map<String,Clazz> mismatched = new HashMap<String,Clazz>();
+		Map<String,ParallelParser.Parsed> parsed = parallelParser == null ? null
+				: parallelParser.parse(jar, prefix);
 
 		next: for (String path : jar.getResources().keySet()) {
 			if (path.startsWith(prefix)) {
@@ -2206,13 +2245,14 @@ public class Analyzer extends Processor {
 					Clazz clazz;
 
 					try {
-						InputStream in = resource.openInputStream();
-						clazz = new Clazz(this, path, resource);
-						try {
-							clazz.parseClassFile();
-						}
-						finally {
-							in.close();
+						if (parsed != null)
+							clazz = parallelParser.take(parsed.get(path));
+						else {
+							clazz = new Clazz(this, path, resource);
+							if (clazzCache != null)
+								clazzCache.parse(clazz);
+							else
+								clazz.parseClassFile();
 						}
 					}
 					catch (Throwable e) {
@@ -2557,12 +2597,18 @@ public class Analyzer extends Processor {
 	 * reosurce @return A resource or <code>null</code>
 	 */
 	public Resource findResource(String path) {
-		for (Jar entry : getClasspath()) {
-			Resource r = entry.getResource(path);
-			if (r != null)
-				return r;
-		}
-		return null;
+		return getClasspathIndex().findResource(path);
+	}
+
+	/*
+	 * The index of the class path, it is rebuilt when the class path or the
+	 * resources of its jars have changed.
+	 */
+	private ClasspathIndex getClasspathIndex() {
+		List<Jar> classpath = getClasspath();
+		if (classpathIndex == null || !classpathIndex.isValid(classpath))
+			classpathIndex = new ClasspathIndex(classpath);
+		return classpathIndex;
 	}
 
 	/**
@@ -2578,21 +2624,44 @@ public class Analyzer extends Processor {
 		if (c != null)
 			return c;
 
-		Resource r = findResource(typeRef.getPath());
+		ClasspathIndex index = getClasspathIndex();
+		if (index.isMissing(typeRef))
+			return null;
+
+		Resource r = index.findResource(typeRef.getPath());
 		if (r == null) {
 			getClass().getClassLoader();
 			URL url = ClassLoader.getSystemResource(typeRef.getPath());
 			if (url != null)
 				r = new URLResource(url);
+			else
+				index.setMissing(typeRef);
 		}
 		if (r != null) {
 			c = new Clazz(this, typeRef.getPath(), r);
-			c.parseClassFile();
+			if (clazzCache != null)
+				clazzCache.parse(c);
+			else
+				c.parseClassFile();
 			importedClassesCache.put(typeRef, c);
 		}
 		return c;
 	}
 
+	/**
+	 * Set a cache for the parsed class models. When set, a class that was
+	 * already parsed in an earlier build, i.e. a class file with the same
+	 * content, is restored from the cache instead of decoded again. @param
+	 * clazzCache the cache or null to always parse
+	 */
+	public void setClazzCache(ClazzCache clazzCache) {
+		this.clazzCache = clazzCache;
+	}
+
+	public ClazzCache getClazzCache() {
+		return clazzCache;
+	}
+
 	/**
 	 * Answer the bundle version. @return
 	 */
@@ -2739,30 +2808,33 @@ public class Analyzer extends Processor {
 		if (nomatch == null)
 			nomatch = Create.set();
 
-		for (Instruction instruction : filters) {
-			boolean match = false;
-
-			for (Iterator<PackageRef> i = refs.iterator(); i.hasNext();) {
-				PackageRef packageRef = i.next();
-
-				if (packageRef.isMetaData()) {
-					i.remove(); // no use checking it again
-					continue;
-				}
+		// A package can only match the first instruction that matches it
+		List<List<PackageRef>> matched = new ArrayList<List<PackageRef>>(
+				Collections.<List<PackageRef>> nCopies(filters.size(), null));
+		for (PackageRef packageRef : refs) {
+			if (packageRef.isMetaData())
+				continue;
 
-				String packageName = packageRef.getFQN();
+			int n = instructions.indexOf(packageRef.getFQN(), 0);
+			if (n >= 0) {
+				List<PackageRef> l = matched.get(n);
+				if (l == null)
+					matched.set(n, l = new ArrayList<PackageRef>());
+				l.add(packageRef);
+			}
+		}
 
-				if (instruction.matches(packageName)) {
-					match = true;
-					if (!instruction.isNegated()) {
-						result.merge(packageRef, instruction.isDuplicate(), source.get(packageRef),
-								instructions.get(instruction));
-					}
-					i.remove(); // Can never match again for another pattern
-				}
+		for (int n = 0; n < filters.size(); n++) {
+			Instruction instruction = filters.get(n);
+			List<PackageRef> l = matched.get(n);
+			if (l == null) {
+				if (!instruction.isAny())
+					nomatch.add(instruction);
+			} else if (!instruction.isNegated()) {
+				for (PackageRef packageRef : l)
+					result.merge(packageRef, instruction.isDuplicate(), source.get(packageRef),
+							instructions.get(instruction));
 			}
-			if (!match && !instruction.isAny())
-				nomatch.add(instruction);
 		}
 
 		/*
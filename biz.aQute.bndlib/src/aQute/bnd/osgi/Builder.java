@@ -10,12 +10,16 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -159,6 +163,7 @@ public class Builder extends Analyzer {
 		dot.setName(getBsn());
 
 		doDigests(dot);
+		doCompression(dot);
 
 		sign(dot);
 		doSaveManifest(dot);
@@ -187,6 +192,13 @@ public class Builder extends Analyzer {
 		dot.setDigestAlgorithms(digests);
 	}
 
+	/**
+	 * Check if the bundle should be deflated in parallel when it is written.
+	 */
+	private void doCompression(Jar dot) {
+		dot.setCompressionParallelism(getParallelism(COMPRESSION_PARALLELISM));
+	}
+
 	/**
 	 * Allow any local initialization by subclasses before we build.
 	 */
@@ -556,12 +568,38 @@ public class Builder extends Analyzer {
 	private Set<Instruction> doExpand(Jar jar, MultiMap<String,Jar> index, Instructions filter) throws Exception {
 		Set<Instruction> unused = Create.set();
 
-		for (Entry<Instruction,Attrs> e : filter.entrySet()) {
-			Instruction instruction = e.getKey();
+		// Find the first instruction for each package in one pass
+		List<Instruction> instructions = new ArrayList<Instruction>(filter.keySet());
+		List<List<String>> matched = new ArrayList<List<String>>(
+				Collections.<List<String>> nCopies(instructions.size(), null));
+
+		for (String directory : index.keySet()) {
+			PackageRef packageRef = getPackageRef(directory);
+			String fqn = packageRef.getFQN();
+
+			int n = filter.indexOf(fqn, 0);
+			while (n >= 0) {
+				Instruction instruction = instructions.get(n);
+				// Skip * and meta data, we're talking packages!
+				if (!instruction.isDuplicate() && !(packageRef.isMetaData() && instruction.isAny()))
+					break;
+				n = filter.indexOf(fqn, n + 1);
+			}
+
+			if (n >= 0) {
+				List<String> l = matched.get(n);
+				if (l == null)
+					matched.set(n, l = new ArrayList<String>());
+				l.add(directory);
+			}
+		}
+
+		for (int n = 0; n < instructions.size(); n++) {
+			Instruction instruction = instructions.get(n);
 			if (instruction.isDuplicate())
 				continue;
 
-			Attrs directives = e.getValue();
+			Attrs directives = filter.get(instruction);
 
 			// We can optionally filter on the
 			// source of the package. We assume
@@ -571,42 +609,34 @@ public class Builder extends Analyzer {
 
 			boolean used = false;
 
-			for (Iterator<Entry<String,List<Jar>>> entry = index.entrySet().iterator(); entry.hasNext();) {
-				Entry<String,List<Jar>> p = entry.next();
+			List<String> directories = matched.get(n);
+			if (directories != null)
+				for (String directory : directories) {
+					PackageRef packageRef = getPackageRef(directory);
 
-				String directory = p.getKey();
-				PackageRef packageRef = getPackageRef(directory);
+					// Ensure it is never matched again
+					List<Jar> jars = index.remove(directory);
 
-				// Skip * and meta data, we're talking packages!
-				if (packageRef.isMetaData() && instruction.isAny())
-					continue;
+					// ! effectively removes it from consideration by others
+					// (this includes exports)
+					if (instruction.isNegated()) {
+						used = true;
+						continue;
+					}
 
-				if (!instruction.matches(packageRef.getFQN()))
-					continue;
+					// Do the from: directive, filters on the JAR type
+					List<Jar> providers = filterFrom(from, jars);
+					if (providers.isEmpty())
+						continue;
 
-				// Ensure it is never matched again
-				entry.remove();
+					int splitStrategy = getSplitStrategy(directives.get(SPLIT_PACKAGE_DIRECTIVE));
+					copyPackage(jar, providers, directory, splitStrategy);
+					Attrs contained = getContained().put(packageRef);
 
-				// ! effectively removes it from consideration by others (this
-				// includes exports)
-				if (instruction.isNegated()) {
+					contained.put(INTERNAL_SOURCE_DIRECTIVE, getName(providers.get(0)));
 					used = true;
-					continue;
 				}
 
-				// Do the from: directive, filters on the JAR type
-				List<Jar> providers = filterFrom(from, p.getValue());
-				if (providers.isEmpty())
-					continue;
-
-				int splitStrategy = getSplitStrategy(directives.get(SPLIT_PACKAGE_DIRECTIVE));
-				copyPackage(jar, providers, directory, splitStrategy);
-				Attrs contained = getContained().put(packageRef);
-
-				contained.put(INTERNAL_SOURCE_DIRECTIVE, getName(providers.get(0)));
-				used = true;
-			}
-
 			if (!used && !isTrue(directives.get("optional:")))
 				unused.add(instruction);
 		}
@@ -1215,6 +1245,10 @@ public class Builder extends Analyzer {
 
 		builders = getSubBuilders();
 
+		int parallelism = Math.min(getParallelism(SUB_PARALLELISM), builders.size());
+		if (parallelism > 1 && current.get() == null)
+			return buildsParallel(builders, parallelism);
+
 		for (Builder builder : builders) {
 			try {
 				startBuild(builder);
@@ -1233,6 +1267,86 @@ public class Builder extends Analyzer {
 		return result.toArray(new Jar[result.size()]);
 	}
 
+	/**
+	 * Build the sub builders on the {@link Processor#getExecutor()} with at
+	 * most parallelism builds at the same time. The start and done callbacks
+	 * and the collection of the errors and warnings are done on this thread in
+	 * the order of the builders, so only the build itself runs concurrently.
+	 */
+	private Jar[] buildsParallel(List<Builder> builders, int parallelism) throws Exception {
+		final Builder[] subs = builders.toArray(new Builder[builders.size()]);
+		final Jar[] jars = new Jar[subs.length];
+		final boolean[] started = new boolean[subs.length];
+
+		for (int n = 0; n < subs.length; n++) {
+			try {
+				startBuild(subs[n]);
+				started[n] = true;
+			}
+			catch (Exception e) {
+				subs[n].error("Sub Building " + subs[n].getBsn(), e);
+			}
+		}
+
+		// The class path is shared by the sub builders, load it once here
+		for (Jar jar : getClasspath())
+			jar.getResources();
+
+		final AtomicInteger next = new AtomicInteger();
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+		for (int i = 0; i < parallelism; i++) {
+			FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+				public void run() {
+					for (int n; (n = next.getAndIncrement()) < subs.length;) {
+						if (!started[n])
+							continue;
+
+						Builder builder = subs[n];
+						try {
+							Jar jar = builder.build();
+							jar.setName(builder.getBsn());
+							jars[n] = jar;
+						}
+						catch (Exception e) {
+							builder.error("Sub Building " + builder.getBsn(), e);
+						}
+					}
+				}
+			}, null);
+			tasks.add(task);
+			getExecutor().execute(task);
+		}
+
+		for (FutureTask<Void> task : tasks) {
+			try {
+				task.get();
+			}
+			catch (ExecutionException e) {
+				Throwable t = e.getCause();
+				if (t instanceof Error)
+					throw (Error) t;
+				throw (Exception) t;
+			}
+		}
+
+		List<Jar> result = new ArrayList<Jar>();
+		for (int n = 0; n < subs.length; n++) {
+			Builder builder = subs[n];
+			if (jars[n] != null) {
+				try {
+					result.add(jars[n]);
+					doneBuild(builder);
+				}
+				catch (Exception e) {
+					builder.error("Sub Building " + builder.getBsn(), e);
+				}
+			}
+			if (builder != this)
+				getInfo(builder, builder.getBsn() + ": ");
+		}
+		return result.toArray(new Jar[result.size()]);
+	}
+
 	/**
 	 * Called when we start to build a builder
 	 */
@@ -0,0 +1,103 @@
+package aQute.bnd.osgi;
+
+import java.util.*;
+
+import aQute.bnd.osgi.Descriptors.TypeRef;
+
+/**
+ * An index of the directories on a class path. For each directory it holds the
+ * jars that have that directory, in class path order. Looking up a resource
+ * then only has to look in the jars that have its directory, usually just one,
+ * instead of in every jar on the class path.
+ * <p>
+ * The jars are added to the index in class path order when a lookup does not
+ * find the resource in the jars that were already added. The directories of a
+ * jar that is not loaded yet are read from its zip file, so the index does not
+ * load the jars.
+ * <p>
+ * The index is only valid as long as the class path and the resources of its
+ * jars do not change, see {@link #isValid(List)}. It also remembers the
+ * classes that could not be found anywhere.
+ */
+class ClasspathIndex {
+	final static Jar[]			EMPTY		= new Jar[0];
+
+	final Jar[]					jars;
+	final int[]					stamps;
+	final Map<String,Jar[]>		directories	= new HashMap<String,Jar[]>();
+	final Set<TypeRef>			missing		= new HashSet<TypeRef>();
+	int							indexed;
+
+	ClasspathIndex(List<Jar> classpath) {
+		jars = classpath.toArray(EMPTY);
+		stamps = new int[jars.length];
+		for (int i = 0; i < jars.length; i++)
+			stamps[i] = jars[i].changes;
+	}
+
+	/**
+	 * Answer true if the index still reflects the class path, i.e. the class
+	 * path has the same jars and no jar has gained a resource.
+	 */
+	boolean isValid(List<Jar> classpath) {
+		if (classpath.size() != jars.length)
+			return false;
+		for (int i = 0; i < jars.length; i++) {
+			Jar jar = jars[i];
+			if (classpath.get(i) != jar || jar.changes != stamps[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Locate a resource in the first jar that has it.
+	 */
+	Resource findResource(String path) {
+		int n = path.lastIndexOf('/');
+		String dir = n < 0 ? "" : path.substring(0, n);
+		Jar[] candidates = directories.get(dir);
+		if (candidates != null) {
+			for (Jar jar : candidates) {
+				Resource r = jar.getResource(path);
+				if (r != null)
+					return r;
+			}
+		}
+
+		while (indexed < jars.length) {
+			Jar jar = jars[indexed++];
+			if (add(jar).contains(dir)) {
+				Resource r = jar.getResource(path);
+				if (r != null)
+					return r;
+			}
+		}
+		return null;
+	}
+
+	private Collection<String> add(Jar jar) {
+		Collection<String> dirs = jar.getDirectoryNames();
+		for (String dir : dirs) {
+			Jar[] present = directories.get(dir);
+			if (present == null) {
+				directories.put(dir, new Jar[] {
+						jar
+				});
+			} else {
+				Jar[] more = Arrays.copyOf(present, present.length + 1);
+				more[present.length] = jar;
+				directories.put(dir, more);
+			}
+		}
+		return dirs;
+	}
+
+	boolean isMissing(TypeRef typeRef) {
+		return missing.contains(typeRef);
+	}
+
+	void setMissing(TypeRef typeRef) {
+		missing.add(typeRef);
+	}
+}
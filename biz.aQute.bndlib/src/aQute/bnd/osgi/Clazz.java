@@ -1,5 +1,6 @@
 package aQute.bnd.osgi;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -26,6 +27,7 @@ import java.util.regex.Pattern;
 import aQute.bnd.osgi.Descriptors.Descriptor;
 import aQute.bnd.osgi.Descriptors.PackageRef;
 import aQute.bnd.osgi.Descriptors.TypeRef;
+import aQute.lib.io.ByteBufferInputStream;
 import aQute.lib.utf8properties.UTF8Properties;
 import aQute.libg.generics.Create;
 
@@ -42,7 +44,7 @@ public class Clazz {
 		}
 
 		public String getName() {
-			return (String) pool[cname];
+			return (String) constant(cname);
 		}
 
 		public String toString() {
@@ -444,6 +446,8 @@ public class Clazz {
 	TypeRef				className;
 	Object				pool[];
 	int					intPool[];
+	int					utf8[];
+	ByteBuffer			buffer;
 	Set<PackageRef>		imports		= Create.set();
 	String				path;
 	int					minor		= 0;
@@ -491,11 +495,32 @@ public class Clazz {
 		}
 	}
 
+	/**
+	 * Parse the class file from the stream, the stream is owned by the caller
+	 * and is not closed.
+	 */
 	public Set<TypeRef> parseClassFile(InputStream in, ClassDataCollector cd) throws Exception {
-		DataInputStream din = new DataInputStream(in);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int size; (size = in.read(buffer)) > 0;)
+			bout.write(buffer, 0, size);
+		return parseClassFile(ByteBuffer.wrap(bout.toByteArray()), cd);
+	}
+
+	/**
+	 * Parse the class file in the given buffer, the buffer can be memory
+	 * mapped. The constant pool is not decoded up front, we only record the
+	 * offsets of the UTF-8 constants and decode them when they are used. Most
+	 * of these constants, e.g. string literals and debug names, are never
+	 * used by the parser.
+	 */
+	public Set<TypeRef> parseClassFile(ByteBuffer bb, ClassDataCollector cd) throws Exception {
+		bb.order(ByteOrder.BIG_ENDIAN);
+		DataInputStream din = new DataInputStream(new ByteBufferInputStream(bb));
 		try {
 			cds.push(this.cd);
 			this.cd = cd;
+			buffer = bb;
 			return parseClassFile(din);
 		}
 		finally {
@@ -523,6 +548,7 @@ public class Clazz {
 		int count = in.readUnsignedShort();
 		pool = new Object[count];
 		intPool = new int[count];
+		utf8 = new int[count];
 
 		process: for (int poolIndex = 1; poolIndex < count; poolIndex++) {
 			byte tag = in.readByte();
@@ -639,7 +665,7 @@ public class Clazz {
 			api = new HashSet<PackageRef>();
 
 		int this_class = in.readUnsignedShort();
-		className = analyzer.getTypeRef((String) pool[intPool[this_class]]);
+		className = analyzer.getTypeRef((String) constant(intPool[this_class]));
 		referTo(className, Modifier.PUBLIC);
 
 		try {
@@ -650,7 +676,7 @@ public class Clazz {
 			}
 
 			int super_class = in.readUnsignedShort();
-			String superName = (String) pool[intPool[super_class]];
+			String superName = (String) constant(intPool[super_class]);
 			if (superName != null) {
 				zuper = analyzer.getTypeRef(superName);
 			}
@@ -665,7 +691,7 @@ public class Clazz {
 			if (interfacesCount > 0) {
 				interfaces = new TypeRef[interfacesCount];
 				for (int i = 0; i < interfacesCount; i++) {
-					interfaces[i] = analyzer.getTypeRef((String) pool[intPool[in.readUnsignedShort()]]);
+					interfaces[i] = analyzer.getTypeRef((String) constant(intPool[in.readUnsignedShort()]));
 					referTo(interfaces[i], accessx);
 				}
 				if (cd != null)
@@ -688,12 +714,12 @@ public class Clazz {
 				// class name for the field type, so bnd
 				// would not see a reference. We detect
 				// this case and add an artificial descriptor
-				String name = pool[name_index].toString(); // name_index
+				String name = constant(name_index).toString(); // name_index
 				if (name.startsWith("class$") || name.startsWith("$class$")) {
 					crawl = true;
 				}
 				if (cd != null)
-					cd.field(last = new FieldDef(access_flags, name, pool[descriptor_index].toString()));
+					cd.field(last = new FieldDef(access_flags, name, constant(descriptor_index).toString()));
 
 				referTo(descriptor_index, access_flags);
 				doAttributes(in, ElementType.FIELD, false, access_flags);
@@ -734,8 +760,8 @@ public class Clazz {
 				int access_flags = in.readUnsignedShort();
 				int name_index = in.readUnsignedShort();
 				int descriptor_index = in.readUnsignedShort();
-				String name = pool[name_index].toString();
-				String descriptor = pool[descriptor_index].toString();
+				String name = constant(name_index).toString();
+				String descriptor = constant(descriptor_index).toString();
 				MethodDef mdef = null;
 				if (cd != null) {
 					mdef = new MethodDef(access_flags, name, descriptor);
@@ -849,9 +875,51 @@ public class Clazz {
 	 */
 	protected void constantUtf8(DataInputStream in, int poolIndex) throws IOException {
 		// CONSTANT_Utf8
+		// We only remember where the constant starts, it is decoded
+		// when it is used. See constant(int)
 
-		String name = in.readUTF();
-		pool[poolIndex] = name;
+		utf8[poolIndex] = buffer.position();
+		int length = in.readUnsignedShort();
+		in.skipBytes(length);
+	}
+
+	/**
+	 * Answer the constant at the given index of the constant pool. UTF-8
+	 * constants are decoded on first use and then remembered in the pool.
+	 */
+	Object constant(int index) {
+		Object o = pool[index];
+		if (o == null && utf8[index] != 0) {
+			o = pool[index] = decodeUtf8(utf8[index]);
+			utf8[index] = 0;
+		}
+		return o;
+	}
+
+	/*
+	 * Decode a modified UTF-8 string from the class file. Most of these
+	 * strings are ASCII so we have a fast path for that case.
+	 */
+	private String decodeUtf8(int offset) {
+		ByteBuffer bb = buffer;
+		int length = 0xFFFF & bb.getShort(offset);
+		int start = offset + 2;
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			byte b = bb.get(start + i);
+			if (b < 0) {
+				ByteBuffer dup = bb.duplicate();
+				dup.position(offset);
+				try {
+					return DataInputStream.readUTF(new DataInputStream(new ByteBufferInputStream(dup)));
+				}
+				catch (IOException e) {
+					throw new IllegalArgumentException("Invalid UTF-8 constant in class file " + path, e);
+				}
+			}
+			chars[i] = (char) b;
+		}
+		return new String(chars);
 	}
 
 	/**
@@ -867,15 +935,15 @@ public class Clazz {
 					// Method ref
 					int class_index = methodref.a;
 					int class_name_index = intPool[class_index];
-					if (clazz.equals(pool[class_name_index])) {
+					if (clazz.equals(constant(class_name_index))) {
 						int name_and_type_index = methodref.b;
 						Assoc name_and_type = (Assoc) pool[name_and_type_index];
 						if (name_and_type.tag == 12) {
 							// Name and Type
 							int name_index = name_and_type.a;
 							int type_index = name_and_type.b;
-							if (methodname.equals(pool[name_index])) {
-								if (descriptor.equals(pool[type_index])) {
+							if (methodname.equals(constant(name_index))) {
+								if (descriptor.equals(constant(type_index))) {
 									return i;
 								}
 							}
@@ -906,7 +974,7 @@ public class Clazz {
 	 */
 	private void doAttribute(DataInputStream in, ElementType member, boolean crawl, int access_flags) throws Exception {
 		int attribute_name_index = in.readUnsignedShort();
-		String attributeName = (String) pool[attribute_name_index];
+		String attributeName = (String) constant(attribute_name_index);
 		long attribute_length = in.readInt();
 		attribute_length &= 0xFFFFFFFF;
 		if ("Deprecated".equals(attributeName)) {
@@ -964,15 +1032,15 @@ public class Clazz {
 
 		if (cd != null) {
 			int nameIndex = intPool[cIndex];
-			TypeRef cName = analyzer.getTypeRef((String) pool[nameIndex]);
+			TypeRef cName = analyzer.getTypeRef((String) constant(nameIndex));
 
 			String mName = null;
 			String mDescriptor = null;
 
 			if (mIndex != 0) {
 				Assoc nameAndType = (Assoc) pool[mIndex];
-				mName = (String) pool[nameAndType.a];
-				mDescriptor = (String) pool[nameAndType.b];
+				mName = (String) constant(nameAndType.a);
+				mDescriptor = (String) constant(nameAndType.b);
 			}
 			cd.enclosingMethod(cName, mName, mDescriptor);
 		}
@@ -999,16 +1067,16 @@ public class Clazz {
 
 				if (inner_class_info_index != 0) {
 					int nameIndex = intPool[inner_class_info_index];
-					innerClass = analyzer.getTypeRef((String) pool[nameIndex]);
+					innerClass = analyzer.getTypeRef((String) constant(nameIndex));
 				}
 
 				if (outer_class_info_index != 0) {
 					int nameIndex = intPool[outer_class_info_index];
-					outerClass = analyzer.getTypeRef((String) pool[nameIndex]);
+					outerClass = analyzer.getTypeRef((String) constant(nameIndex));
 				}
 
 				if (inner_name_index != 0)
-					innerName = (String) pool[inner_name_index];
+					innerName = (String) constant(inner_name_index);
 
 				cd.innerClass(innerClass, outerClass, innerName, inner_class_access_flags);
 			}
@@ -1023,7 +1091,7 @@ public class Clazz {
 
 	void doSignature(DataInputStream in, ElementType member, int access_flags) throws IOException {
 		int signature_index = in.readUnsignedShort();
-		String signature = (String) pool[signature_index];
+		String signature = (String) constant(signature_index);
 		try {
 
 			parseDescriptor(signature, access_flags);
@@ -1050,9 +1118,9 @@ public class Clazz {
 		if (cd == null)
 			return;
 
-		Object object = pool[constantValue_index];
+		Object object = constant(constantValue_index);
 		if (object == null)
-			object = pool[intPool[constantValue_index]];
+			object = constant(intPool[constantValue_index]);
 
 		last.constant = object;
 		cd.constant(object);
@@ -1162,8 +1230,8 @@ public class Clazz {
 						getMethodDef(0, methodref);
 
 					if ((methodref == forName || methodref == class$) && lastReference != -1
-							&& pool[intPool[lastReference]] instanceof String) {
-						String fqn = (String) pool[intPool[lastReference]];
+							&& constant(intPool[lastReference]) instanceof String) {
+						String fqn = (String) constant(intPool[lastReference]);
 						if (!fqn.equals("class") && fqn.indexOf('.') > 0) {
 							TypeRef clazz = analyzer.getTypeRefFromFQN(fqn);
 							referTo(clazz, 0);
@@ -1224,7 +1292,7 @@ public class Clazz {
 
 	private void doSourceFile(DataInputStream in) throws IOException {
 		int sourcefile_index = in.readUnsignedShort();
-		this.sourceFile = pool[sourcefile_index].toString();
+		this.sourceFile = constant(sourcefile_index).toString();
 	}
 
 	private void doParameterAnnotations(DataInputStream in, ElementType member, RetentionPolicy policy,
@@ -1421,7 +1489,7 @@ public class Clazz {
 		if (annotations == null)
 			annotations = new HashSet<TypeRef>();
 
-		String typeName = (String) pool[type_index];
+		String typeName = (String) constant(type_index);
 		TypeRef typeRef = null;
 		if (typeName != null) {
 			typeRef = analyzer.getTypeRef(typeName);
@@ -1440,7 +1508,7 @@ public class Clazz {
 		Map<String,Object> elements = null;
 		for (int v = 0; v < num_element_value_pairs; v++) {
 			int element_name_index = in.readUnsignedShort();
-			String element = (String) pool[element_name_index];
+			String element = (String) constant(element_name_index);
 			Object value = doElementValue(in, member, policy, collect, access_flags);
 			if (collect) {
 				if (elements == null)
@@ -1469,27 +1537,27 @@ public class Clazz {
 			case 's' : // String
 			case 'J' : // Long
 				const_value_index = in.readUnsignedShort();
-				return pool[const_value_index];
+				return constant(const_value_index);
 
 			case 'Z' : // Boolean
 				const_value_index = in.readUnsignedShort();
-				return pool[const_value_index] == null || pool[const_value_index].equals(0) ? false : true;
+				return constant(const_value_index) == null || constant(const_value_index).equals(0) ? false : true;
 
 			case 'e' : // enum constant
 				int type_name_index = in.readUnsignedShort();
 				if (policy == RetentionPolicy.RUNTIME) {
 					referTo(type_name_index, 0);
 					if (api != null && (Modifier.isPublic(access_flags) || Modifier.isProtected(access_flags))) {
-						TypeRef name = analyzer.getTypeRef((String) pool[type_name_index]);
+						TypeRef name = analyzer.getTypeRef((String) constant(type_name_index));
 						api.add(name.getPackageRef());
 					}
 				}
 				int const_name_index = in.readUnsignedShort();
-				return pool[const_name_index];
+				return constant(const_name_index);
 
 			case 'c' : // Class
 				int class_info_index = in.readUnsignedShort();
-				TypeRef name = analyzer.getTypeRef((String) pool[class_info_index]);
+				TypeRef name = analyzer.getTypeRef((String) constant(class_info_index));
 				if (policy == RetentionPolicy.RUNTIME) {
 					referTo(class_info_index, 0);
 					if (api != null && (Modifier.isPublic(access_flags) || Modifier.isProtected(access_flags))) {
@@ -1539,7 +1607,7 @@ public class Clazz {
 	}
 
 	void referTo(int index, int modifiers) {
-		String descriptor = (String) pool[index];
+		String descriptor = (String) constant(index);
 		parseDescriptor(descriptor, modifiers);
 	}
 
@@ -1694,6 +1762,8 @@ public class Clazz {
 		if (--depth == 0) {
 			pool = null;
 			intPool = null;
+			utf8 = null;
+			buffer = null;
 			xref = null;
 		}
 	}
@@ -1794,15 +1864,15 @@ public class Clazz {
 			Assoc assoc = (Assoc) o;
 			if (assoc.tag == 10) {
 				int string_index = intPool[assoc.a];
-				TypeRef className = analyzer.getTypeRef((String) pool[string_index]);
+				TypeRef className = analyzer.getTypeRef((String) constant(string_index));
 				int name_and_type_index = assoc.b;
 				Assoc name_and_type = (Assoc) pool[name_and_type_index];
 				if (name_and_type.tag == 12) {
 					// Name and Type
 					int name_index = name_and_type.a;
 					int type_index = name_and_type.b;
-					String method = (String) pool[name_index];
-					String descriptor = (String) pool[type_index];
+					String method = (String) constant(name_index);
+					String descriptor = (String) constant(type_index);
 					cd.referenceMethod(access, className, method, descriptor);
 				} else
 					throw new IllegalArgumentException(
@@ -0,0 +1,331 @@
+package aQute.bnd.osgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import aQute.bnd.osgi.Descriptors.PackageRef;
+import aQute.bnd.osgi.Descriptors.TypeRef;
+import aQute.lib.io.IO;
+import aQute.libg.cryptography.SHA1;
+
+/**
+ * A persistent cache of the models of parsed class files. The models are
+ * stored in a directory, keyed by the SHA-1 of the class file, so a class that
+ * has not changed since an earlier build does not have to be decoded again.
+ * The model is what a plain {@link Clazz#parseClassFile()} leaves behind in
+ * the Clazz: the class name, the access flags, the super class and interfaces,
+ * the referred and API packages, and the annotation types. The models are
+ * stored in a compact binary format, the files are written atomically so the
+ * cache can be shared by concurrent builds.
+ * <p>
+ * The cache holds at most a maximum number of models. A model that is used is
+ * touched, when there are too many models the least recently used are removed.
+ * A model that cannot be read or written is reported with a trace, the class
+ * file is then just parsed.
+ */
+public class ClazzCache {
+	public final static int	DEFAULT_MAX_ENTRIES	= 50000;
+
+	final static int		VERSION				= 2;
+
+	final static int		RUNTIME_ANNOTATIONS	= 1;
+	final static int		CLASS_ANNOTATIONS	= 2;
+	final static int		DEFAULT_CONSTRUCTOR	= 4;
+	final static int		DEPRECATED			= 8;
+
+	final File				dir;
+	final int				maxEntries;
+	final AtomicInteger		entries				= new AtomicInteger(-1);
+
+	public ClazzCache(File dir) {
+		this(dir, DEFAULT_MAX_ENTRIES);
+	}
+
+	public ClazzCache(File dir, int maxEntries) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("At least one entry must be allowed " + maxEntries);
+		this.dir = dir;
+		this.maxEntries = maxEntries;
+	}
+
+	public File getRoot() {
+		return dir;
+	}
+
+	/**
+	 * Parse the class file of the given clazz or, when a model for the content
+	 * of the class file was cached, restore it from the cache.
+	 */
+	void parse(Clazz clazz) throws Exception {
+		byte[] data;
+		InputStream in = clazz.resource.openInputStream();
+		try {
+			data = IO.read(in);
+		}
+		finally {
+			in.close();
+		}
+
+		File file = getFile(SHA1.digest(data).asHex());
+		boolean cached = file.isFile();
+		if (cached && restore(clazz, file)) {
+			file.setLastModified(System.currentTimeMillis());
+			return;
+		}
+
+		clazz.parseClassFile(ByteBuffer.wrap(data), null);
+
+		if (!cached && store(clazz, file))
+			added();
+	}
+
+	File getFile(String sha) {
+		return new File(new File(dir, sha.substring(0, 2)), sha);
+	}
+
+	/*
+	 * Restore the model. We decode everything before we touch the clazz so a
+	 * corrupt or outdated file leaves the clazz untouched.
+	 */
+	boolean restore(Clazz clazz, File file) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(IO.read(file)));
+			if (in.readInt() != VERSION)
+				return false;
+
+			in.readBoolean(); // has annotations
+
+			Analyzer analyzer = clazz.analyzer;
+			int minor = in.readUnsignedShort();
+			int major = in.readUnsignedShort();
+			int access = in.readInt();
+			int innerAccess = in.readInt();
+			int flags = in.readUnsignedByte();
+			TypeRef className = analyzer.getTypeRef(in.readUTF());
+			String zuper = readString(in);
+			TypeRef[] interfaces = null;
+			int n = in.readInt();
+			if (n >= 0) {
+				interfaces = new TypeRef[n];
+				for (int i = 0; i < n; i++)
+					interfaces[i] = analyzer.getTypeRef(in.readUTF());
+			}
+			Set<PackageRef> imports = readPackages(in, analyzer);
+			Set<PackageRef> api = readPackages(in, analyzer);
+			Set<TypeRef> annotations = null;
+			n = in.readInt();
+			if (n >= 0) {
+				annotations = new HashSet<TypeRef>();
+				for (int i = 0; i < n; i++)
+					annotations.add(analyzer.getTypeRef(in.readUTF()));
+			}
+			String sourceFile = readString(in);
+			String classSignature = readString(in);
+
+			clazz.minor = minor;
+			clazz.major = major;
+			clazz.accessx = access;
+			clazz.innerAccess = innerAccess;
+			clazz.hasRuntimeAnnotations = (flags & RUNTIME_ANNOTATIONS) != 0;
+			clazz.hasClassAnnotations = (flags & CLASS_ANNOTATIONS) != 0;
+			clazz.hasDefaultConstructor = (flags & DEFAULT_CONSTRUCTOR) != 0;
+			clazz.deprecated = (flags & DEPRECATED) != 0;
+			clazz.className = className;
+			clazz.zuper = zuper == null ? null : analyzer.getTypeRef(zuper);
+			clazz.interfaces = interfaces;
+			clazz.imports.addAll(imports);
+			clazz.api = api;
+			clazz.annotations = annotations;
+			clazz.sourceFile = sourceFile;
+			clazz.classSignature = classSignature;
+			return true;
+		}
+		catch (Exception e) {
+			clazz.analyzer.trace("cannot read cached model of %s from %s, parsing it: %s", clazz, file, e);
+			IO.delete(file);
+			return false;
+		}
+	}
+
+	/*
+	 * Store the model, we write a temporary file first and then rename it so
+	 * readers never see a partial file. Answer true if the model was stored.
+	 */
+	boolean store(Clazz clazz, File file) {
+		try {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bout);
+			out.writeInt(VERSION);
+			out.writeBoolean(clazz.annotations != null);
+			out.writeShort(clazz.minor);
+			out.writeShort(clazz.major);
+			out.writeInt(clazz.accessx);
+			out.writeInt(clazz.innerAccess);
+			int flags = 0;
+			if (clazz.hasRuntimeAnnotations)
+				flags |= RUNTIME_ANNOTATIONS;
+			if (clazz.hasClassAnnotations)
+				flags |= CLASS_ANNOTATIONS;
+			if (clazz.hasDefaultConstructor)
+				flags |= DEFAULT_CONSTRUCTOR;
+			if (clazz.deprecated)
+				flags |= DEPRECATED;
+			out.writeByte(flags);
+			out.writeUTF(clazz.className.getBinary());
+			writeString(out, clazz.zuper == null ? null : clazz.zuper.getBinary());
+			if (clazz.interfaces == null)
+				out.writeInt(-1);
+			else {
+				out.writeInt(clazz.interfaces.length);
+				for (TypeRef ref : clazz.interfaces)
+					out.writeUTF(ref.getBinary());
+			}
+			writePackages(out, clazz.imports);
+			writePackages(out, clazz.api);
+			if (clazz.annotations == null)
+				out.writeInt(-1);
+			else {
+				out.writeInt(clazz.annotations.size());
+				for (TypeRef ref : clazz.annotations)
+					out.writeUTF(ref.getBinary());
+			}
+			writeString(out, clazz.sourceFile);
+			writeString(out, clazz.classSignature);
+			out.close();
+
+			File parent = file.getParentFile();
+			parent.mkdirs();
+			File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+			try {
+				IO.copy(bout.toByteArray(), tmp);
+				if (!tmp.renameTo(file))
+					IO.rename(tmp, file);
+			}
+			finally {
+				IO.delete(tmp);
+			}
+			return true;
+		}
+		catch (Exception e) {
+			clazz.analyzer.trace("cannot store the model of %s in %s: %s", clazz, file, e);
+			return false;
+		}
+	}
+
+	/*
+	 * Count a new model, the models in the directory are counted the first
+	 * time. Remove the least recently used models when there are too many,
+	 * we remove a quarter so we do not have to do this for every new model.
+	 */
+	private void added() {
+		int n = entries.get();
+		if (n < 0) {
+			synchronized (this) {
+				if (entries.get() < 0)
+					entries.set(list().size());
+			}
+			n = entries.get();
+		} else
+			n = entries.incrementAndGet();
+
+		if (n > maxEntries)
+			trim(maxEntries - maxEntries / 4);
+	}
+
+	synchronized void trim(int max) {
+		List<File> files = list();
+		if (files.size() > max) {
+			final Map<File,Long> used = new HashMap<File,Long>();
+			for (File f : files)
+				used.put(f, f.lastModified());
+			Collections.sort(files, new Comparator<File>() {
+				public int compare(File a, File b) {
+					return used.get(a).compareTo(used.get(b));
+				}
+			});
+			for (File f : files.subList(0, files.size() - max))
+				IO.delete(f);
+			files = files.subList(files.size() - max, files.size());
+		}
+		entries.set(files.size());
+	}
+
+	private List<File> list() {
+		List<File> files = new ArrayList<File>();
+		File[] subs = dir.listFiles();
+		if (subs != null)
+			for (File sub : subs) {
+				File[] models = sub.listFiles();
+				if (models != null)
+					for (File model : models)
+						if (!model.getName().endsWith(".tmp"))
+							files.add(model);
+			}
+		return files;
+	}
+
+	/**
+	 * Answer the number of models in the cache.
+	 */
+	public int size() {
+		return list().size();
+	}
+
+	public synchronized void clear() {
+		IO.delete(dir);
+		entries.set(-1);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		if (in.readBoolean())
+			return in.readUTF();
+		return null;
+	}
+
+	private static void writePackages(DataOutputStream out, Collection<PackageRef> packages) throws IOException {
+		if (packages == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(packages.size());
+		for (PackageRef ref : packages)
+			out.writeUTF(ref.getBinary());
+	}
+
+	private static Set<PackageRef> readPackages(DataInputStream in, Analyzer analyzer) throws IOException {
+		int n = in.readInt();
+		if (n < 0)
+			return null;
+		Set<PackageRef> packages = new HashSet<PackageRef>();
+		for (int i = 0; i < n; i++)
+			packages.add(analyzer.getPackageRef(in.readUTF()));
+		return packages;
+	}
+
+	@Override
+	public String toString() {
+		return "ClazzCache[" + dir + "]";
+	}
+}
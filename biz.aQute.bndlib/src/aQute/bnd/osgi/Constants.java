@@ -75,8 +75,9 @@ public interface Constants {
 			TESTER_PLUGIN
 	};
 
-	String	BASELINE		= "-baseline";
-	String	BASELINEREPO	= "-baselinerepo";
+	String	ANALYZER_PARALLELISM	= "-analyzer-parallelism";
+	String	BASELINE				= "-baseline";
+	String	BASELINEREPO			= "-baselinerepo";
 
 	String	BNDDRIVER				= "-bnd-driver";
 	String	BNDDRIVER_BND			= "bnd";
@@ -94,6 +95,7 @@ public interface Constants {
 	String	BUILDPACKAGES			= "-buildpackages";
 	String	BUMPPOLICY				= "-bumppolicy";
 	String	CHECK					= "-check";
+	String	COMPRESSION_PARALLELISM	= "-compression-parallelism";
 	String	CONDUIT					= "-conduit";
 	String	CONTRACT				= "-contract";
 	@Deprecated
@@ -180,6 +182,10 @@ public interface Constants {
 	String	SOURCEPATH						= "-sourcepath";
 	String	STRICT							= "-strict";
 	String	SUB								= "-sub";
+	String	SUB_PARALLELISM					= "-sub-parallelism";
+	String	BUILD_PARALLELISM				= "-build-parallelism";
+	String	PREPARE_PARALLELISM				= "-prepare-parallelism";
+	String	PREPARE_SNAPSHOT				= "-prepare-snapshot";
 	String	RUNNOREFERENCES					= "-runnoreferences";
 	String	RUNPROPERTIES					= "-runproperties";
 	String	RUNSYSTEMPACKAGES				= "-runsystempackages";
@@ -252,7 +258,8 @@ public interface Constants {
 			RUNJDB, RUNENV, RUNEE, EEPROFILE, RUNREQUIRES, EXPORT, GESTALT, BNDDRIVER, CHECK, DISTRO,
 			METATYPE_ANNOTATIONS, METATYPE_ANNOTATIONS_OPTIONS, PACKAGEINFOTYPE, JAVAC_SOURCE, JAVAC_TARGET,
 			JAVAC_PROFILE, JAVAC, JAVA, JAVA_DEBUG, EXPORTTYPE, RUNREMOTE, TESTER, AUGMENT, REQUIRE_BND, GROUPID,
-			STANDALONE
+			STANDALONE, ANALYZER_PARALLELISM, COMPRESSION_PARALLELISM, SUB_PARALLELISM, BUILD_PARALLELISM,
+			PREPARE_PARALLELISM, PREPARE_SNAPSHOT
 
 	};
 
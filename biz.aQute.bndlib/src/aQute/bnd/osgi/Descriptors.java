@@ -1,14 +1,20 @@
 package aQute.bnd.osgi;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import aQute.bnd.annotation.*;
 import aQute.libg.generics.*;
 
 public class Descriptors {
-	Map<String,TypeRef>		typeRefCache	= Create.map();
-	Map<String,Descriptor>	descriptorCache	= Create.map();
-	Map<String,PackageRef>	packageCache	= Create.map();
+	//
+	// The intern tables are shared by the threads of a parallel analysis. A
+	// ref is only created outside the table, putIfAbsent decides which
+	// instance wins so the identity of a ref never depends on the timing.
+	//
+	final ConcurrentMap<String,TypeRef>		typeRefCache	= new ConcurrentHashMap<String,TypeRef>();
+	final ConcurrentMap<String,Descriptor>	descriptorCache	= new ConcurrentHashMap<String,Descriptor>();
+	final ConcurrentMap<String,PackageRef>	packageCache	= new ConcurrentHashMap<String,PackageRef>();
 
 	// MUST BE BEFORE PRIMITIVES, THEY USE THE DEFAULT PACKAGE!!
 	final static PackageRef	DEFAULT_PACKAGE		= new PackageRef();
@@ -401,8 +407,8 @@ public class Descriptors {
 			ref = new ConcreteRef(pref, binaryClassName);
 		}
 
-		typeRefCache.put(binaryClassName, ref);
-		return ref;
+		TypeRef previous = typeRefCache.putIfAbsent(binaryClassName, ref);
+		return previous != null ? previous : ref;
 	}
 
 	public PackageRef getPackageRef(String binaryPackName) {
@@ -420,8 +426,8 @@ public class Descriptors {
 		//
 
 		ref = new PackageRef(binaryPackName);
-		packageCache.put(binaryPackName, ref);
-		return ref;
+		PackageRef previous = packageCache.putIfAbsent(binaryPackName, ref);
+		return previous != null ? previous : ref;
 	}
 
 	public Descriptor getDescriptor(String descriptor) {
@@ -429,8 +435,8 @@ public class Descriptors {
 		if (d != null)
 			return d;
 		d = new Descriptor(descriptor);
-		descriptorCache.put(descriptor, d);
-		return d;
+		Descriptor previous = descriptorCache.putIfAbsent(descriptor, d);
+		return previous != null ? previous : d;
 	}
 
 	public class Descriptor {
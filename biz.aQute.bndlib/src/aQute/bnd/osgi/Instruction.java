@@ -45,6 +45,7 @@ public class Instruction {
 
 	transient Pattern	pattern;
 	transient boolean	optional;
+	transient String	prefix;
 
 	final String	input;
 	final String	match;
@@ -195,6 +196,65 @@ public class Instruction {
 		return any;
 	}
 
+	/**
+	 * Answer true if the input can be a wildcard instruction, i.e. it has a
+	 * '*', '?' or '|'. An input without any of them is always literal.
+	 */
+	static boolean isWildcard(String input) {
+		return input.indexOf('*') >= 0 || input.indexOf('?') >= 0 || input.indexOf('|') >= 0;
+	}
+
+	/**
+	 * Answer the literal text that every value this instruction matches starts
+	 * with. This can be empty.
+	 */
+	String getPrefix() {
+		if (prefix == null) {
+			if (any || caseInsensitive)
+				prefix = "";
+			else if (literal)
+				prefix = match;
+			else if (match.indexOf('|') >= 0)
+				prefix = "";
+			else {
+				StringBuilder sb = new StringBuilder();
+				int c = 0;
+				loop: for (; c < match.length(); c++) {
+					char ch = match.charAt(c);
+					switch (ch) {
+						case '\\' :
+							if (c + 1 < match.length() && (match.charAt(c + 1) == '.' || match.charAt(c + 1) == '$')) {
+								sb.append(match.charAt(++c));
+								break;
+							}
+							break loop;
+						case '^' :
+						case '$' :
+						case '.' :
+						case '?' :
+						case '*' :
+						case '+' :
+						case '(' :
+						case ')' :
+						case '[' :
+						case ']' :
+						case '{' :
+						case '}' :
+							break loop;
+						default :
+							sb.append(ch);
+							break;
+					}
+				}
+				// a {n,m} quantifier can make the last character optional
+				if (sb.length() > 0 && c < match.length() && match.charAt(c) == '{')
+					sb.setLength(sb.length() - 1);
+				prefix = sb.toString();
+			}
+		}
+		return prefix;
+	}
+
 	public boolean finds(String value) {
 		return getMatcher(value).find();
 	}
@@ -8,6 +8,7 @@ import aQute.lib.io.*;
 
 public class Instructions implements Map<Instruction,Attrs> {
 	private LinkedHashMap<Instruction,Attrs>	map;
+	private Index								index;
 	public static Instructions					ALWAYS	= new Instructions();
 	static Map<Instruction,Attrs>				EMPTY	= Collections.emptyMap();
 
@@ -35,6 +36,7 @@ public class Instructions implements Map<Instruction,Attrs> {
 	}
 
 	public void clear() {
+		index = null;
 		map.clear();
 	}
 
@@ -105,6 +107,7 @@ public class Instructions implements Map<Instruction,Attrs> {
 	}
 
 	public Attrs put(Instruction key, Attrs value) {
+		index = null;
 		if (map == null)
 			map = new LinkedHashMap<Instruction,Attrs>();
 
@@ -112,6 +115,7 @@ public class Instructions implements Map<Instruction,Attrs> {
 	}
 
 	public void putAll(Map< ? extends Instruction, ? extends Attrs> map) {
+		index = null;
 		if (this.map == null) {
 			if (map.isEmpty())
 				return;
@@ -126,12 +130,14 @@ public class Instructions implements Map<Instruction,Attrs> {
 		if (map == null)
 			return null;
 
+		index = null;
 		return map.remove(var0);
 	}
 
 	public Attrs remove(Instruction var0) {
 		if (map == null)
 			return null;
+		index = null;
 		return map.remove(var0);
 	}
 
@@ -168,22 +174,28 @@ public class Instructions implements Map<Instruction,Attrs> {
 		if (emptyIsAll && isEmpty())
 			return input;
 
-		List<T> result = new ArrayList<T>();
-
-		for (Instruction instruction : keySet()) {
-			boolean used = false;
-			for (Iterator<T> o = input.iterator(); o.hasNext();) {
-				T oo = o.next();
-				String s = oo.toString();
-				if (instruction.matches(s)) {
-					if (!instruction.isNegated())
-						result.add(oo);
-					o.remove();
-					used = true;
-				}
+		// Every value goes to the first instruction that matches it
+		Index index = getIndex();
+		List<List<T>> matched = new ArrayList<List<T>>(Collections.<List<T>> nCopies(index.size(), null));
+		for (T oo : input) {
+			int n = index.indexOf(oo.toString(), 0);
+			if (n >= 0) {
+				List<T> l = matched.get(n);
+				if (l == null)
+					matched.set(n, l = new ArrayList<T>());
+				l.add(oo);
 			}
-			if (!used && unused != null)
-				unused.add(instruction);
+		}
+
+		List<T> result = new ArrayList<T>();
+		for (int n = 0; n < index.size(); n++) {
+			Instruction instruction = index.get(n);
+			List<T> l = matched.get(n);
+			if (l == null) {
+				if (unused != null)
+					unused.add(instruction);
+			} else if (!instruction.isNegated())
+				result.addAll(l);
 		}
 		return result;
 	}
@@ -209,12 +221,201 @@ public class Instructions implements Map<Instruction,Attrs> {
 	}
 
 	public Instruction matcher(String value) {
-		for (Instruction i : keySet()) {
-			if (i.matches(value)) {
-				return i;
+		Index index = getIndex();
+		int n = index.indexOf(value, 0);
+		return n < 0 ? null : index.get(n);
+	}
+
+	/**
+	 * Answer the position, in the order of the instructions, of the first
+	 * instruction at or after from that matches the value. Answer -1 if no
+	 * instruction matches. Like {@link Instruction#matches(String)} this does
+	 * not look at the negation.
+	 */
+	int indexOf(String value, int from) {
+		return getIndex().indexOf(value, from);
+	}
+
+	private Index getIndex() {
+		Index index = this.index;
+		if (index == null || index.size() != size())
+			this.index = index = new Index(keySet());
+		return index;
+	}
+
+	/**
+	 * Matches a value against all the instructions at once. Literal
+	 * instructions are looked up in a map, the instructions that match a prefix
+	 * like com.foo.* or com.foo* are looked up in a trie and only the other
+	 * instructions are matched with their pattern.
+	 */
+	static class Index {
+		private final static int[]		NONE		= new int[0];
+		private final Instruction[]		instructions;
+		private final Map<String,int[]>	literals	= new HashMap<String,int[]>();
+		private final Node				root		= new Node();
+		private int[]					patterns	= NONE;
+
+		Index(Collection<Instruction> instructions) {
+			this.instructions = instructions.toArray(new Instruction[instructions.size()]);
+			for (int n = 0; n < this.instructions.length; n++) {
+				Instruction instruction = this.instructions[n];
+				if (instruction.isLiteral()) {
+					int[] l = literals.get(instruction.getLiteral());
+					literals.put(instruction.getLiteral(), add(l == null ? NONE : l, n));
+					continue;
+				}
+
+				String pattern = instruction.getPattern();
+				if (!instruction.isAny() && !instruction.caseInsensitive) {
+					if (pattern.endsWith("(\\..*)?")) {
+						String prefix = unescape(pattern.substring(0, pattern.length() - 7));
+						if (prefix != null) {
+							Node node = root.put(prefix);
+							node.packages = add(node.packages, n);
+							continue;
+						}
+					} else if (pattern.endsWith(".*")) {
+						String prefix = unescape(pattern.substring(0, pattern.length() - 2));
+						if (prefix != null) {
+							Node node = root.put(prefix);
+							node.prefixes = add(node.prefixes, n);
+							continue;
+						}
+					}
+				}
+				patterns = add(patterns, n);
+			}
+		}
+
+		int size() {
+			return instructions.length;
+		}
+
+		Instruction get(int n) {
+			return instructions[n];
+		}
+
+		int indexOf(String value, int from) {
+			int best = Integer.MAX_VALUE;
+
+			int[] l = literals.get(value);
+			if (l != null)
+				best = first(l, from, best);
+
+			Node node = root;
+			for (int c = 0; node != null; c++) {
+				best = first(node.prefixes, from, best);
+				if (c == value.length()) {
+					best = first(node.packages, from, best);
+					break;
+				}
+				char ch = value.charAt(c);
+				if (ch == '.')
+					best = first(node.packages, from, best);
+				node = node.get(ch);
+			}
+
+			for (int n : patterns) {
+				if (n >= best)
+					break;
+				if (n >= from && instructions[n].matches(value))
+					return n;
+			}
+			return best == Integer.MAX_VALUE ? -1 : best;
+		}
+
+		/*
+		 * Answer the smallest position that is at or after from and before
+		 * best
+		 */
+		private static int first(int[] positions, int from, int best) {
+			for (int n : positions) {
+				if (n >= best)
+					break;
+				if (n >= from)
+					return n;
+			}
+			return best;
+		}
+
+		private static int[] add(int[] positions, int n) {
+			int[] result = Arrays.copyOf(positions, positions.length + 1);
+			result[positions.length] = n;
+			return result;
+		}
+
+		/*
+		 * Answer the text the pattern matches if it has no other special
+		 * characters than the escaped '.' and '$' from the instruction.
+		 */
+		private static String unescape(String pattern) {
+			StringBuilder sb = new StringBuilder();
+			for (int c = 0; c < pattern.length(); c++) {
+				char ch = pattern.charAt(c);
+				switch (ch) {
+					case '\\' :
+						if (++c < pattern.length() && (pattern.charAt(c) == '.' || pattern.charAt(c) == '$')) {
+							sb.append(pattern.charAt(c));
+							break;
+						}
+						return null;
+					case '^' :
+					case '$' :
+					case '.' :
+					case '|' :
+					case '?' :
+					case '*' :
+					case '+' :
+					case '(' :
+					case ')' :
+					case '[' :
+					case ']' :
+					case '{' :
+					case '}' :
+						return null;
+					default :
+						sb.append(ch);
+						break;
+				}
+			}
+			return sb.toString();
+		}
+
+		static class Node {
+			private final static Node[]	LEAF		= new Node[0];
+			char[]						chars		= new char[0];
+			Node[]						children	= LEAF;
+			// instructions that match any value with this prefix
+			int[]						prefixes	= NONE;
+			// instructions that match this package and its sub packages
+			int[]						packages	= NONE;
+
+			Node get(char ch) {
+				for (int n = 0; n < chars.length; n++)
+					if (chars[n] == ch)
+						return children[n];
+				return null;
+			}
+
+			Node put(String prefix) {
+				Node node = this;
+				for (int c = 0; c < prefix.length(); c++) {
+					char ch = prefix.charAt(c);
+					Node next = node.get(ch);
+					if (next == null) {
+						next = new Node();
+						int n = node.chars.length;
+						node.chars = Arrays.copyOf(node.chars, n + 1);
+						node.children = Arrays.copyOf(node.children, n + 1);
+						node.chars[n] = ch;
+						node.children[n] = next;
+					}
+					node = next;
+				}
+				return node;
 			}
 		}
-		return null;
 	}
 
 	public Instruction finder(String value) {
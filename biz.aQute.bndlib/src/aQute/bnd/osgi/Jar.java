@@ -2,6 +2,7 @@ package aQute.bnd.osgi;
 
 import static aQute.lib.io.IO.getFile;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.File;
@@ -15,28 +16,30 @@ import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import aQute.bnd.version.Version;
 import aQute.lib.base64.Base64;
 import aQute.lib.io.IO;
 import aQute.lib.io.IOConstants;
+import aQute.lib.zip.ZipArchive;
 import aQute.lib.zip.ZipUtil;
+import aQute.lib.zip.ZipWriter;
 import aQute.service.reporter.Reporter;
 
 public class Jar implements Closeable {
@@ -56,13 +59,18 @@ public class Jar implements Closeable {
 	String									manifestName	= DEFAULT_MANIFEST_NAME;
 	String									name;
 	File									source;
-	ZipFile									zipFile;
+	ZipArchive								zipFile;
+	final ConcurrentMap<String,ZipResource>	found			= new ConcurrentHashMap<String,ZipResource>();
+	volatile boolean						loaded			= true;
+	boolean									loading;
+	int										changes;	// counts added resources after loading
 	long									lastModified;
 	String									lastModifiedReason;
 	Reporter								reporter;
 	boolean									doNotTouchManifest;
 	boolean									nomanifest;
 	Compression								compression		= Compression.DEFLATE;
+	int										compressionParallelism = 1;
 	boolean									closed;
 	String[]								algorithms;
 
@@ -76,7 +84,12 @@ public class Jar implements Closeable {
 		if (dirOrFile.isDirectory())
 			FileResource.build(this, dirOrFile, doNotCopy);
 		else if (dirOrFile.isFile()) {
-			zipFile = ZipResource.build(this, dirOrFile);
+			//
+			// The resources are only added when they are needed, until
+			// then a single resource is looked up in the zip file
+			//
+			zipFile = ZipResource.open(dirOrFile);
+			loaded = false;
 		} else {
 			throw new IllegalArgumentException("A Jar can only accept a valid file or directory: " + dirOrFile);
 		}
@@ -137,6 +150,7 @@ public class Jar implements Closeable {
 
 	public boolean putResource(String path, Resource resource, boolean overwrite) {
 		check();
+		load();
 		updateModified(resource.lastModified(), path);
 		while (path.startsWith("/"))
 			path = path.substring(1);
@@ -164,17 +178,61 @@ public class Jar implements Closeable {
 		if (!duplicate || overwrite) {
 			resources.put(path, resource);
 			s.put(path, resource);
+			if (!loading)
+				changes++;
 		}
 		return duplicate;
 	}
 
 	public Resource getResource(String path) {
 		check();
-		if (resources == null)
-			return null;
+		if (!loaded) {
+			//
+			// The same path must answer the same resource, also when the
+			// resources are added later
+			//
+			try {
+				ZipResource resource = found.get(path);
+				if (resource == null) {
+					resource = ZipResource.get(zipFile, path);
+					if (resource != null) {
+						ZipResource previous = found.putIfAbsent(path, resource);
+						if (previous != null)
+							resource = previous;
+					}
+				}
+				return resource;
+			}
+			catch (IOException e) {
+				throw new IllegalArgumentException(e.getMessage(), e);
+			}
+		}
 		return resources.get(path);
 	}
 
+	/**
+	 * Add the resources of the zip file, if not done yet.
+	 */
+	private void load() {
+		if (loaded)
+			return;
+		synchronized (this) {
+			if (loaded || loading)
+				return;
+			loading = true;
+			try {
+				ZipResource.build(this, zipFile, null, found);
+			}
+			catch (IOException e) {
+				throw new IllegalArgumentException(e.getMessage(), e);
+			}
+			finally {
+				loaded = true;
+				loading = false;
+			}
+		}
+	}
+
 	private String getDirectory(String path) {
 		check();
 		int n = path.lastIndexOf('/');
@@ -184,13 +242,36 @@ public class Jar implements Closeable {
 		return path.substring(0, n);
 	}
 
+	/*
+	 * The directories that have resources, an unloaded jar reads them from
+	 * the central directory of its zip file instead of loading
+	 */
+	Collection<String> getDirectoryNames() {
+		check();
+		if (loaded)
+			return directories.keySet();
+
+		try {
+			Set<String> names = new HashSet<String>();
+			for (ZipArchive.Entry entry : zipFile.getEntries())
+				if (!entry.isDirectory())
+					names.add(getDirectory(entry.getName()));
+			return names;
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+	}
+
 	public Map<String,Map<String,Resource>> getDirectories() {
 		check();
+		load();
 		return directories;
 	}
 
 	public Map<String,Resource> getResources() {
 		check();
+		load();
 		return resources;
 	}
 
@@ -224,6 +305,8 @@ public class Jar implements Closeable {
 
 	public boolean exists(String path) {
 		check();
+		if (!loaded)
+			return getResource(path) != null;
 		return resources.containsKey(path);
 	}
 
@@ -285,16 +368,9 @@ public class Jar implements Closeable {
 			return;
 		}
 
-		ZipOutputStream jout = nomanifest || doNotTouchManifest ? new ZipOutputStream(out) : new JarOutputStream(out);
-
-		switch (compression) {
-			case STORE :
-				jout.setMethod(ZipOutputStream.DEFLATED);
-				break;
-
-			default :
-				// default is DEFLATED
-		}
+		ZipWriter jout = new ZipWriter(out, !nomanifest && !doNotTouchManifest);
+		if (compressionParallelism > 1)
+			jout.setParallelism(Processor.getExecutor(), compressionParallelism);
 
 		Set<String> done = new HashSet<String>();
 
@@ -370,23 +446,59 @@ public class Jar implements Closeable {
 		// the manifest first, we have a slight problem.
 		// We can also not make multiple passes over the resource
 		// because some resources are not idempotent and/or can
-		// take significant time. So we just copy the jar
-		// to a temporary file, read it in again, calculate
-		// the checksums and save.
+		// take significant time. So we write the resources
+		// to a temporary file while we calculate the checksums,
+		// then write the manifest and append the entries of
+		// the temporary file as is.
 
 		String[] algs = algorithms;
 		algorithms = null;
 		try {
+			stripSignatures();
+			MessageDigest[] digests = getMessageDigests(algorithms);
+			Manifest m = getManifest() == null ? new Manifest() : new Manifest(getManifest());
+
 			File f = File.createTempFile(padString(getName(), 3, '_'), ".jar");
-			write(f);
-			Jar tmp = new Jar(f);
 			try {
-				tmp.calcChecksums(algorithms);
-				tmp.write(out);
+				ZipWriter entries = new ZipWriter(new FileOutputStream(f));
+				try {
+					if (compressionParallelism > 1)
+						entries.setParallelism(Processor.getExecutor(), compressionParallelism);
+
+					Set<String> directories = new HashSet<String>();
+					for (Map.Entry<String,Resource> entry : getResources().entrySet()) {
+						String path = entry.getKey();
+						if (path.equals(manifestName))
+							continue;
+
+						if (writeResource(entries, directories, path, entry.getValue(), digests)) {
+							Attributes attributes = m.getAttributes(path);
+							if (attributes == null) {
+								attributes = new Attributes();
+								m.getEntries().put(path, attributes);
+							}
+							for (MessageDigest d : digests)
+								attributes.putValue(d.getAlgorithm() + "-Digest", Base64.encodeBase64(d.digest()));
+						}
+					}
+
+					ZipWriter jout = new ZipWriter(out, true);
+					doManifest(m, jout);
+					InputStream in = new FileInputStream(f);
+					try {
+						jout.append(entries, in);
+					}
+					finally {
+						in.close();
+					}
+					jout.finish();
+				}
+				finally {
+					entries.close();
+				}
 			}
 			finally {
 				f.delete();
-				tmp.close();
 			}
 		}
 		finally {
@@ -407,17 +519,22 @@ public class Jar implements Closeable {
 		return new String(cs);
 	}
 
-	private void doManifest(Set<String> done, ZipOutputStream jout) throws Exception {
+	private void doManifest(Set<String> done, ZipWriter jout) throws Exception {
 		check();
 		if (nomanifest)
 			return;
 
+		stripSignatures();
+		doManifest(getManifest(), jout);
+		done.add(manifestName);
+	}
+
+	private void doManifest(Manifest manifest, ZipWriter jout) throws Exception {
 		JarEntry ze = new JarEntry(manifestName);
 		ZipUtil.setModifiedTime(ze, lastModified);
 		jout.putNextEntry(ze);
-		writeManifest(jout);
+		writeManifest(manifest, jout);
 		jout.closeEntry();
-		done.add(ze.getName());
 	}
 
 	/**
@@ -598,14 +715,23 @@ public class Jar implements Closeable {
 			return s;
 	}
 
-	private void writeResource(ZipOutputStream jout, Set<String> directories, String path, Resource resource)
+	private void writeResource(ZipWriter jout, Set<String> directories, String path, Resource resource)
 			throws Exception {
+		writeResource(jout, directories, path, resource, null);
+	}
+
+	/*
+	 * Write a resource and, if digests are given, calculate the digests of
+	 * its content while it is written. Answer false if no entry was written.
+	 */
+	private boolean writeResource(ZipWriter jout, Set<String> directories, String path, Resource resource,
+			MessageDigest[] digests) throws Exception {
 		if (resource == null)
-			return;
+			return false;
 		try {
 			createDirectories(directories, jout, path);
 			if (path.endsWith(Constants.EMPTY_HEADER))
-				return;
+				return false;
 			ZipEntry ze = new ZipEntry(path);
 			ze.setMethod(ZipEntry.DEFLATED);
 			long lastModified = resource.lastModified();
@@ -615,16 +741,46 @@ public class Jar implements Closeable {
 			ZipUtil.setModifiedTime(ze, lastModified);
 			if (resource.getExtra() != null)
 				ze.setExtra(resource.getExtra().getBytes("UTF-8"));
+			if (digests != null) {
+				for (MessageDigest d : digests)
+					d.reset();
+			}
+			if (resource instanceof ZipResource && ((ZipResource) resource).writeRaw(jout, ze)) {
+				// the data is copied compressed, we only inflate it for the
+				// digests
+				if (digests != null)
+					digest(resource, digests);
+				return true;
+			}
+			if (compressionParallelism > 1) {
+				// resources are read here, only the deflating is done in
+				// parallel
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				resource.write(bout);
+				byte[] data = bout.toByteArray();
+				if (digests != null) {
+					for (MessageDigest d : digests)
+						d.update(data);
+				}
+				jout.putEntry(ze, data);
+				return true;
+			}
 			jout.putNextEntry(ze);
-			resource.write(jout);
+			OutputStream out = jout;
+			if (digests != null) {
+				for (MessageDigest d : digests)
+					out = new DigestOutputStream(out, d);
+			}
+			resource.write(out);
 			jout.closeEntry();
+			return true;
 		}
 		catch (Exception e) {
 			throw new Exception("Problem writing resource " + path, e);
 		}
 	}
 
-	void createDirectories(Set<String> directories, ZipOutputStream zip, String name) throws IOException {
+	void createDirectories(Set<String> directories, ZipWriter zip, String name) throws IOException {
 		int index = name.lastIndexOf('/');
 		if (index > 0) {
 			String path = name.substring(0, index);
@@ -685,6 +841,7 @@ public class Jar implements Closeable {
 	}
 
 	public long lastModified() {
+		load();
 		return lastModified;
 	}
 
@@ -701,11 +858,13 @@ public class Jar implements Closeable {
 
 	public boolean hasDirectory(String path) {
 		check();
+		load();
 		return directories.get(path) != null;
 	}
 
 	public List<String> getPackages() {
 		check();
+		load();
 		List<String> list = new ArrayList<String>(directories.size());
 
 		for (Map.Entry<String,Map<String,Resource>> i : directories.entrySet()) {
@@ -739,6 +898,7 @@ public class Jar implements Closeable {
 
 	public Resource remove(String path) {
 		check();
+		load();
 		Resource resource = resources.remove(path);
 		String dir = getDirectory(path);
 		Map<String,Resource> mdir = directories.get(dir);
@@ -762,25 +922,15 @@ public class Jar implements Closeable {
 
 	public void calcChecksums(String algorithms[]) throws Exception {
 		check();
-		if (algorithms == null)
-			algorithms = new String[] {
-					"SHA", "MD5"
-			};
-
 		Manifest m = getManifest();
 		if (m == null) {
 			m = new Manifest();
 			setManifest(m);
 		}
 
-		MessageDigest digests[] = new MessageDigest[algorithms.length];
-		int n = 0;
-		for (String algorithm : algorithms)
-			digests[n++] = MessageDigest.getInstance(algorithm);
+		MessageDigest digests[] = getMessageDigests(algorithms);
 
-		byte buffer[] = new byte[BUFFER_SIZE];
-
-		for (Map.Entry<String,Resource> entry : resources.entrySet()) {
+		for (Map.Entry<String,Resource> entry : getResources().entrySet()) {
 
 			// Skip the manifest
 			if (entry.getKey().equals(manifestName))
@@ -792,25 +942,43 @@ public class Jar implements Closeable {
 				attributes = new Attributes();
 				getManifest().getEntries().put(entry.getKey(), attributes);
 			}
-			InputStream in = r.openInputStream();
-			try {
-				for (MessageDigest d : digests)
-					d.reset();
-				int size = in.read(buffer);
-				while (size > 0) {
-					for (MessageDigest d : digests)
-						d.update(buffer, 0, size);
-					size = in.read(buffer);
-				}
-			}
-			finally {
-				in.close();
-			}
+			for (MessageDigest d : digests)
+				d.reset();
+			digest(r, digests);
 			for (MessageDigest d : digests)
 				attributes.putValue(d.getAlgorithm() + "-Digest", Base64.encodeBase64(d.digest()));
 		}
 	}
 
+	private static MessageDigest[] getMessageDigests(String algorithms[]) throws Exception {
+		if (algorithms == null)
+			algorithms = new String[] {
+					"SHA", "MD5"
+			};
+
+		MessageDigest digests[] = new MessageDigest[algorithms.length];
+		int n = 0;
+		for (String algorithm : algorithms)
+			digests[n++] = MessageDigest.getInstance(algorithm);
+		return digests;
+	}
+
+	private static void digest(Resource r, MessageDigest[] digests) throws Exception {
+		byte buffer[] = new byte[BUFFER_SIZE];
+		InputStream in = r.openInputStream();
+		try {
+			int size = in.read(buffer);
+			while (size > 0) {
+				for (MessageDigest d : digests)
+					d.update(buffer, 0, size);
+				size = in.read(buffer);
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
 	final static Pattern BSN = Pattern.compile("\\s*([-\\w\\d\\._]+)\\s*;?.*");
 
 	/**
@@ -895,6 +1063,7 @@ public class Jar implements Closeable {
 	 */
 
 	public boolean isManifestFirst() {
+		load();
 		return manifestFirst;
 	}
 
@@ -911,6 +1080,14 @@ public class Jar implements Closeable {
 		return this.compression;
 	}
 
+	/**
+	 * Deflate the resources on the given number of threads when this jar is
+	 * written. The written jar is the same for any number of threads.
+	 */
+	public void setCompressionParallelism(int parallelism) {
+		this.compressionParallelism = Math.max(parallelism, 1);
+	}
+
 	void check() {
 		if (closed)
 			throw new RuntimeException("Already closed " + name);
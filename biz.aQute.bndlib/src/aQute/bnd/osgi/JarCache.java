@@ -0,0 +1,302 @@
+package aQute.bnd.osgi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Manifest;
+
+import aQute.lib.zip.ZipHandles;
+
+/**
+ * Shares the jars on the class paths of the builders in a workspace. A jar file
+ * is opened and indexed once for all builders as long as its length and last
+ * modified time do not change. The shared {@link Jar} is read only, a builder
+ * that closes it does not close it for the others.
+ * <p>
+ * A builder holds a reference to the jars it got until it is closed. Jars that
+ * are no longer referenced are kept for the next builder, the least recently
+ * used are closed when there are more than a maximum. A jar that is
+ * referenced keeps its file open, a jar that is no longer referenced closes its
+ * file but keeps its index. It opens its file again when it is referenced, if
+ * the file has changed in the mean time a new jar is made.
+ */
+public class JarCache implements Closeable {
+	public final static int			DEFAULT_HANDLES	= 64;
+	public final static int			DEFAULT_IDLE	= 256;
+
+	final ZipHandles				handles;
+	final int						maxIdle;
+	final LinkedHashMap<File,Entry>	entries			= new LinkedHashMap<File,Entry>(16, 0.75f, true);
+	boolean							closed;
+
+	static class Entry {
+		final SharedJar	jar;
+		final long		length;
+		final long		lastModified;
+		int				references;
+		boolean			stale;
+
+		Entry(SharedJar jar, long length, long lastModified) {
+			this.jar = jar;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/*
+	 * A jar that cannot be changed and can only be closed by the cache
+	 */
+	static class SharedJar extends Jar {
+		SharedJar(File file) throws IOException {
+			super(file);
+		}
+
+		@Override
+		public boolean putResource(String path, Resource resource, boolean overwrite) {
+			// resources are added while the zip file is loaded
+			if (loading && Thread.holdsLock(this))
+				return super.putResource(path, resource, overwrite);
+			throw new UnsupportedOperationException("Shared jar is read only " + getName());
+		}
+
+		@Override
+		public Resource remove(String path) {
+			throw new UnsupportedOperationException("Shared jar is read only " + getName());
+		}
+
+		@Override
+		public void setManifest(Manifest manifest) {
+			throw new UnsupportedOperationException("Shared jar is read only " + getName());
+		}
+
+		@Override
+		public void setManifestName(String manifestName) {
+			throw new UnsupportedOperationException("Shared jar is read only " + getName());
+		}
+
+		@Override
+		public void setName(String name) {
+			throw new UnsupportedOperationException("Shared jar is read only " + getName());
+		}
+
+		@Override
+		public void close() {
+			// closed by the cache
+		}
+
+		void dispose() {
+			super.close();
+		}
+	}
+
+	/*
+	 * The reference of a processor to a jar, closing it more than once is
+	 * harmless
+	 */
+	class Reference implements Closeable {
+		final Entry	entry;
+		boolean		closed;
+
+		Reference(Entry entry) {
+			this.entry = entry;
+		}
+
+		public void close() {
+			boolean idle;
+			synchronized (JarCache.this) {
+				if (closed)
+					return;
+				closed = true;
+				release(entry);
+				idle = entry.references == 0;
+			}
+			unpin(entry.jar);
+
+			// a jar that is not used does not keep its file open, on some
+			// platforms the file cannot be replaced then
+			if (idle && entry.jar.zipFile != null)
+				try {
+					entry.jar.zipFile.evict();
+				}
+				catch (IOException e) {
+					// opened again when used
+				}
+		}
+	}
+
+	public JarCache() {
+		this(DEFAULT_HANDLES, DEFAULT_IDLE);
+	}
+
+	public JarCache(int maxHandles, int maxIdle) {
+		this.handles = new ZipHandles(maxHandles);
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * Answer the shared jar for a jar file. The reference to the jar is
+	 * released when the owner is closed, the owner must not use the jar after
+	 * that.
+	 */
+	public Jar get(File file, Processor owner) throws IOException {
+		file = file.getAbsoluteFile();
+		for (int retry = 0;; retry++) {
+			long length = file.length();
+			long lastModified = file.lastModified();
+			Reference reference = reference(file, length, lastModified, null);
+
+			if (reference == null) {
+				// the jar is opened outside the lock, if another thread was
+				// faster its jar is used
+				SharedJar jar = new SharedJar(file);
+				if (jar.zipFile != null)
+					jar.zipFile.setHandles(handles);
+				reference = reference(file, length, lastModified, jar);
+			}
+
+			try {
+				if (reference.entry.jar.zipFile != null)
+					reference.entry.jar.zipFile.pin();
+			}
+			catch (IOException e) {
+				// the file changed since the jar was opened
+				synchronized (this) {
+					if (entries.get(file) == reference.entry) {
+						entries.remove(file);
+						reference.entry.stale = true;
+					}
+					reference.closed = true;
+					release(reference.entry);
+				}
+				if (retry > 0)
+					throw e;
+				continue;
+			}
+			owner.addClose(reference);
+			return reference.entry.jar;
+		}
+	}
+
+	/*
+	 * Answer a reference to the entry for the file if it has not changed.
+	 * Otherwise the given jar becomes the entry, or null is answered when no
+	 * jar is given.
+	 */
+	private Reference reference(File file, long length, long lastModified, SharedJar jar) {
+		List<Entry> disposed = new ArrayList<Entry>();
+		Reference reference = null;
+		SharedJar unused = null;
+		synchronized (this) {
+			if (closed) {
+				if (jar != null)
+					jar.dispose();
+				throw new IllegalStateException("Jar cache is closed");
+			}
+
+			Entry entry = entries.get(file);
+			if (entry != null && (entry.length != length || entry.lastModified != lastModified)) {
+				entries.remove(file);
+				entry.stale = true;
+				if (entry.references == 0)
+					disposed.add(entry);
+				entry = null;
+			}
+
+			if (entry != null)
+				unused = jar;
+			else if (jar != null) {
+				entry = new Entry(jar, length, lastModified);
+				entries.put(file, entry);
+			}
+
+			if (entry != null) {
+				entry.references++;
+				reference = new Reference(entry);
+			}
+		}
+		dispose(disposed);
+		if (unused != null)
+			unused.dispose();
+		return reference;
+	}
+
+	/*
+	 * Called with the lock held
+	 */
+	private void release(Entry entry) {
+		entry.references--;
+		List<Entry> disposed = new ArrayList<Entry>();
+		if (entry.references == 0 && entry.stale)
+			disposed.add(entry);
+		trim(disposed);
+		dispose(disposed);
+	}
+
+	private void unpin(Jar jar) {
+		if (jar.zipFile != null)
+			jar.zipFile.unpin();
+	}
+
+	/*
+	 * Called with the lock held, remove the least recently used jars that are
+	 * not referenced when there are too many
+	 */
+	private void trim(List<Entry> disposed) {
+		int idle = 0;
+		for (Entry entry : entries.values())
+			if (entry.references == 0)
+				idle++;
+
+		for (Iterator<Entry> i = entries.values().iterator(); idle > maxIdle && i.hasNext();) {
+			Entry entry = i.next();
+			if (entry.references == 0) {
+				i.remove();
+				disposed.add(entry);
+				idle--;
+			}
+		}
+	}
+
+	private void dispose(List<Entry> disposed) {
+		for (Entry entry : disposed)
+			entry.jar.dispose();
+	}
+
+	/**
+	 * Answer the number of jars in the cache.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Answer the number of jars that have their file open.
+	 */
+	public int getOpenHandles() {
+		return handles.size();
+	}
+
+	/**
+	 * Close the jars that are not referenced, the other jars are closed when
+	 * they are released.
+	 */
+	public void close() {
+		List<Entry> disposed = new ArrayList<Entry>();
+		synchronized (this) {
+			closed = true;
+			for (Map.Entry<File,Entry> e : entries.entrySet()) {
+				if (e.getValue().references == 0)
+					disposed.add(e.getValue());
+				else
+					e.getValue().stale = true;
+			}
+			entries.clear();
+		}
+		dispose(disposed);
+	}
+}
@@ -22,13 +22,18 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Formatter;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -72,6 +77,61 @@ public class Macro {
 	StringWriter			stdout		= new StringWriter();
 	StringWriter			stderr		= new StringWriter();
 
+	/*
+	 * The built in macros that only depend on their arguments and the
+	 * properties. All other macros depend on things like the time, the file
+	 * system or the environment.
+	 */
+	final static Set<String>	PURE		= new HashSet<String>(Arrays.asList("uniq", "pathseparator", "separator",
+			"filter", "select", "filterout", "reject", "sort", "nsort", "join", "sjoin", "if", "long2date", "literal",
+			"def", "replace", "toclassname", "toclasspath", "versionmask", "version", "range", "path", "size",
+			"unescape", "startswith", "endswith", "extension", "stem", "substring", "length", "get", "sublist",
+			"first", "last", "max", "min", "nmax", "nmin", "sum", "average", "reverse", "indexof", "lastindexof",
+			"find", "findlast", "split", "toupper", "tolower", "compare", "ncompare", "matches", "subst", "trim",
+			"format", "isempty", "isnumber", "is", "map", "foreach", "apply", "bytes"));
+
+	/*
+	 * Counts, per thread, the expansions that depend on more than the
+	 * properties or that reported an error or warning. An expansion during
+	 * which this count did not change always gives the same outcome for the
+	 * same properties, see Processor.getProperty.
+	 */
+	final static ThreadLocal<int[]>	uncacheable	= new ThreadLocal<int[]>() {
+													@Override
+													protected int[] initialValue() {
+														return new int[1];
+													}
+												};
+
+	/*
+	 * The macro commands of a class, the public methods whose name starts with
+	 * an underscore and that take a String[]. Looked up once per class.
+	 */
+	static class Commands extends ClassValue<Map<String,Method>> {
+		@Override
+		protected Map<String,Method> computeValue(Class< ? > type) {
+			Map<String,Method> commands = new HashMap<String,Method>();
+			for (Method m : type.getMethods()) {
+				if (!m.getName().startsWith("_") || m.isBridge())
+					continue;
+				Class< ? >[] parameters = m.getParameterTypes();
+				if (parameters.length == 1 && parameters[0] == String[].class)
+					commands.put(m.getName(), m);
+			}
+			return commands;
+		}
+	}
+
+	final static Commands COMMANDS = new Commands();
+
+	static int uncacheables() {
+		return uncacheable.get()[0];
+	}
+
+	static void uncacheable() {
+		uncacheable.get()[0]++;
+	}
+
 	public Macro(Processor domain, Object... targets) {
 		this.domain = domain;
 		this.targets = targets;
@@ -87,54 +147,121 @@ public class Macro {
 	}
 
 	String process(String line, Link link) {
+		Template template = Template.parse(line);
+		if (template == null)
+			return line;
+
 		StringBuilder sb = new StringBuilder();
-		process(line, 0, '\u0000', '\u0000', sb, link);
+		evaluate(template, sb, link);
 		return sb.toString();
 	}
 
-	int process(CharSequence org, int index, char begin, char end, StringBuilder result, Link link) {
-		StringBuilder line = new StringBuilder(org);
-		int nesting = 1;
+	/*
+	 * Expand a parsed line. A macro is expanded with the expansion of its
+	 * parts as key, a macro without terminator is just its parts.
+	 */
+	private void evaluate(Template template, StringBuilder result, Link link) {
+		StringBuilder variable = template.terminated ? new StringBuilder() : result;
+		for (Object part : template.parts) {
+			if (part instanceof String)
+				variable.append((String) part);
+			else if (part == Template.BASE) {
+				uncacheable();
+				variable.append(domain.getBase().getAbsolutePath());
+				variable.append('/');
+			} else
+				evaluate((Template) part, variable, link);
+		}
+		if (template.terminated)
+			result.append(replace(variable.toString(), link));
+	}
+
+	/*
+	 * A line parsed into literal text, macros and the ./ base directory. The
+	 * structure of a line does not depend on the properties so a line is only
+	 * parsed once.
+	 */
+	static class Template {
+		final static Object							BASE		= new Object();
+		final static int							MAX			= 10000;
+		final static ConcurrentMap<String,Template>	templates	= new ConcurrentHashMap<String,Template>();
+
+		final List<Object>							parts		= new ArrayList<Object>(2);
+		boolean										terminated;
+
+		/*
+		 * Answer the parsed line, or null if the line is only literal text
+		 */
+		static Template parse(String line) {
+			if (line.indexOf('$') < 0 && line.indexOf("./") < 0 && line.indexOf('\u0000') < 0)
+				return null;
 
-		StringBuilder variable = new StringBuilder();
+			Template template = templates.get(line);
+			if (template == null) {
+				template = new Template();
+				template.parse(line, 0, '\u0000', '\u0000');
+				if (templates.size() >= MAX)
+					templates.clear();
+				templates.put(line, template);
+			}
+			return template;
+		}
 
-		outer: while (index < line.length()) {
-			char c1 = line.charAt(index++);
-			if (c1 == end) {
-				if (--nesting == 0) {
-					result.append(replace(variable.toString(), link));
-					return index;
-				}
-			} else if (c1 == begin)
-				nesting++;
-			else if (c1 == '\\' && index < line.length() - 1 && line.charAt(index) == '$') {
-				// remove the escape backslash and interpret the dollar
-				// as a
-				// literal
-				index++;
-				variable.append('$');
-				continue outer;
-			} else if (c1 == '$' && index < line.length() - 2) {
-				char c2 = line.charAt(index);
-				char terminator = getTerminator(c2);
-				if (terminator != 0) {
-					index = process(line, index + 1, c2, terminator, variable, link);
-					continue outer;
-				}
-			} else if (c1 == '.' && index < line.length() && line.charAt(index) == '/') {
-				// Found the sequence ./
-				if (index == 1 || Character.isWhitespace(line.charAt(index - 2))) {
-					// make sure it is preceded by whitespace or starts at begin
+		private int parse(String line, int index, char begin, char end) {
+			int nesting = 1;
+
+			StringBuilder variable = new StringBuilder();
+
+			outer: while (index < line.length()) {
+				char c1 = line.charAt(index++);
+				if (c1 == end) {
+					if (--nesting == 0) {
+						add(variable);
+						terminated = true;
+						return index;
+					}
+				} else if (c1 == begin)
+					nesting++;
+				else if (c1 == '\\' && index < line.length() - 1 && line.charAt(index) == '$') {
+					// remove the escape backslash and interpret the dollar
+					// as a
+					// literal
 					index++;
-					variable.append(domain.getBase().getAbsolutePath());
-					variable.append('/');
+					variable.append('$');
 					continue outer;
+				} else if (c1 == '$' && index < line.length() - 2) {
+					char c2 = line.charAt(index);
+					char terminator = getTerminator(c2);
+					if (terminator != 0) {
+						add(variable);
+						Template macro = new Template();
+						index = macro.parse(line, index + 1, c2, terminator);
+						parts.add(macro);
+						continue outer;
+					}
+				} else if (c1 == '.' && index < line.length() && line.charAt(index) == '/') {
+					// Found the sequence ./
+					if (index == 1 || Character.isWhitespace(line.charAt(index - 2))) {
+						// make sure it is preceded by whitespace or starts at
+						// begin
+						index++;
+						add(variable);
+						parts.add(BASE);
+						continue outer;
+					}
 				}
+				variable.append(c1);
+			}
+			add(variable);
+			return index;
+		}
+
+		private void add(StringBuilder variable) {
+			if (variable.length() > 0) {
+				parts.add(variable.toString());
+				variable.setLength(0);
 			}
-			variable.append(c1);
 		}
-		result.append(variable);
-		return index;
 	}
 
 	public static char getTerminator(char c) {
@@ -165,20 +292,17 @@ public class Macro {
 				Processor source = domain;
 				String value = null;
 
-				if (key.indexOf(';') < 0) {
+				if (key.indexOf(';') < 0 && Instruction.isWildcard(key)) {
 					Instruction ins = new Instruction(key);
 					if (!ins.isLiteral()) {
-						SortedList<String> sortedList = SortedList.fromIterator(domain.iterator());
 						StringBuilder sb = new StringBuilder();
 						String del = "";
-						for (String k : sortedList) {
-							if (ins.matches(k)) {
-								String v = replace(k, new Link(source, link, key));
-								if (v != null) {
-									sb.append(del);
-									del = ",";
-									sb.append(v);
-								}
+						for (String k : domain.getMatchingKeys(ins)) {
+							String v = replace(k, new Link(source, link, key));
+							if (v != null) {
+								sb.append(del);
+								del = ",";
+								sb.append(v);
 							}
 						}
 						return sb.toString();
@@ -200,6 +324,8 @@ public class Macro {
 				}
 
 				if (key != null && key.trim().length() > 0) {
+					// also when it is missing, it can be set later
+					uncacheable();
 					value = System.getProperty(key);
 					if (value != null)
 						return value;
@@ -214,6 +340,7 @@ public class Macro {
 
 						String template = domain.getProperties().getProperty(parts[0]);
 						if (template != null) {
+							uncacheable();
 							domain = new Processor(domain);
 							for (int i = 0; i < 16; i++) {
 								domain.setProperty("" + i, i < parts.length ? parts[i] : "null");
@@ -256,6 +383,7 @@ public class Macro {
 		String value = getMacro(key, link);
 		if (value != null)
 			return value;
+		uncacheable();
 		if (!flattening && !key.startsWith("@"))
 			domain.warning("No translation found for macro: %s", key);
 		return "${" + key + "}";
@@ -309,19 +437,18 @@ public class Macro {
 			; // System.err.println("Huh? Target should never be null " +
 		// domain);
 		else {
-			String cname = "_" + method.replaceAll("-", "_");
+			String cname = "_" + method.replace('-', '_');
+			Method m = COMMANDS.get(target.getClass()).get(cname);
+			if (m == null)
+				return null;
 			try {
-				Method m = target.getClass().getMethod(cname, new Class[] {
-						String[].class
-				});
+				if (target != this || !PURE.contains(method))
+					uncacheable();
 				Object result = m.invoke(target, new Object[] {
 						args
 				});
 				return result == null ? NULLVALUE : result.toString();
 			}
-			catch (NoSuchMethodException e) {
-				return null;
-			}
 			catch (InvocationTargetException e) {
 				if (e.getCause() instanceof IllegalArgumentException) {
 					domain.error("%s, for cmd: %s, arguments; %s", e.getCause().getMessage(), method,
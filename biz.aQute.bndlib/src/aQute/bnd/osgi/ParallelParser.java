@@ -0,0 +1,111 @@
+package aQute.bnd.osgi;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Parses the classes of a class space in parallel on a fork join pool. Each
+ * class is parsed on its own, the Analyzer picks up the parsed classes in the
+ * order of the resources. Anything that is shared, like the contained and
+ * referred packages, is therefore still calculated on the analyzing thread and
+ * the outcome of the analysis does not depend on the order in which the
+ * classes were parsed.
+ */
+class ParallelParser {
+	final static int			THRESHOLD	= 8;
+
+	final Analyzer				analyzer;
+	final ClazzCache			cache;
+	final ForkJoinPool			pool;
+
+	static class Parsed {
+		final String	path;
+		final Resource	resource;
+		Clazz			clazz;
+		Throwable		exception;
+
+		Parsed(String path, Resource resource) {
+			this.path = path;
+			this.resource = resource;
+		}
+	}
+
+	ParallelParser(Analyzer analyzer, int parallelism, ClazzCache cache) {
+		this.analyzer = analyzer;
+		this.cache = cache;
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Parse all classes in the jar that start with the prefix.
+	 */
+	Map<String,Parsed> parse(Jar jar, String prefix) {
+		List<Parsed> work = new ArrayList<Parsed>();
+		for (Map.Entry<String,Resource> e : jar.getResources().entrySet()) {
+			String path = e.getKey();
+			if (path.startsWith(prefix) && path.endsWith(".class"))
+				work.add(new Parsed(path, e.getValue()));
+		}
+
+		pool.invoke(new Task(work, 0, work.size()));
+
+		Map<String,Parsed> parsed = new HashMap<String,Parsed>();
+		for (Parsed p : work)
+			parsed.put(p.path, p);
+		return parsed;
+	}
+
+	/**
+	 * Answer the parsed class, rethrowing the exception of the parse if it
+	 * failed.
+	 */
+	Clazz take(Parsed parsed) throws Exception {
+		if (parsed.exception instanceof Error)
+			throw (Error) parsed.exception;
+		if (parsed.exception != null)
+			throw (Exception) parsed.exception;
+		return parsed.clazz;
+	}
+
+	void parse(Parsed parsed) {
+		try {
+			Clazz clazz = new Clazz(analyzer, parsed.path, parsed.resource);
+			if (cache != null)
+				cache.parse(clazz);
+			else
+				clazz.parseClassFile();
+			parsed.clazz = clazz;
+		}
+		catch (Throwable e) {
+			parsed.exception = e;
+		}
+	}
+
+	void close() {
+		pool.shutdown();
+	}
+
+	@SuppressWarnings("serial")
+	class Task extends RecursiveAction {
+		final List<Parsed>	work;
+		final int			from;
+		final int			to;
+
+		Task(List<Parsed> work, int from, int to) {
+			this.work = work;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= THRESHOLD) {
+				for (int i = from; i < to; i++)
+					parse(work.get(i));
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Task(work, from, middle), new Task(work, middle, to));
+		}
+	}
+}
@@ -29,6 +29,8 @@ import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -49,7 +51,6 @@ import aQute.bnd.service.RegistryPlugin;
 import aQute.bnd.service.url.URLConnectionHandler;
 import aQute.bnd.version.Version;
 import aQute.lib.collections.ExtList;
-import aQute.lib.collections.SortedList;
 import aQute.lib.hex.Hex;
 import aQute.lib.io.IO;
 import aQute.lib.io.IOConstants;
@@ -99,6 +100,37 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 	Boolean				strict;
 	boolean				fixupMessages;
 
+	/*
+	 * The expanded properties, valid as long as the properties of this
+	 * processor and its parents have the same stamp
+	 */
+	final ConcurrentMap<String,Expansion> expansions = new ConcurrentHashMap<String,Expansion>();
+
+	/*
+	 * The sorted keys of this processor and its parents
+	 */
+	private volatile SortedKeys sortedKeys;
+
+	static class SortedKeys {
+		final long		stamp;
+		final String[]	keys;
+
+		SortedKeys(long stamp, String[] keys) {
+			this.stamp = stamp;
+			this.keys = keys;
+		}
+	}
+
+	static class Expansion {
+		final long		stamp;
+		final String	value;
+
+		Expansion(long stamp, String value) {
+			this.stamp = stamp;
+			this.value = value;
+		}
+	}
+
 	public static class FileLine {
 		public static final FileLine	DUMMY	= new FileLine(null, 0, 0);
 		public File						file;
@@ -213,6 +245,7 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 	}
 
 	public SetLocation warning(String string, Object... args) {
+		Macro.uncacheable();
 		fixupMessages = false;
 		Processor p = current();
 		String s = formatArrays(string, args);
@@ -223,6 +256,7 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 	}
 
 	public SetLocation error(String string, Object... args) {
+		Macro.uncacheable();
 		fixupMessages = false;
 		Processor p = current();
 		try {
@@ -256,6 +290,7 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 	}
 
 	public SetLocation error(String string, Throwable t, Object... args) {
+		Macro.uncacheable();
 		Processor p = current();
 		try {
 			if (p.exceptions) {
@@ -977,31 +1012,31 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 		} else {
 			addIncluded(file);
 			updateModified(file.lastModified(), file.toString());
-			InputStream in = new FileInputStream(file);
-			try {
-				Properties sub;
-				if (file.getName().toLowerCase().endsWith(".mf")) {
+			Properties sub;
+			if (file.getName().toLowerCase().endsWith(".mf")) {
+				InputStream in = new FileInputStream(file);
+				try {
 					sub = getManifestAsProperties(in);
-				} else
-					sub = loadProperties(in, file.getAbsolutePath());
-
-				doIncludes(file.getParentFile(), sub);
-				// make sure we do not override properties
-				for (Map.Entry< ? , ? > entry : sub.entrySet()) {
-					String key = (String) entry.getKey();
-					String value = (String) entry.getValue();
-
-					if (overwrite || !target.containsKey(key)) {
-						target.setProperty(key, value);
-					} else if (extensionName != null) {
-						String extensionKey = extensionName + "." + key;
-						if (!target.containsKey(extensionKey))
-							target.setProperty(extensionKey, value);
-					}
 				}
-			}
-			finally {
-				IO.close(in);
+				finally {
+					IO.close(in);
+				}
+			} else
+				sub = loadPropertiesFile(file);
+
+			doIncludes(file.getParentFile(), sub);
+			// make sure we do not override properties
+			for (Map.Entry< ? , ? > entry : sub.entrySet()) {
+				String key = (String) entry.getKey();
+				String value = (String) entry.getValue();
+
+				if (overwrite || !target.containsKey(key)) {
+					target.setProperty(key, value);
+				} else if (extensionName != null) {
+					String extensionKey = extensionName + "." + key;
+					if (!target.containsKey(extensionKey))
+						target.setProperty(extensionKey, value);
+				}
 			}
 		}
 	}
@@ -1055,7 +1090,10 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 		propertiesChanged();
 	}
 
-	public void propertiesChanged() {}
+	public void propertiesChanged() {
+		expansions.clear();
+		sortedKeys = null;
+	}
 
 	/**
 	 * Set the properties by file. Setting the properties this way will also set
@@ -1149,21 +1187,18 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 
 		String value = null;
 
-		Instruction ins = new Instruction(key);
-		if (!ins.isLiteral()) {
+		Instruction ins = Instruction.isWildcard(key) ? new Instruction(key) : null;
+		if (ins != null && !ins.isLiteral()) {
 			// Handle a wildcard key, make sure they're sorted
 			// for consistency
-			SortedList<String> sortedList = SortedList.fromIterator(iterator());
 			StringBuilder sb = new StringBuilder();
 			String del = "";
-			for (String k : sortedList) {
-				if (ins.matches(k)) {
-					String v = getProperty(k, null);
-					if (v != null) {
-						sb.append(del);
-						del = separator;
-						sb.append(v);
-					}
+			for (String k : getMatchingKeys(ins)) {
+				String v = getProperty(k, null);
+				if (v != null) {
+					sb.append(del);
+					del = separator;
+					sb.append(v);
 				}
 			}
 			if (sb.length() == 0)
@@ -1172,6 +1207,37 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 			return sb.toString();
 		}
 
+		// Expanding is expensive, reuse the last expansion of the key when
+		// none of the properties has changed since
+		long stamp = filter == null ? getStamp() : -1;
+		if (stamp >= 0) {
+			Expansion expansion = expansions.get(key);
+			if (expansion != null && expansion.stamp == stamp)
+				value = expansion.value;
+			else {
+				int uncacheables = Macro.uncacheables();
+				value = expand(key);
+				if (Macro.uncacheables() == uncacheables && getStamp() == stamp)
+					expansions.put(key, new Expansion(stamp, value));
+			}
+		} else
+			value = expand(key);
+
+		if (value != null)
+			return value;
+		else if (deflt != null)
+			return getReplacer().process(deflt, this);
+		else
+			return null;
+	}
+
+	/*
+	 * Expand the value of a literal key, answer null if there is no such
+	 * property
+	 */
+	private String expand(String key) {
+		String value = null;
+
 		@SuppressWarnings("resource")
 		Processor source = this;
 
@@ -1197,10 +1263,24 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 
 		if (value != null)
 			return getReplacer().process(value, source);
-		else if (deflt != null)
-			return getReplacer().process(deflt, this);
-		else
-			return null;
+		return null;
+	}
+
+	/*
+	 * A stamp that changes when the properties of this processor or its
+	 * parents change, -1 if changes cannot be seen
+	 */
+	private long getStamp() {
+		long stamp = 0;
+		for (Processor p = this; p != null; p = p.getParent()) {
+			if (!(p.properties instanceof UTF8Properties))
+				return -1;
+			long s = ((UTF8Properties) p.properties).stamp();
+			if (s < 0)
+				return -1;
+			stamp = Math.max(stamp, s);
+		}
+		return stamp;
 	}
 
 	/**
@@ -1209,14 +1289,54 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 	 */
 	public Properties loadProperties(File file) throws IOException {
 		updateModified(file.lastModified(), "Properties file: " + file);
-		InputStream in = new FileInputStream(file);
-		try {
-			Properties p = loadProperties(in, file.getAbsolutePath());
-			return p;
+		return loadPropertiesFile(file);
+	}
+
+	/*
+	 * Properties files are parsed once for all processors, until the file
+	 * changes. Each caller gets its own copy since the properties are modified
+	 * while they are processed.
+	 */
+	private final static int						MAX_LOADED	= 1000;
+	private final static ConcurrentMap<File,Loaded>	loaded		= new ConcurrentHashMap<File,Loaded>();
+
+	static class Loaded {
+		final long			lastModified;
+		final long			length;
+		final Properties	properties;
+
+		Loaded(long lastModified, long length, Properties properties) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.properties = properties;
 		}
-		finally {
-			in.close();
+	}
+
+	private Properties loadPropertiesFile(File file) throws IOException {
+		file = file.getAbsoluteFile();
+		long lastModified = file.lastModified();
+		long length = file.length();
+		Loaded l = loaded.get(file);
+		if (l == null || l.lastModified != lastModified || l.length != length) {
+			InputStream in = new FileInputStream(file);
+			try {
+				l = new Loaded(lastModified, length, parseProperties(in, file.getAbsolutePath()));
+			}
+			catch (Exception e) {
+				error("Error during loading properties file: " + getDirectory(file.getAbsolutePath()) + ", error:" + e);
+				return new UTF8Properties();
+			}
+			finally {
+				in.close();
+			}
+			if (loaded.size() >= MAX_LOADED)
+				loaded.clear();
+			loaded.put(file, l);
 		}
+
+		Properties p = new UTF8Properties();
+		p.putAll(l.properties);
+		return p;
 	}
 
 	/**
@@ -1227,23 +1347,38 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 	 * Properties @throws IOException
 	 */
 	Properties loadProperties(InputStream in, String name) throws IOException {
-		int n = name.lastIndexOf('/');
-		if (n > 0)
-			name = name.substring(0, n);
-		if (name.length() == 0)
-			name = ".";
-
 		try {
-			Properties p = new UTF8Properties();
-			p.load(in);
-			return replaceAll(p, "\\$\\{\\.\\}", name);
+			return parseProperties(in, name);
 		}
 		catch (Exception e) {
-			error("Error during loading properties file: " + name + ", error:" + e);
+			error("Error during loading properties file: " + getDirectory(name) + ", error:" + e);
 			return new UTF8Properties();
 		}
 	}
 
+	private static Properties parseProperties(InputStream in, String name) throws IOException {
+		Properties p = new UTF8Properties();
+		p.load(in);
+
+		// Only the values that refer to ${.} need to be replaced
+		String directory = getDirectory(name);
+		for (Map.Entry<Object,Object> entry : p.entrySet()) {
+			String value = (String) entry.getValue();
+			if (value.indexOf("${.}") >= 0)
+				entry.setValue(value.replaceAll("\\$\\{\\.\\}", directory));
+		}
+		return p;
+	}
+
+	private static String getDirectory(String name) {
+		int n = name.lastIndexOf('/');
+		if (n > 0)
+			name = name.substring(0, n);
+		if (name.length() == 0)
+			name = ".";
+		return name;
+	}
+
 	/**
 	 * Replace a string in all the values of the map. This can be used to
 	 * preassign variables that change. I.e. the base directory ${.} for a
@@ -2077,6 +2212,28 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 		return executor;
 	}
 
+	/**
+	 * Answer the number of threads an instruction asks for. Without the
+	 * instruction one thread is used, a value of 0 means a thread per
+	 * processor.
+	 */
+	public int getParallelism(String key) {
+		String value = getProperty(key);
+		if (value == null || value.trim().isEmpty())
+			return 1;
+
+		try {
+			int parallelism = Integer.parseInt(value.trim());
+			if (parallelism == 0)
+				return Runtime.getRuntime().availableProcessors();
+			return Math.max(parallelism, 1);
+		}
+		catch (NumberFormatException e) {
+			error("%s must be a number of threads, is %s", key, value);
+			return 1;
+		}
+	}
+
 	/**
 	 * These plugins are added to the total list of plugins. The separation is
 	 * necessary because the list of plugins is refreshed now and then so we
@@ -2138,6 +2295,42 @@ public class Processor extends Domain implements Reporter, Registry, Constants,
 		};
 	}
 
+	/**
+	 * Answer the sorted keys of this processor and its parents that match the
+	 * instruction. The sorted keys are kept until the properties change, only
+	 * the keys that start with the literal prefix of the instruction are
+	 * matched.
+	 */
+	List<String> getMatchingKeys(Instruction ins) {
+		String[] keys = getSortedKeys();
+		String prefix = ins.getPrefix();
+		int from = 0;
+		if (!prefix.isEmpty()) {
+			from = Arrays.binarySearch(keys, prefix);
+			if (from < 0)
+				from = -from - 1;
+		}
+
+		List<String> result = new ArrayList<String>();
+		for (int i = from; i < keys.length && keys[i].startsWith(prefix); i++) {
+			if (ins.matches(keys[i]))
+				result.add(keys[i]);
+		}
+		return result;
+	}
+
+	private String[] getSortedKeys() {
+		long stamp = getStamp();
+		SortedKeys sorted = sortedKeys;
+		if (sorted == null || sorted.stamp != stamp || stamp < 0) {
+			Set<String> keySet = keySet();
+			String[] keys = keySet.toArray(new String[keySet.size()]);
+			Arrays.sort(keys);
+			sortedKeys = sorted = new SortedKeys(stamp, keys);
+		}
+		return sorted.keys;
+	}
+
 	public Set<String> keySet() {
 		Set<String> set;
 		if (parent == null)
@@ -1,19 +1,19 @@
 package aQute.bnd.osgi;
 
 import java.io.*;
-import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import java.util.zip.*;
 
 import aQute.lib.zip.*;
 
 public class ZipResource implements Resource {
-	ZipFile		zip;
-	ZipEntry	entry;
-	long		lastModified;
-	String		extra;
+	ZipArchive			zip;
+	ZipArchive.Entry	entry;
+	long				lastModified;
+	String				extra;
 
-	ZipResource(ZipFile zip, ZipEntry entry) throws UnsupportedEncodingException {
+	ZipResource(ZipArchive zip, ZipArchive.Entry entry) throws UnsupportedEncodingException {
 		this.zip = zip;
 		this.entry = entry;
 		this.lastModified = -11L;
@@ -23,59 +23,131 @@ public class ZipResource implements Resource {
 	}
 
 	public InputStream openInputStream() throws IOException {
-		return zip.getInputStream(entry);
+		return zip.openInputStream(entry);
+	}
+
+	/**
+	 * Write this resource to the zip writer without inflating and deflating
+	 * its data. The data is copied as is from the zip file, the given entry
+	 * provides the name, time and extra field. Answer false if the data cannot
+	 * be copied, the caller must then write the resource normally. Only
+	 * deflated data is copied, a stored entry is deflated like any other
+	 * resource.
+	 */
+	boolean writeRaw(ZipWriter zout, ZipEntry ze) throws IOException {
+		if (!entry.isCopyable() || entry.getMethod() != ZipEntry.DEFLATED)
+			return false;
+
+		ze.setMethod(entry.getMethod());
+		ze.setCrc(entry.getCrc());
+		ze.setSize(entry.getSize());
+		ze.setCompressedSize(entry.getCompressedSize());
+		InputStream in = zip.openRawInputStream(entry);
+		try {
+			zout.putRawEntry(ze, in);
+		}
+		finally {
+			in.close();
+		}
+		return true;
 	}
 
 	@Override
 	public String toString() {
-		return ":" + zip.getName() + "(" + entry.getName() + "):";
+		return ":" + zip.getFile() + "(" + entry.getName() + "):";
 	}
 
-	public static ZipFile build(Jar jar, File file) throws ZipException, IOException {
+	public static ZipArchive build(Jar jar, File file) throws ZipException, IOException {
 		return build(jar, file, null);
 	}
 
-	public static ZipFile build(Jar jar, File file, Pattern pattern) throws ZipException, IOException {
+	public static ZipArchive build(Jar jar, File file, Pattern pattern) throws ZipException, IOException {
+		ZipArchive zip = open(file);
+		try {
+			build(jar, zip, pattern);
+			return zip;
+		}
+		catch (IOException e) {
+			zip.close();
+			throw e;
+		}
+	}
+
+	static ZipArchive open(File file) throws ZipException, IOException {
+		try {
+			return new ZipArchive(file);
+		}
+		catch (ZipException ze) {
+			throw corrupted(file, ze);
+		}
+		catch (FileNotFoundException e) {
+			throw new IllegalArgumentException("Problem opening JAR: " + file.getAbsolutePath());
+		}
+	}
+
+	static void build(Jar jar, ZipArchive zip, Pattern pattern) throws ZipException, IOException {
+		build(jar, zip, pattern, null);
+	}
 
+	/*
+	 * Add the entries of the zip file to the jar, the resources that were
+	 * already found in the zip file are added instead of new ones
+	 */
+	static void build(Jar jar, ZipArchive zip, Pattern pattern, ConcurrentMap<String,ZipResource> found)
+			throws ZipException, IOException {
 		try {
-			ZipFile zip = new ZipFile(file);
-			nextEntry: for (Enumeration< ? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
-				ZipEntry entry = e.nextElement();
+			nextEntry: for (ZipArchive.Entry entry : zip.getEntries()) {
 				if (pattern != null) {
 					Matcher m = pattern.matcher(entry.getName());
 					if (!m.matches())
 						continue nextEntry;
 				}
 				if (!entry.isDirectory()) {
-
-					jar.putResource(entry.getName(), new ZipResource(zip, entry), true);
+					ZipResource resource = new ZipResource(zip, entry);
+					if (found != null) {
+						ZipResource previous = found.putIfAbsent(entry.getName(), resource);
+						if (previous != null)
+							resource = previous;
+					}
+					jar.putResource(entry.getName(), resource, true);
 				}
 			}
-			return zip;
 		}
 		catch (ZipException ze) {
-			throw new ZipException(
-					"The JAR/ZIP file (" + file.getAbsolutePath() + ") seems corrupted, error: " + ze.getMessage());
+			throw corrupted(zip.getFile(), ze);
 		}
-		catch (FileNotFoundException e) {
-			throw new IllegalArgumentException("Problem opening JAR: " + file.getAbsolutePath());
+	}
+
+	/**
+	 * Find a single resource in the zip file without decoding the other
+	 * entries.
+	 */
+	static ZipResource get(ZipArchive zip, String path) throws ZipException, IOException {
+		try {
+			ZipArchive.Entry entry = zip.getEntry(path);
+			if (entry == null || entry.isDirectory())
+				return null;
+			return new ZipResource(zip, entry);
+		}
+		catch (ZipException ze) {
+			throw corrupted(zip.getFile(), ze);
 		}
 	}
 
+	private static ZipException corrupted(File file, ZipException ze) {
+		return new ZipException(
+				"The JAR/ZIP file (" + file.getAbsolutePath() + ") seems corrupted, error: " + ze.getMessage());
+	}
+
 	public void write(OutputStream out) throws Exception {
 		FileResource.copy(this, out);
 	}
 
 	public long lastModified() {
-		try {
-			if (lastModified == -11L) {
-				lastModified = ZipUtil.getModifiedTime(entry);
-			}
-			return lastModified;
-		}
-		catch (IOException e) {
-			return lastModified = -1;
+		if (lastModified == -11L) {
+			lastModified = ZipUtil.getModifiedTime(entry.getTime());
 		}
+		return lastModified;
 	}
 
 	public String getExtra() {
@@ -2,6 +2,14 @@ package aQute.bnd.service.classparser;
 
 import aQute.bnd.osgi.*;
 
+/**
+ * A plugin that contributes a {@link ClassDataCollector} to the analysis of
+ * the class space. The collector is created after the class space is analyzed
+ * and the {@link aQute.bnd.service.AnalyzerPlugin}s ran, it is then called for
+ * every class in the class space with a complete parse that includes the
+ * references in the byte codes. If the collector implements
+ * {@link java.io.Closeable} it is closed after all classes are parsed.
+ */
 public interface ClassParser {
 
 	ClassDataCollector getClassDataCollector(Analyzer analyzer);
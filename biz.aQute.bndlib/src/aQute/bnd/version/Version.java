@@ -1,6 +1,7 @@
 package aQute.bnd.version;
 
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 public class Version implements Comparable<Version> {
@@ -41,23 +42,103 @@ public class Version implements Comparable<Version> {
 	}
 
 	public Version(String version) {
-		version = version.trim();
-		Matcher m = VERSION.matcher(version);
-		if (!m.matches())
-			throw new IllegalArgumentException("Invalid syntax for version: " + version);
+		this(valid(version.trim()));
+	}
 
-		major = Integer.parseInt(m.group(1));
-		if (m.group(3) != null)
-			minor = Integer.parseInt(m.group(3));
-		else
-			minor = 0;
+	private Version(Version version) {
+		this(version.major, version.minor, version.micro, version.qualifier);
+	}
 
-		if (m.group(5) != null)
-			micro = Integer.parseInt(m.group(5));
-		else
-			micro = 0;
+	private static Version valid(String version) {
+		Version v = parse(version);
+		if (v == null)
+			throw new IllegalArgumentException("Invalid syntax for version: " + version);
+		return v;
+	}
+
+	/*
+	 * Versions are immutable so the parsed versions are shared. The cache is
+	 * cleared when it gets too large.
+	 */
+	private final static int						MAX		= 5000;
+	private final static ConcurrentMap<String,Version>	cache	= new ConcurrentHashMap<String,Version>();
+
+	/**
+	 * Parse a version that matches {@link #VERSION}, answer null if it does
+	 * not match.
+	 */
+	static Version parse(String version) {
+		Version v = cache.get(version);
+		if (v == null) {
+			v = scan(version);
+			if (v != null) {
+				if (cache.size() >= MAX)
+					cache.clear();
+				cache.put(version, v);
+			}
+		}
+		return v;
+	}
+
+	private static Version scan(String s) {
+		int length = s.length();
+		int end = digits(s, 0);
+		if (end == 0 || end > 9)
+			return null;
+
+		int major = number(s, 0, end);
+		int minor = 0;
+		int micro = 0;
+		String qualifier = null;
+
+		if (end < length) {
+			if (s.charAt(end) != '.')
+				return null;
+			int begin = end + 1;
+			end = digits(s, begin);
+			if (end == begin || end - begin > 9)
+				return null;
+			minor = number(s, begin, end);
+
+			if (end < length) {
+				if (s.charAt(end) != '.')
+					return null;
+				begin = end + 1;
+				end = digits(s, begin);
+				if (end == begin || end - begin > 9)
+					return null;
+				micro = number(s, begin, end);
+
+				if (end < length) {
+					if (s.charAt(end) != '.')
+						return null;
+					begin = end + 1;
+					if (begin == length)
+						return null;
+					for (int i = begin; i < length; i++) {
+						char c = s.charAt(i);
+						if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '-'
+								|| c == '_'))
+							return null;
+					}
+					qualifier = s.substring(begin);
+				}
+			}
+		}
+		return new Version(major, minor, micro, qualifier);
+	}
 
-		qualifier = m.group(7);
+	private static int digits(String s, int from) {
+		while (from < s.length() && s.charAt(from) >= '0' && s.charAt(from) <= '9')
+			from++;
+		return from;
+	}
+
+	private static int number(String s, int from, int to) {
+		int n = 0;
+		for (int i = from; i < to; i++)
+			n = n * 10 + s.charAt(i) - '0';
+		return n;
 	}
 
 	public int getMajor() {
@@ -158,8 +239,7 @@ public class Version implements Comparable<Version> {
 			return LOWEST;
 		}
 
-		return new Version(version);
-
+		return valid(version);
 	}
 
 	public Version getWithoutQualifier() {
@@ -167,6 +247,6 @@ public class Version implements Comparable<Version> {
 	}
 
 	public static boolean isVersion(String version) {
-		return version != null && VERSION.matcher(version).matches();
+		return version != null && parse(version) != null;
 	}
 }
@@ -3,7 +3,8 @@ package aQute.bnd.version;
 import java.util.ArrayList;
 import java.util.Formatter;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 public class VersionRange {
@@ -33,14 +34,14 @@ public class VersionRange {
 			auto = 3;
 		}
 
-		Matcher m = RANGE.matcher(string);
-		if (m.matches()) {
-			start = m.group(1).charAt(0);
-			String v1 = m.group(2);
-			String v2 = m.group(10);
-			low = new Version(v1);
-			high = new Version(v2);
-			end = m.group(18).charAt(0);
+		Version[] range = parse(string);
+		if (range != null) {
+			start = string.charAt(0);
+			low = range[0];
+			// a range is never a single version, even if low and high are
+			// equal
+			high = range[1] == low ? new Version(low.major, low.minor, low.micro, low.qualifier) : range[1];
+			end = string.charAt(string.length() - 1);
 			if (low.compareTo(high) > 0)
 				throw new IllegalArgumentException("Low Range is higher than High Range: " + low + "-" + high);
 
@@ -66,7 +67,7 @@ public class VersionRange {
 		start = b ? '[' : '(';
 		end = c ? ']' : ')';
 		low = lower;
-		high = unique(upper);
+		high = distinct(lower, upper);
 	}
 
 	public VersionRange(String low, String higher) {
@@ -75,7 +76,7 @@ public class VersionRange {
 
 	public VersionRange(Version low, Version higher) {
 		this.low = low;
-		this.high = unique(higher);
+		this.high = distinct(low, higher);
 		start = '[';
 		end = this.low.equals(this.high) ? ']' : ')';
 	}
@@ -90,6 +91,17 @@ public class VersionRange {
 		return v;
 	}
 
+	/*
+	 * Versions are shared, so the bounds of a range can be the same instance.
+	 * A range is never a single version, so the high bound is copied then.
+	 */
+	static Version distinct(Version low, Version high) {
+		high = unique(high);
+		if (high == low && high != Version.HIGHEST)
+			return new Version(low.major, low.minor, low.micro, low.qualifier);
+		return high;
+	}
+
 	public boolean isRange() {
 		return high != low;
 	}
@@ -182,9 +194,56 @@ public class VersionRange {
 	}
 
 	public static boolean isVersionRange(String stringRange) {
-		return RANGE.matcher(stringRange).matches();
+		return parse(stringRange) != null;
 	}
 
+	/*
+	 * Parse a range that matches RANGE, answer null if it does not match
+	 */
+	private static Version[] parse(String s) {
+		int length = s.length();
+		if (length < 5)
+			return null;
+
+		char start = s.charAt(0);
+		char end = s.charAt(length - 1);
+		int comma = s.indexOf(',');
+		if (start != '[' && start != '(' || end != ']' && end != ')' || comma < 0)
+			return null;
+
+		Version low = Version.parse(strip(s, 1, comma));
+		if (low == null)
+			return null;
+		Version high = Version.parse(strip(s, comma + 1, length - 1));
+		if (high == null)
+			return null;
+		return new Version[] {
+				low, high
+		};
+	}
+
+	/*
+	 * Answer the substring without the white space allowed by \\s
+	 */
+	private static String strip(String s, int from, int to) {
+		while (from < to && isSpace(s.charAt(from)))
+			from++;
+		while (to > from && isSpace(s.charAt(to - 1)))
+			to--;
+		return s.substring(from, to);
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/*
+	 * Ranges are not modified after they are created so the parsed ranges are
+	 * shared. The cache is cleared when it gets too large.
+	 */
+	private final static int								MAX		= 5000;
+	private final static ConcurrentMap<String,VersionRange>	cache	= new ConcurrentHashMap<String,VersionRange>();
+
 	/**
 	 * Intersect two version ranges
 	 */
@@ -218,19 +277,25 @@ public class VersionRange {
 	}
 
 	public static VersionRange parseVersionRange(String version) {
+		VersionRange range = cache.get(version);
+		if (range != null)
+			return range;
+
 		if (!isVersionRange(version))
 			return null;
 
-		return new VersionRange(version);
+		range = new VersionRange(version);
+		if (cache.size() >= MAX)
+			cache.clear();
+		cache.put(version, range);
+		return range;
 	}
 
 	public static VersionRange parseOSGiVersionRange(String version) {
 		if (Version.isVersion(version))
 			return new VersionRange(new Version(version), Version.HIGHEST);
 
-		if (isVersionRange(version))
-			return new VersionRange(version);
-		return null;
+		return parseVersionRange(version);
 	}
 
 	public static boolean isOSGiVersionRange(String range) {